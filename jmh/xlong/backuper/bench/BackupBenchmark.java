@@ -0,0 +1,204 @@
+package xlong.backuper.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import xlong.backuper.manager.BackupManager;
+import xlong.backuper.object.BackupObject;
+import xlong.backuper.object.TreeBuilder;
+
+/**
+ * End-to-end benchmark of backup and restore.
+ * <p>
+ * A synthetic dataset is generated in a work directory and backed up
+ * into a fresh repository there. Then a part of the files is changed and
+ * backed up again, and the last backup is restored.
+ * For each step the wall time, files and bytes per second and the peak
+ * heap are printed, and the size of the repository after each backup.
+ * <p>
+ * Set the shape to one of "tiny", "huge", "deep" and "wide",
+ * and the files, size, content and changePercent to shape the dataset.
+ * Set the workDir to run on another disk.
+ * Set the keep to keep the work directory for inspection.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class BackupBenchmark {
+	/**
+	 * Constructor.
+	 */
+	private BackupBenchmark() {
+
+	}
+
+	/** the shape of the dataset. */
+	private static String shape = "tiny";
+
+	/** the number of files. */
+	private static int files = 100000;
+
+	/** the size of each file for huge files, the depth for deep. */
+	private static long size = 1L << 30;
+
+	/** the content of the files. */
+	private static Content content = Content.TEXT;
+
+	/** the percentage of files changed before the second backup. */
+	private static double changePercent = 1;
+
+	/** the work directory. */
+	private static String workDir = "bench_work";
+
+	/** keep the work directory or not. */
+	private static boolean keep = false;
+
+	/** nanoseconds per second. */
+	private static final double NANOS = 1e9;
+
+	/** bytes per megabyte. */
+	private static final double MB = 1024.0 * 1024.0;
+
+	/**
+	 * Creates the dataset of the configured shape.
+	 * @return the dataset
+	 */
+	private static Dataset createDataset() {
+		switch (shape) {
+		case "huge":
+			return Dataset.hugeFiles(files, size, content);
+		case "deep":
+			return Dataset.deep(files, (int) size, content);
+		case "wide":
+			return Dataset.wide(files, content);
+		default:
+			return Dataset.tinyFiles(files, content);
+		}
+	}
+
+	/**
+	 * Resets the peak usage of heap memory pools.
+	 */
+	private static void resetPeakHeap() {
+		System.gc();
+		for (MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * Gets the peak usage of heap memory since the last reset.
+	 * @return the peak in bytes
+	 */
+	private static long getPeakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	/**
+	 * Gets the total size of the files in a directory.
+	 * @param dir the directory
+	 * @return the size in bytes
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static long getSize(final Path dir) throws IOException {
+		final long[] total = {0};
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file,
+					final BasicFileAttributes attrs) {
+				total[0] += attrs.size();
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return total[0];
+	}
+
+	/**
+	 * Prints the result of a step.
+	 * @param step the name of the step
+	 * @param nanos the wall time
+	 * @param fileCount the number of files
+	 * @param bytes the number of bytes
+	 * @param ok the step succeeded or not
+	 */
+	private static void print(final String step, final long nanos,
+			final long fileCount, final long bytes, final boolean ok) {
+		double seconds = nanos / NANOS;
+		System.out.println(String.format(
+				"%-12s %10.2f s %12.1f files/s %10.2f MB/s %10.1f MB heap%s",
+				step, seconds, fileCount / seconds, bytes / MB / seconds,
+				getPeakHeap() / MB, ok ? "" : " FAILED"));
+	}
+
+	/**
+	 * run.
+	 * @param args args
+	 * @throws IOException if the dataset cannot be written
+	 */
+	public static void main(final String[] args) throws IOException {
+		Path work = Paths.get(workDir).toAbsolutePath();
+		Path source = work.resolve("source");
+		Path restore = work.resolve("restore");
+		Path objects = work.resolve("object");
+		Dataset.deleteTree(work);
+
+		Dataset dataset = createDataset();
+		System.out.println("Generating " + dataset.getFiles() + " " + shape
+				+ " files, " + content.name().toLowerCase() + " content");
+		dataset.generate(source);
+		long bytes = dataset.getTotalSize();
+		System.out.println(String.format("Dataset: %d files, %.1f MB",
+				dataset.getFiles(), bytes / MB));
+
+		BackupObject.setObjectDir(objects.toString());
+		BackupManager.setBackupDir(work.resolve("backup").toString());
+		BackupManager bm = BackupManager.getManager();
+		bm.addBackupMap(source.toString(), "data");
+
+		resetPeakHeap();
+		long t0 = System.nanoTime();
+		boolean ok = bm.newBackup("full");
+		print("full", System.nanoTime() - t0, dataset.getFiles(), bytes, ok);
+		System.out.println(String.format("Repository: %.1f MB",
+				getSize(objects) / MB));
+
+		int changed = dataset.modify(source, changePercent);
+		System.out.println("Changed " + changed + " files");
+		resetPeakHeap();
+		t0 = System.nanoTime();
+		ok = bm.newBackup("incremental");
+		print("incremental", System.nanoTime() - t0, dataset.getFiles(),
+				bytes, ok);
+		System.out.println(String.format("Repository: %.1f MB",
+				getSize(objects) / MB));
+
+		TreeBuilder tb = new TreeBuilder();
+		tb.add(restore, Paths.get("data"));
+		bm.setTreeRestorer(tb.getRestorer());
+		String last = bm.getBackupList().get(bm.getBackupList().size() - 1);
+		resetPeakHeap();
+		t0 = System.nanoTime();
+		ok = bm.recover(last);
+		print("restore", System.nanoTime() - t0, dataset.getFiles(),
+				bytes, ok);
+
+		if (!keep) {
+			Dataset.deleteTree(work);
+		}
+	}
+}
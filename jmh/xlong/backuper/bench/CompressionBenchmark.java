@@ -0,0 +1,128 @@
+package xlong.backuper.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import xlong.backuper.util.CompressionUtil;
+
+/**
+ * Benchmarks compression and decompression of CompressionUtil for
+ * several sizes and contents of different entropy.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	/** the size of the input. */
+	@Param({"1024", "65536", "1048576", "16777216"})
+	private int size;
+
+	/** the content of the input. */
+	@Param({"ZERO", "TEXT", "RANDOM"})
+	private Content content;
+
+	/** the input. */
+	private byte[] data;
+
+	/** the directory of the files. */
+	private Path dir;
+
+	/** the input file. */
+	private Path in;
+
+	/** the compressed input. */
+	private Path zip;
+
+	/** the file compressed to. */
+	private Path compressed;
+
+	/** the file decompressed to. */
+	private Path out;
+
+	/**
+	 * Generates the input and compresses it once.
+	 * @throws IOException if the files cannot be written
+	 */
+	@Setup
+	public void setup() throws IOException {
+		data = content.generate(size, new Random(1));
+		dir = Files.createTempDirectory("compressionbench");
+		in = dir.resolve("in");
+		zip = dir.resolve("zip");
+		compressed = dir.resolve("compressed");
+		out = dir.resolve("out");
+		Files.write(in, data);
+		CompressionUtil.compressByteArray(data, zip);
+	}
+
+	/**
+	 * Deletes the files.
+	 * @throws IOException if the files cannot be deleted
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		Dataset.deleteTree(dir);
+	}
+
+	/**
+	 * Compresses a byte array to a file.
+	 * @throws IOException if the file cannot be written
+	 */
+	@Benchmark
+	public void compressByteArray() throws IOException {
+		Files.deleteIfExists(compressed);
+		CompressionUtil.compressByteArray(data, compressed);
+	}
+
+	/**
+	 * Compresses a file to a file.
+	 * @throws IOException if the files cannot be read or written
+	 */
+	@Benchmark
+	public void compressFile() throws IOException {
+		Files.deleteIfExists(compressed);
+		CompressionUtil.compressFile(in, compressed);
+	}
+
+	/**
+	 * Decompresses a file in memory.
+	 * @return the content
+	 * @throws IOException if the file cannot be read
+	 */
+	@Benchmark
+	public byte[] decompressToByteArray() throws IOException {
+		return CompressionUtil.decompressToByteArray(zip);
+	}
+
+	/**
+	 * Decompresses a file to a file.
+	 * @throws IOException if the files cannot be read or written
+	 */
+	@Benchmark
+	public void decompressToFile() throws IOException {
+		Files.deleteIfExists(out);
+		CompressionUtil.decompressToFile(zip, out);
+	}
+}
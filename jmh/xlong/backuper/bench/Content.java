@@ -0,0 +1,59 @@
+package xlong.backuper.bench;
+
+import java.util.Random;
+
+/**
+ * Generates file content of different entropy for benchmarks.
+ * The content only depends on the seed, so runs are reproducible.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public enum Content {
+	/** only zero bytes, compresses almost to nothing. */
+	ZERO,
+	/** words of a small vocabulary, compresses like source and logs. */
+	TEXT,
+	/** random bytes, cannot be compressed. */
+	RANDOM;
+
+	/** the vocabulary of TEXT. */
+	private static final String[] WORDS = {
+		"the", "backup", "object", "tree", "blob", "checksum", "file",
+		"public", "static", "final", "void", "return", "import", "class",
+		"0", "1", "42", "null", "true", "false", "{", "}", "(", ")", ";",
+		"private", "string", "path", "data", "value", "key", "index"};
+
+	/** the chance of a line break after a word is 1 / LINE. */
+	private static final int LINE = 12;
+
+	/**
+	 * Generates content.
+	 * @param size the number of bytes
+	 * @param random the source of randomness
+	 * @return the content
+	 */
+	public byte[] generate(final int size, final Random random) {
+		byte[] data = new byte[size];
+		switch (this) {
+		case RANDOM:
+			random.nextBytes(data);
+			break;
+		case TEXT:
+			int i = 0;
+			while (i < size) {
+				String w = WORDS[random.nextInt(WORDS.length)];
+				for (int j = 0; j < w.length() && i < size; j++) {
+					data[i++] = (byte) w.charAt(j);
+				}
+				if (i < size) {
+					data[i++] = (byte) (random.nextInt(LINE) == 0
+							? '\n' : ' ');
+				}
+			}
+			break;
+		default:
+			break;
+		}
+		return data;
+	}
+}
@@ -0,0 +1,268 @@
+package xlong.backuper.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+/**
+ * A synthetic source tree for benchmarks.
+ * <p>
+ * The files are spread over the leaves of a directory tree
+ * in which each directory has width subdirectories, down to the depth.
+ * Width 1 gives a deep chain of directories, depth 0 puts all files
+ * into one wide directory.
+ * The names, sizes and content of the files only depend on the seed,
+ * so the same dataset can be generated again on another host.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class Dataset {
+
+	/** the size of the chunks huge files are written in. */
+	private static final int CHUNK = 1 << 20;
+
+	/** the number of bytes changed in a modified file. */
+	private static final int CHANGE = 64;
+
+	/** percent. */
+	private static final double PERCENT = 100.0;
+
+	/** mixes the index of a file into the seed. */
+	private static final long PRIME = 31;
+
+	/** the number of files. */
+	private final int files;
+
+	/** the smallest file size. */
+	private final long minSize;
+
+	/** the largest file size. */
+	private final long maxSize;
+
+	/** the number of subdirectories of each directory. */
+	private final int width;
+
+	/** the depth of the directory tree. */
+	private final int depth;
+
+	/** the content of the files. */
+	private final Content content;
+
+	/** the seed. */
+	private final long seed;
+
+	/** the number of times the dataset has been modified. */
+	private int generation;
+
+	/**
+	 * Constructor.
+	 * @param fileCount the number of files
+	 * @param smallest the smallest file size
+	 * @param largest the largest file size
+	 * @param dirWidth the number of subdirectories of each directory
+	 * @param dirDepth the depth of the directory tree
+	 * @param fileContent the content of the files
+	 * @param randomSeed the seed
+	 */
+	public Dataset(final int fileCount, final long smallest,
+			final long largest, final int dirWidth, final int dirDepth,
+			final Content fileContent, final long randomSeed) {
+		files = fileCount;
+		minSize = smallest;
+		maxSize = largest;
+		width = dirWidth;
+		depth = dirDepth;
+		content = fileContent;
+		seed = randomSeed;
+	}
+
+	/**
+	 * Many tiny files in a balanced tree.
+	 * @param fileCount the number of files
+	 * @param fileContent the content
+	 * @return the dataset
+	 */
+	public static Dataset tinyFiles(final int fileCount,
+			final Content fileContent) {
+		final int size = 1024;
+		final int dirWidth = 32;
+		return new Dataset(fileCount, 1, size, dirWidth, 2, fileContent, 1);
+	}
+
+	/**
+	 * A few huge files in one directory.
+	 * @param fileCount the number of files
+	 * @param size the size of each file
+	 * @param fileContent the content
+	 * @return the dataset
+	 */
+	public static Dataset hugeFiles(final int fileCount, final long size,
+			final Content fileContent) {
+		return new Dataset(fileCount, size, size, 1, 0, fileContent, 1);
+	}
+
+	/**
+	 * Files at the bottom of a deep chain of directories.
+	 * @param fileCount the number of files
+	 * @param dirDepth the depth
+	 * @param fileContent the content
+	 * @return the dataset
+	 */
+	public static Dataset deep(final int fileCount, final int dirDepth,
+			final Content fileContent) {
+		final int size = 16384;
+		return new Dataset(fileCount, 1, size, 1, dirDepth, fileContent, 1);
+	}
+
+	/**
+	 * All files in one directory.
+	 * @param fileCount the number of files
+	 * @param fileContent the content
+	 * @return the dataset
+	 */
+	public static Dataset wide(final int fileCount,
+			final Content fileContent) {
+		final int size = 16384;
+		return new Dataset(fileCount, 1, size, 1, 0, fileContent, 1);
+	}
+
+	/**
+	 * Gets the path of a file, relative to the root.
+	 * @param root the root of the dataset
+	 * @param index the index of the file
+	 * @return the path
+	 */
+	public Path getFile(final Path root, final int index) {
+		long leaves = 1;
+		for (int d = 0; d < depth && leaves < files; d++) {
+			leaves *= width;
+		}
+		long leaf = index % leaves;
+		Path p = root;
+		for (int d = 0; d < depth; d++) {
+			p = p.resolve("d" + (leaf % width));
+			leaf /= width;
+		}
+		return p.resolve("f" + index);
+	}
+
+	/**
+	 * Gets the size of a file.
+	 * @param index the index of the file
+	 * @return the size
+	 */
+	public long getSize(final int index) {
+		if (maxSize == minSize) {
+			return minSize;
+		}
+		Random random = new Random(seed * PRIME + index);
+		return minSize + (long) (random.nextDouble() * (maxSize - minSize));
+	}
+
+	/**
+	 * Gets the total size of all files.
+	 * @return the size in bytes
+	 */
+	public long getTotalSize() {
+		long total = 0;
+		for (int i = 0; i < files; i++) {
+			total += getSize(i);
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of files.
+	 * @return the number of files
+	 */
+	public int getFiles() {
+		return files;
+	}
+
+	/**
+	 * Writes all files under the root.
+	 * @param root the root directory
+	 * @throws IOException if an I/O error occurs
+	 */
+	public void generate(final Path root) throws IOException {
+		Random random = new Random(seed);
+		for (int i = 0; i < files; i++) {
+			Path file = getFile(root, i);
+			Files.createDirectories(file.getParent());
+			long size = getSize(i);
+			try (OutputStream out = Files.newOutputStream(file)) {
+				for (long done = 0; done < size; done += CHUNK) {
+					int n = (int) Math.min(CHUNK, size - done);
+					out.write(content.generate(n, random));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Modifies a part of the files, like the changes between two backups.
+	 * Each chosen file gets some bytes overwritten at a random position.
+	 * @param root the root directory
+	 * @param percent the percentage of files to change
+	 * @return the number of files changed
+	 * @throws IOException if an I/O error occurs
+	 */
+	public int modify(final Path root, final double percent)
+			throws IOException {
+		generation++;
+		Random random = new Random(seed + generation);
+		int changed = 0;
+		for (int i = 0; i < files; i++) {
+			if (random.nextDouble() * PERCENT >= percent) {
+				continue;
+			}
+			long size = getSize(i);
+			byte[] change = Content.RANDOM.generate(
+					(int) Math.min(CHANGE, size), random);
+			long pos = (long) (random.nextDouble()
+					* Math.max(size - CHANGE, 0));
+			try (RandomAccessFile raf = new RandomAccessFile(
+					getFile(root, i).toFile(), "rw")) {
+				raf.seek(pos);
+				raf.write(change);
+			}
+			changed++;
+		}
+		return changed;
+	}
+
+	/**
+	 * Deletes a directory and everything in it.
+	 * @param dir the directory
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void deleteTree(final Path dir) throws IOException {
+		if (!Files.exists(dir)) {
+			return;
+		}
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file,
+					final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path d,
+					final IOException e) throws IOException {
+				if (e != null) {
+					throw e;
+				}
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
@@ -0,0 +1,133 @@
+package xlong.backuper.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import xlong.backuper.object.BackupObject;
+import xlong.backuper.object.Tree;
+import xlong.backuper.object.TreeBuilder;
+
+/**
+ * Benchmarks serialization of backup objects.
+ * <p>
+ * Trees of different width and depth are created from generated
+ * directories, then {@link BackupObject#serialize(BackupObject)} and
+ * {@link BackupObject#load(String)} are measured. The objects are
+ * written to a temporary object directory.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ObjectBenchmark {
+
+	/** the size of each file. */
+	private static final int FILESIZE = 64;
+
+	/** the shape of the tree, width "x" depth. */
+	@Param({"10x1", "1000x1", "10x3", "4x6"})
+	private String shape;
+
+	/** the work directory. */
+	private Path root;
+
+	/** the object directory before the benchmark. */
+	private String oldObjectDir;
+
+	/** the tree. */
+	private Tree tree;
+
+	/** the checksum of the tree saved. */
+	private String checksum;
+
+	/**
+	 * Creates a directory with given width and depth.
+	 * Every directory has width files and, above the given depth,
+	 * width subdirectories.
+	 * @param dir the directory to create
+	 * @param width the width
+	 * @param depth the depth
+	 * @param random the source of content
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void generate(final Path dir, final int width,
+			final int depth, final Random random) throws IOException {
+		Files.createDirectories(dir);
+		for (int i = 0; i < width; i++) {
+			Files.write(dir.resolve("file" + i),
+					Content.TEXT.generate(FILESIZE, random));
+			if (depth > 1) {
+				generate(dir.resolve("dir" + i), width, depth - 1, random);
+			}
+		}
+	}
+
+	/**
+	 * Generates the directory and saves its tree.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Setup
+	public void setup() throws IOException {
+		String[] wd = shape.split("x");
+		root = Files.createTempDirectory("objectbench");
+		oldObjectDir = BackupObject.getObjectDir();
+		BackupObject.setObjectDir(root.resolve("object").toString());
+		Path dir = root.resolve("data");
+		generate(dir, Integer.parseInt(wd[0]), Integer.parseInt(wd[1]),
+				new Random(1));
+		TreeBuilder tb = new TreeBuilder();
+		tb.add(dir, Paths.get("data"));
+		tree = Tree.create(tb);
+		checksum = tree.save();
+	}
+
+	/**
+	 * Restores the object directory and deletes the work directory.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		BackupObject.setObjectDir(oldObjectDir);
+		Dataset.deleteTree(root);
+	}
+
+	/**
+	 * Serializes the tree.
+	 * @return the serialized form
+	 */
+	@Benchmark
+	public byte[] toByteArray() {
+		return BackupObject.serialize(tree);
+	}
+
+	/**
+	 * Loads the tree.
+	 * @return the tree
+	 * @throws IOException if the object cannot be read
+	 */
+	@Benchmark
+	public BackupObject load() throws IOException {
+		return BackupObject.load(checksum);
+	}
+}
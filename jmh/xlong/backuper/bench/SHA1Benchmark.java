@@ -0,0 +1,103 @@
+package xlong.backuper.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import xlong.backuper.util.SHA1Util;
+
+/**
+ * Benchmarks the checksums of SHA1Util for byte arrays, strings and
+ * files of several sizes.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SHA1Benchmark {
+
+	/** the size of the input. */
+	@Param({"1024", "65536", "1048576", "16777216"})
+	private int size;
+
+	/** the input as bytes. */
+	private byte[] data;
+
+	/** the input as a string. */
+	private String string;
+
+	/** the directory of the input file. */
+	private Path dir;
+
+	/** the input as a file. */
+	private Path file;
+
+	/**
+	 * Generates the input.
+	 * @throws IOException if the file cannot be written
+	 */
+	@Setup
+	public void setup() throws IOException {
+		data = Content.TEXT.generate(size, new Random(1));
+		string = new String(data, "ISO-8859-1");
+		dir = Files.createTempDirectory("sha1bench");
+		file = dir.resolve("in");
+		Files.write(file, data);
+	}
+
+	/**
+	 * Deletes the input file.
+	 * @throws IOException if the file cannot be deleted
+	 */
+	@TearDown
+	public void tearDown() throws IOException {
+		Dataset.deleteTree(dir);
+	}
+
+	/**
+	 * Checksum of a byte array.
+	 * @return the checksum
+	 */
+	@Benchmark
+	public String bytes() {
+		return SHA1Util.sha1Checksum(data);
+	}
+
+	/**
+	 * Checksum of a string.
+	 * @return the checksum
+	 */
+	@Benchmark
+	public String string() {
+		return SHA1Util.sha1Checksum(string);
+	}
+
+	/**
+	 * Checksum of a file.
+	 * @return the checksum
+	 * @throws IOException if the file cannot be read
+	 */
+	@Benchmark
+	public String path() throws IOException {
+		return SHA1Util.sha1Checksum(file);
+	}
+}
@@ -0,0 +1,13 @@
+/**
+ * Contains benchmarks, built from the jmh source set.
+ * <p>
+ * Classes named *Benchmark with {@code @Benchmark} methods are JMH
+ * microbenchmarks, run by "gradle jmh". BackupBenchmark is an
+ * end-to-end benchmark with main method, run by "gradle backupBenchmark".
+ * Each prints one line per case, so runs before and after a change
+ * can be compared.
+ * 
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ *
+ */
+package xlong.backuper.bench;
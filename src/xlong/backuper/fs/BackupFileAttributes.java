@@ -0,0 +1,130 @@
+package xlong.backuper.fs;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The basic attributes of a file or directory of a backup.
+ * <p>
+ * Trees do not keep times, every file of a backup has the time
+ * of the backup. The file key is the checksum of the object,
+ * so equal files of all backups have equal keys.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+final class BackupFileAttributes implements BasicFileAttributes {
+
+	/** directory or file. */
+	private final boolean directory;
+
+	/** the size. */
+	private final long size;
+
+	/** the time. */
+	private final FileTime time;
+
+	/** the checksum of the object, null for none. */
+	private final String checksum;
+
+	/**
+	 * Constructor.
+	 * @param isDirectory directory or file
+	 * @param fileSize the size
+	 * @param millis the time in milliseconds
+	 * @param key the checksum of the object, null for none
+	 */
+	BackupFileAttributes(final boolean isDirectory, final long fileSize,
+			final long millis, final String key) {
+		directory = isDirectory;
+		size = fileSize;
+		time = FileTime.fromMillis(millis);
+		checksum = key;
+	}
+
+	@Override
+	public FileTime lastModifiedTime() {
+		return time;
+	}
+
+	@Override
+	public FileTime lastAccessTime() {
+		return time;
+	}
+
+	@Override
+	public FileTime creationTime() {
+		return time;
+	}
+
+	@Override
+	public boolean isRegularFile() {
+		return !directory;
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	@Override
+	public boolean isSymbolicLink() {
+		return false;
+	}
+
+	@Override
+	public boolean isOther() {
+		return false;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public Object fileKey() {
+		return checksum;
+	}
+
+	/**
+	 * Gets the attributes by name, as Files.readAttributes does.
+	 * @param attributes "*" or names separated by ',',
+	 *        optionally after "basic:"
+	 * @return the values by name
+	 */
+	Map<String, Object> toMap(final String attributes) {
+		Map<String, Object> all = new LinkedHashMap<>();
+		all.put("lastModifiedTime", time);
+		all.put("lastAccessTime", time);
+		all.put("creationTime", time);
+		all.put("size", size);
+		all.put("isRegularFile", isRegularFile());
+		all.put("isDirectory", directory);
+		all.put("isSymbolicLink", false);
+		all.put("isOther", false);
+		all.put("fileKey", checksum);
+		String names = attributes;
+		int colon = names.indexOf(':');
+		if (colon >= 0) {
+			if (!names.substring(0, colon).equals("basic")) {
+				throw new UnsupportedOperationException(
+						"Only basic attributes: " + attributes);
+			}
+			names = names.substring(colon + 1);
+		}
+		if (names.equals("*")) {
+			return all;
+		}
+		Map<String, Object> map = new LinkedHashMap<>();
+		for (String name:names.split(",")) {
+			if (!all.containsKey(name)) {
+				throw new IllegalArgumentException("Unknown attribute "
+						+ name);
+			}
+			map.put(name, all.get(name));
+		}
+		return map;
+	}
+}
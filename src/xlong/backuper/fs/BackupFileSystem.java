@@ -0,0 +1,353 @@
+package xlong.backuper.fs;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import xlong.backuper.manager.Backup;
+import xlong.backuper.manager.BackupManager;
+import xlong.backuper.object.BackupObject;
+import xlong.backuper.object.Blob;
+import xlong.backuper.object.BlobChannel;
+import xlong.backuper.object.Tree;
+import xlong.backuper.util.PathRules;
+
+/**
+ * The backups of a repository as a read-only file system.
+ * <p>
+ * The root lists the backups, each backup is a directory holding its
+ * tree, e.g. "/20150101_120000/nick/dir/file". Files are read in place
+ * with {@link BlobChannel}. The trees of the last few backups used
+ * and the sizes of the last files asked for are kept in memory.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+final class BackupFileSystem extends FileSystem {
+
+	/** the separator. */
+	private static final String SEPARATOR = "/";
+
+	/** the number of trees kept in memory. */
+	private static final int TREES = 4;
+
+	/** the number of sizes kept in memory. */
+	private static final int SIZES = 65536;
+
+	/** the provider. */
+	private final BackupFileSystemProvider provider;
+
+	/** the manager of the repository. */
+	private final BackupManager manager;
+
+	/** open or closed. */
+	private volatile boolean open = true;
+
+	/** the backups by name. */
+	private final Map<String, Backup> backups = new HashMap<>();
+
+	/** the last trees used by backup name. */
+	private final Map<String, Tree> trees = lru(TREES);
+
+	/** the last sizes asked for by checksum. */
+	private final Map<String, Long> sizes = lru(SIZES);
+
+	/**
+	 * Constructor.
+	 * @param p the provider
+	 * @param m the manager of the repository
+	 */
+	BackupFileSystem(final BackupFileSystemProvider p,
+			final BackupManager m) {
+		provider = p;
+		manager = m;
+	}
+
+	/**
+	 * Makes a map which keeps only the entries used last.
+	 * @param <V> the type of the values
+	 * @param capacity the number of entries kept
+	 * @return the map
+	 */
+	private static <V> Map<String, V> lru(final int capacity) {
+		return new LinkedHashMap<String, V>(capacity, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					final Map.Entry<String, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	@Override
+	public BackupFileSystemProvider provider() {
+		return provider;
+	}
+
+	@Override
+	public synchronized void close() {
+		open = false;
+		backups.clear();
+		trees.clear();
+		sizes.clear();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return true;
+	}
+
+	@Override
+	public String getSeparator() {
+		return SEPARATOR;
+	}
+
+	@Override
+	public Iterable<Path> getRootDirectories() {
+		return Collections.<Path>singletonList(
+				new BackupPath(this, SEPARATOR));
+	}
+
+	@Override
+	public Iterable<FileStore> getFileStores() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public Set<String> supportedFileAttributeViews() {
+		return Collections.singleton("basic");
+	}
+
+	@Override
+	public Path getPath(final String first, final String... more) {
+		StringBuilder sb = new StringBuilder(first);
+		for (String name:more) {
+			if (!name.isEmpty()) {
+				if (sb.length() > 0) {
+					sb.append(SEPARATOR);
+				}
+				sb.append(name);
+			}
+		}
+		return new BackupPath(this, sb.toString());
+	}
+
+	@Override
+	public PathMatcher getPathMatcher(final String syntaxAndPattern) {
+		int colon = syntaxAndPattern.indexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException(syntaxAndPattern);
+		}
+		String syntax = syntaxAndPattern.substring(0, colon);
+		String pattern = syntaxAndPattern.substring(colon + 1);
+		final Pattern regex;
+		if (syntax.equals("glob")) {
+			regex = Pattern.compile(PathRules.toRegex(pattern));
+		} else if (syntax.equals("regex")) {
+			regex = Pattern.compile(pattern);
+		} else {
+			throw new UnsupportedOperationException(syntax);
+		}
+		return new PathMatcher() {
+			@Override
+			public boolean matches(final Path path) {
+				return regex.matcher(path.toString()).matches();
+			}
+		};
+	}
+
+	@Override
+	public UserPrincipalLookupService getUserPrincipalLookupService() {
+		throw new UnsupportedOperationException("No owners in backups");
+	}
+
+	@Override
+	public WatchService newWatchService() {
+		throw new UnsupportedOperationException("Backups do not change");
+	}
+
+	/**
+	 * Gets the names of the absolute, normalized form of a path.
+	 * @param path the path
+	 * @return the names, none for the root
+	 */
+	private static String[] names(final BackupPath path) {
+		return ((BackupPath) path.toAbsolutePath().normalize()).getNames();
+	}
+
+	/**
+	 * Gets a backup.
+	 * @param name the name of the backup
+	 * @return the backup
+	 * @throws IOException if there is no such backup
+	 */
+	private synchronized Backup backup(final String name)
+			throws IOException {
+		if (!open) {
+			throw new ClosedFileSystemException();
+		}
+		Backup backup = backups.get(name);
+		if (backup == null) {
+			if (!manager.getBackupList().contains(name)) {
+				throw new NoSuchFileException(SEPARATOR + name);
+			}
+			backup = manager.getBackup(name);
+			if (backup == null) {
+				throw new NoSuchFileException(SEPARATOR + name, null,
+						"Cannot load backup");
+			}
+			backups.put(name, backup);
+		}
+		return backup;
+	}
+
+	/**
+	 * Gets the tree of a backup.
+	 * @param name the name of the backup
+	 * @return the tree
+	 * @throws IOException if there is no such backup or
+	 *         an I/O error occurs
+	 */
+	private synchronized Tree tree(final String name) throws IOException {
+		Tree tree = trees.get(name);
+		if (tree == null) {
+			tree = backup(name).loadTree();
+			trees.put(name, tree);
+		}
+		return tree;
+	}
+
+	/**
+	 * Finds the object of a path.
+	 * @param path the path
+	 * @return the tree or blob, null for the root
+	 * @throws IOException if there is no such file or
+	 *         an I/O error occurs
+	 */
+	private BackupObject lookup(final BackupPath path) throws IOException {
+		String[] names = names(path);
+		if (names.length == 0) {
+			return null;
+		}
+		Tree tree = tree(names[0]);
+		if (names.length == 1) {
+			return tree;
+		}
+		BackupObject o = tree.get(Paths.get(names[1],
+				Arrays.copyOfRange(names, 2, names.length)));
+		if (o == null) {
+			throw new NoSuchFileException(path.toString());
+		}
+		return o;
+	}
+
+	/**
+	 * Gets the size of a file.
+	 * @param blob the blob of the file
+	 * @return the size
+	 * @throws IOException if an I/O error occurs
+	 */
+	private long size(final Blob blob) throws IOException {
+		synchronized (this) {
+			Long size = sizes.get(blob.getChecksum());
+			if (size != null) {
+				return size;
+			}
+		}
+		long size;
+		try (BlobChannel channel = new BlobChannel(blob)) {
+			size = channel.size();
+		}
+		synchronized (this) {
+			sizes.put(blob.getChecksum(), size);
+		}
+		return size;
+	}
+
+	/**
+	 * Reads the attributes of a path.
+	 * @param path the path
+	 * @return the attributes
+	 * @throws IOException if there is no such file or
+	 *         an I/O error occurs
+	 */
+	BackupFileAttributes attributes(final BackupPath path)
+			throws IOException {
+		String[] names = names(path);
+		if (names.length == 0) {
+			return new BackupFileAttributes(true, 0, 0, null);
+		}
+		long time = backup(names[0]).getTime();
+		BackupObject o = lookup(path);
+		if (o instanceof Blob) {
+			return new BackupFileAttributes(false, size((Blob) o), time,
+					o.getChecksum());
+		}
+		return new BackupFileAttributes(true, 0, time, o.getChecksum());
+	}
+
+	/**
+	 * Lists a directory.
+	 * @param dir the directory
+	 * @return the names of its entries
+	 * @throws IOException if it is not a directory or
+	 *         an I/O error occurs
+	 */
+	List<String> list(final BackupPath dir) throws IOException {
+		BackupObject o = lookup(dir);
+		if (o == null) {
+			if (!open) {
+				throw new ClosedFileSystemException();
+			}
+			return new ArrayList<>(manager.getBackupList());
+		}
+		if (!(o instanceof Tree)) {
+			throw new NotDirectoryException(dir.toString());
+		}
+		Tree tree = (Tree) o;
+		TreeSet<String> names = new TreeSet<>(tree.getTrees().keySet());
+		names.addAll(tree.getBlobs().keySet());
+		return new ArrayList<>(names);
+	}
+
+	/**
+	 * Opens a file to read.
+	 * @param path the path
+	 * @return the channel
+	 * @throws IOException if it is not a file or an I/O error occurs
+	 */
+	SeekableByteChannel open(final BackupPath path) throws IOException {
+		BackupObject o = lookup(path);
+		if (!(o instanceof Blob)) {
+			throw new FileSystemException(path.toString(), null,
+					"Is a directory");
+		}
+		return new BlobChannel((Blob) o);
+	}
+}
@@ -0,0 +1,241 @@
+package xlong.backuper.fs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import xlong.backuper.manager.BackupManager;
+
+/**
+ * A read-only file system provider of the scheme "backup", so tools can
+ * read the backups of the repository in place, with no restore.
+ * <p>
+ * The file system is made of the repository {@link BackupManager}
+ * is set to, e.g.
+ * <pre>
+ * FileSystem fs = FileSystems.newFileSystem(
+ *         URI.create("backup:/"), Collections.&lt;String, Object&gt;emptyMap());
+ * Files.newBufferedReader(fs.getPath("/20150101_120000/nick/log.txt"), cs);
+ * </pre>
+ * Only one file system is open at a time. It is registered as a service,
+ * creating a provider directly works as well.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class BackupFileSystemProvider extends FileSystemProvider {
+
+	/** the scheme. */
+	public static final String SCHEME = "backup";
+
+	/** the file system, null if none was made. */
+	private BackupFileSystem fileSystem = null;
+
+	@Override
+	public String getScheme() {
+		return SCHEME;
+	}
+
+	/**
+	 * Checks the scheme of a URI.
+	 * @param uri the URI
+	 */
+	private static void checkUri(final URI uri) {
+		if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+			throw new IllegalArgumentException("Not a backup URI: " + uri);
+		}
+	}
+
+	@Override
+	public synchronized FileSystem newFileSystem(final URI uri,
+			final Map<String, ?> env) {
+		checkUri(uri);
+		if (fileSystem != null && fileSystem.isOpen()) {
+			throw new FileSystemAlreadyExistsException();
+		}
+		fileSystem = new BackupFileSystem(this, BackupManager.getManager());
+		return fileSystem;
+	}
+
+	@Override
+	public synchronized FileSystem getFileSystem(final URI uri) {
+		checkUri(uri);
+		if (fileSystem == null || !fileSystem.isOpen()) {
+			throw new FileSystemNotFoundException();
+		}
+		return fileSystem;
+	}
+
+	@Override
+	public Path getPath(final URI uri) {
+		return getFileSystem(uri).getPath(uri.getPath());
+	}
+
+	@Override
+	public SeekableByteChannel newByteChannel(final Path path,
+			final Set<? extends OpenOption> options,
+			final FileAttribute<?>... attrs) throws IOException {
+		for (OpenOption option:options) {
+			if (option != StandardOpenOption.READ
+					&& option instanceof StandardOpenOption) {
+				throw new ReadOnlyFileSystemException();
+			}
+		}
+		BackupPath p = BackupPath.cast(path);
+		return p.getFileSystem().open(p);
+	}
+
+	@Override
+	public DirectoryStream<Path> newDirectoryStream(final Path dir,
+			final DirectoryStream.Filter<? super Path> filter)
+			throws IOException {
+		final BackupPath p = BackupPath.cast(dir);
+		final List<Path> entries = new ArrayList<>();
+		for (String name:p.getFileSystem().list(p)) {
+			Path entry = p.resolve(name);
+			if (filter == null || filter.accept(entry)) {
+				entries.add(entry);
+			}
+		}
+		return new DirectoryStream<Path>() {
+			@Override
+			public Iterator<Path> iterator() {
+				return entries.iterator();
+			}
+
+			@Override
+			public void close() {
+				// nothing to do
+			}
+		};
+	}
+
+	@Override
+	public void createDirectory(final Path dir,
+			final FileAttribute<?>... attrs) {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	@Override
+	public void delete(final Path path) {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	@Override
+	public void copy(final Path source, final Path target,
+			final CopyOption... options) {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	@Override
+	public void move(final Path source, final Path target,
+			final CopyOption... options) {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	@Override
+	public boolean isSameFile(final Path path, final Path path2) {
+		return path.toAbsolutePath().normalize().equals(
+				path2.toAbsolutePath().normalize());
+	}
+
+	@Override
+	public boolean isHidden(final Path path) {
+		return false;
+	}
+
+	@Override
+	public FileStore getFileStore(final Path path) {
+		throw new UnsupportedOperationException("No file stores");
+	}
+
+	@Override
+	public void checkAccess(final Path path, final AccessMode... modes)
+			throws IOException {
+		BackupPath p = BackupPath.cast(path);
+		BackupFileAttributes attrs = p.getFileSystem().attributes(p);
+		for (AccessMode mode:modes) {
+			if (mode == AccessMode.WRITE
+					|| (mode == AccessMode.EXECUTE && !attrs.isDirectory())) {
+				throw new AccessDeniedException(path.toString());
+			}
+		}
+	}
+
+	@Override
+	public <V extends FileAttributeView> V getFileAttributeView(
+			final Path path, final Class<V> type,
+			final LinkOption... options) {
+		if (type != BasicFileAttributeView.class) {
+			return null;
+		}
+		final BackupPath p = BackupPath.cast(path);
+		return type.cast(new BasicFileAttributeView() {
+			@Override
+			public String name() {
+				return "basic";
+			}
+
+			@Override
+			public BasicFileAttributes readAttributes() throws IOException {
+				return p.getFileSystem().attributes(p);
+			}
+
+			@Override
+			public void setTimes(final FileTime lastModifiedTime,
+					final FileTime lastAccessTime,
+					final FileTime createTime) {
+				throw new ReadOnlyFileSystemException();
+			}
+		});
+	}
+
+	@Override
+	public <A extends BasicFileAttributes> A readAttributes(final Path path,
+			final Class<A> type, final LinkOption... options)
+			throws IOException {
+		if (type != BasicFileAttributes.class) {
+			throw new UnsupportedOperationException(
+					"Only basic attributes: " + type);
+		}
+		BackupPath p = BackupPath.cast(path);
+		return type.cast(p.getFileSystem().attributes(p));
+	}
+
+	@Override
+	public Map<String, Object> readAttributes(final Path path,
+			final String attributes, final LinkOption... options)
+			throws IOException {
+		BackupPath p = BackupPath.cast(path);
+		return p.getFileSystem().attributes(p).toMap(attributes);
+	}
+
+	@Override
+	public void setAttribute(final Path path, final String attribute,
+			final Object value, final LinkOption... options) {
+		throw new ReadOnlyFileSystemException();
+	}
+}
@@ -0,0 +1,339 @@
+package xlong.backuper.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A path of a {@link BackupFileSystem}, like a unix path.
+ * <p>
+ * The first name of an absolute path is the name of a backup,
+ * the next ones are the nickname path in its tree.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+final class BackupPath implements Path {
+
+	/** the separator. */
+	private static final String SEPARATOR = "/";
+
+	/** the file system. */
+	private final BackupFileSystem fileSystem;
+
+	/** the path, without repeated or trailing separators. */
+	private final String path;
+
+	/** the names, one empty name for the empty path. */
+	private final String[] names;
+
+	/**
+	 * Constructor.
+	 * @param fs the file system
+	 * @param p the path
+	 */
+	BackupPath(final BackupFileSystem fs, final String p) {
+		fileSystem = fs;
+		String s = p.replaceAll("/+", SEPARATOR);
+		if (s.length() > 1 && s.endsWith(SEPARATOR)) {
+			s = s.substring(0, s.length() - 1);
+		}
+		path = s;
+		if (s.isEmpty()) {
+			names = new String[] {""};
+		} else if (s.equals(SEPARATOR)) {
+			names = new String[0];
+		} else {
+			names = (s.startsWith(SEPARATOR) ? s.substring(1) : s)
+					.split(SEPARATOR);
+		}
+	}
+
+	/**
+	 * Makes a path of names.
+	 * @param absolute absolute or not
+	 * @param parts the names
+	 * @return the path
+	 */
+	private BackupPath of(final boolean absolute, final List<String> parts) {
+		StringBuilder sb = new StringBuilder(absolute ? SEPARATOR : "");
+		for (String name:parts) {
+			if (sb.length() > 1 || (!absolute && sb.length() > 0)) {
+				sb.append(SEPARATOR);
+			}
+			sb.append(name);
+		}
+		return new BackupPath(fileSystem, sb.toString());
+	}
+
+	/**
+	 * Gets the names, none for the empty path.
+	 * @return the names
+	 */
+	String[] getNames() {
+		return path.isEmpty() ? new String[0] : names.clone();
+	}
+
+	/**
+	 * Casts a path of this provider.
+	 * @param p the path
+	 * @return the path
+	 */
+	static BackupPath cast(final Path p) {
+		if (!(p instanceof BackupPath)) {
+			throw new ProviderMismatchException();
+		}
+		return (BackupPath) p;
+	}
+
+	@Override
+	public BackupFileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	@Override
+	public boolean isAbsolute() {
+		return path.startsWith(SEPARATOR);
+	}
+
+	@Override
+	public Path getRoot() {
+		return isAbsolute() ? new BackupPath(fileSystem, SEPARATOR) : null;
+	}
+
+	@Override
+	public Path getFileName() {
+		if (path.isEmpty()) {
+			return this;
+		}
+		if (names.length == 0) {
+			return null;
+		}
+		return new BackupPath(fileSystem, names[names.length - 1]);
+	}
+
+	@Override
+	public Path getParent() {
+		if (names.length == 0 || path.isEmpty()) {
+			return null;
+		}
+		if (names.length == 1) {
+			return getRoot();
+		}
+		return of(isAbsolute(), Arrays.asList(names).subList(0,
+				names.length - 1));
+	}
+
+	@Override
+	public int getNameCount() {
+		return names.length;
+	}
+
+	@Override
+	public Path getName(final int index) {
+		return subpath(index, index + 1);
+	}
+
+	@Override
+	public Path subpath(final int beginIndex, final int endIndex) {
+		if (beginIndex < 0 || endIndex > names.length
+				|| beginIndex >= endIndex) {
+			throw new IllegalArgumentException();
+		}
+		return of(false, Arrays.asList(names).subList(beginIndex, endIndex));
+	}
+
+	@Override
+	public boolean startsWith(final Path other) {
+		BackupPath o = cast(other);
+		if (o.isAbsolute() != isAbsolute() || o.names.length > names.length
+				|| (o.path.isEmpty() && !path.isEmpty())) {
+			return false;
+		}
+		for (int i = 0; i < o.names.length; i++) {
+			if (!o.names[i].equals(names[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean startsWith(final String other) {
+		return startsWith(fileSystem.getPath(other));
+	}
+
+	@Override
+	public boolean endsWith(final Path other) {
+		BackupPath o = cast(other);
+		if (o.isAbsolute()) {
+			return equals(o);
+		}
+		if (o.names.length > names.length
+				|| (o.path.isEmpty() && !path.isEmpty())) {
+			return false;
+		}
+		int off = names.length - o.names.length;
+		for (int i = 0; i < o.names.length; i++) {
+			if (!o.names[i].equals(names[off + i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endsWith(final String other) {
+		return endsWith(fileSystem.getPath(other));
+	}
+
+	@Override
+	public Path normalize() {
+		List<String> parts = new ArrayList<>();
+		for (String name:names) {
+			if (name.equals(".") || name.isEmpty()) {
+				continue;
+			}
+			if (name.equals("..") && !parts.isEmpty()
+					&& !parts.get(parts.size() - 1).equals("..")) {
+				parts.remove(parts.size() - 1);
+			} else if (!name.equals("..") || !isAbsolute()) {
+				parts.add(name);
+			}
+		}
+		return of(isAbsolute(), parts);
+	}
+
+	@Override
+	public Path resolve(final Path other) {
+		BackupPath o = cast(other);
+		if (o.isAbsolute() || path.isEmpty()) {
+			return o;
+		}
+		if (o.path.isEmpty()) {
+			return this;
+		}
+		return new BackupPath(fileSystem, path + SEPARATOR + o.path);
+	}
+
+	@Override
+	public Path resolve(final String other) {
+		return resolve(fileSystem.getPath(other));
+	}
+
+	@Override
+	public Path resolveSibling(final Path other) {
+		Path parent = getParent();
+		return parent == null ? other : parent.resolve(other);
+	}
+
+	@Override
+	public Path resolveSibling(final String other) {
+		return resolveSibling(fileSystem.getPath(other));
+	}
+
+	@Override
+	public Path relativize(final Path other) {
+		BackupPath o = cast(other);
+		if (o.isAbsolute() != isAbsolute()) {
+			throw new IllegalArgumentException("Only one path is absolute");
+		}
+		String[] from = getNames();
+		String[] to = o.getNames();
+		int common = 0;
+		while (common < from.length && common < to.length
+				&& from[common].equals(to[common])) {
+			common++;
+		}
+		List<String> parts = new ArrayList<>();
+		for (int i = common; i < from.length; i++) {
+			parts.add("..");
+		}
+		parts.addAll(Arrays.asList(to).subList(common, to.length));
+		return of(false, parts);
+	}
+
+	@Override
+	public URI toUri() {
+		try {
+			return new URI(BackupFileSystemProvider.SCHEME, null,
+					((BackupPath) toAbsolutePath()).path, null);
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public Path toAbsolutePath() {
+		if (isAbsolute()) {
+			return this;
+		}
+		return new BackupPath(fileSystem, SEPARATOR + path);
+	}
+
+	@Override
+	public Path toRealPath(final LinkOption... options) throws IOException {
+		Path real = toAbsolutePath().normalize();
+		fileSystem.attributes((BackupPath) real);
+		return real;
+	}
+
+	@Override
+	public File toFile() {
+		throw new UnsupportedOperationException("Not a default file system");
+	}
+
+	@Override
+	public WatchKey register(final WatchService watcher,
+			final WatchEvent.Kind<?>[] events,
+			final WatchEvent.Modifier... modifiers) {
+		throw new UnsupportedOperationException("Backups do not change");
+	}
+
+	@Override
+	public WatchKey register(final WatchService watcher,
+			final WatchEvent.Kind<?>... events) {
+		throw new UnsupportedOperationException("Backups do not change");
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		List<Path> parts = new ArrayList<>();
+		for (int i = 0; i < names.length; i++) {
+			parts.add(getName(i));
+		}
+		return parts.iterator();
+	}
+
+	@Override
+	public int compareTo(final Path other) {
+		return path.compareTo(cast(other).path);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		return o instanceof BackupPath
+				&& ((BackupPath) o).fileSystem == fileSystem
+				&& ((BackupPath) o).path.equals(path);
+	}
+
+	@Override
+	public int hashCode() {
+		return path.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+}
@@ -0,0 +1,8 @@
+/**
+ * Contains a read-only file system of the backups of a repository,
+ * to read backed up files in place without restoring them.
+ * 
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ *
+ */
+package xlong.backuper.fs;
@@ -1,12 +1,25 @@
 package xlong.backuper.main;
 
 import xlong.backuper.manager.BackupManager;
+import xlong.backuper.object.BlobIngester;
+import xlong.backuper.util.ProgressReporter;
 
 /**
  * Create new backup. Remember create or modify setting/backup file
  * before run DoBackup. The sample backup file is setting/backup_sample.
  * Set the path to change the backup setting path.
  * Set the message to change the backup message.
+ * Set the verbose to print every file.
+ * Set the mode to IO when the files or the repository are on NFS.
+ * Set the deltaChain to store changed files as deltas to their
+ * previous version, like logs and dumps which change a little.
+ * Set the level to change the deflate level, the adaptive to step it
+ * with the load of the CPU and the disk, and the window to the time
+ * a backup should take at most.
+ * Set the checkpoint to change the time between two checkpoints, and
+ * the resume to false to start an interrupted backup over.
+ * Set the readRate, writeRate, opRate and workers to bound the cost of
+ * the backup on a busy host, 0 means unlimited.
  * 
  * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
  *
@@ -28,11 +41,62 @@ public final class DoBackup {
 	/** Message. */
 	private static String message = "Sample backup";
 	
+	/** print an event for every file or not. */
+	private static boolean verbose = false;
+	
+	/** how files are ingested, CPU for local disks, IO for NFS. */
+	private static BlobIngester.Mode mode = BlobIngester.Mode.CPU;
+	
+	/** the number of threads in mode IO. */
+	private static int threads = 256;
+	
+	/** the bound of the bytes of files ingested at once. */
+	private static long inFlightBytes = 256L << 20;
+	
+	/** the longest chain of deltas, 0 to store every file in full. */
+	private static int deltaChain = 0;
+	
+	/** the deflate level to start with, 0 only stores, 9 is best. */
+	private static int level = 6;
+	
+	/** step the deflate level with the load or keep it. */
+	private static boolean adaptive = true;
+	
+	/** the time a backup should take at most in seconds, 0 for no limit. */
+	private static long window = 0;
+	
+	/** the time between two checkpoints in seconds. */
+	private static long checkpoint = 60;
+	
+	/** resume an interrupted backup or start over. */
+	private static boolean resume = true;
+	
+	/** the bytes read from files per second, 0 means unlimited. */
+	private static long readRate = 0;
+	
+	/** the bytes written per second, 0 means unlimited. */
+	private static long writeRate = 0;
+	
+	/** the I/O operations per second, 0 means unlimited. */
+	private static long opRate = 0;
+	
+	/** the ingest threads working at once, 0 means unlimited. */
+	private static int workers = 0;
+	
 	/**
 	 * run.
 	 * @param args args
 	 */
 	public static void main(final String[] args) {
+		if (verbose) {
+			ProgressReporter.getReporter().setLevel(
+					ProgressReporter.Level.DEBUG);
+		}
+		BackupManager.setIngest(mode, threads, inFlightBytes);
+		BackupManager.setDelta(deltaChain);
+		BackupManager.setCompression(level, adaptive, window);
+		BackupManager.setCheckpoint(checkpoint, resume);
+		BackupManager.setThrottle(readRate, writeRate, opRate, workers);
 		BackupManager bm = BackupManager.getManager();
 		if (path == null) {
 			bm.loadBackupSetting();
@@ -0,0 +1,64 @@
+package xlong.backuper.main;
+
+import java.util.ArrayList;
+
+import xlong.backuper.manager.BackupManager;
+import xlong.backuper.util.ProgressReporter;
+
+/**
+ * Export latest backup as a tar or zip archive, without recovering it
+ * to a directory first.
+ * Set the toExport to change the backup to export.
+ * Set the format to "tar" or "zip".
+ * Set the output to change the archive file, "-" writes to the standard
+ * output, e.g. to pipe it to ssh, and prints progress to the standard
+ * error.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ *
+ */
+public final class DoExport {
+	/**
+	 * Constructor.
+	 */
+	private DoExport() {
+
+	}
+
+	/** time between progress summaries in milliseconds. */
+	private static final long INTERVAL = 5000;
+
+	/** the date of backup to export.
+	 *  set null to get the lastone.
+	 */
+	private static String toExport = null;
+
+	/** the format of the archive, "tar" or "zip". */
+	private static String format = "tar";
+
+	/** the archive file, "-" for the standard output. */
+	private static String output = "backup.tar";
+
+	/**
+	 * run.
+	 * @param args args
+	 */
+	public static void main(final String[] args) {
+		if ("-".equals(output)) {
+			ProgressReporter.setReporter(new ProgressReporter(System.err,
+					ProgressReporter.Level.INFO, INTERVAL));
+		}
+		BackupManager bm = BackupManager.getManager();
+		ArrayList<String> blist = bm.getBackupList();
+		if (blist.isEmpty()) {
+			return;
+		}
+		String date = toExport;
+		if (date == null) {
+			date = blist.get(blist.size() - 1);
+		}
+		if (!bm.export(date, format, output)) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package xlong.backuper.main;
+
+import xlong.backuper.manager.BackupManager;
+
+/**
+ * Stripe the objects over several directories, e.g. one on each disk,
+ * and move the objects to the directories they belong to.
+ * Set the objectDirs to the directories to add, the directories
+ * already used are kept. Add disks at the end, then only the objects
+ * the new disks take are moved.
+ * Set the threads to change the number of workers.
+ * Do not back up or restore while it runs.
+ * 
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ *
+ */
+public final class DoRebalance {
+	/**
+	 * Constructor.
+	 */
+	private DoRebalance() {
+		
+	}
+	
+	/** the object directories to add. */
+	private static String[] objectDirs = {};
+	
+	/** the number of workers. */
+	private static int threads = 8;
+	
+	/**
+	 * run.
+	 * @param args args
+	 */
+	public static void main(final String[] args) {
+		BackupManager bm = BackupManager.getManager();
+		for (String dir:objectDirs) {
+			if (!bm.addObjectDir(dir)) {
+				System.exit(1);
+			}
+		}
+		if (!bm.rebalance(threads)) {
+			System.exit(1);
+		}
+	}
+}
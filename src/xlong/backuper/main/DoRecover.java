@@ -3,12 +3,18 @@ package xlong.backuper.main;
 import java.util.ArrayList;
 
 import xlong.backuper.manager.BackupManager;
+import xlong.backuper.util.ProgressReporter;
 
 /**
  * Recover latest backup. Remember modify setting/recover file
  * before run DoRecover.
  * Set the toRecover to to change the backup to recover.
  * Set the path to change the recover setting path.
+ * Set the verbose to print every file.
+ * Set the failOnMismatch to stop at the first file whose checksum does
+ * not match, and the dryRun to check the backup can be restored
+ * without writing anything.
+ * Set the prefetch to change the bytes of objects read ahead.
  * 
  * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
  *
@@ -32,11 +38,29 @@ public final class DoRecover {
 	 */
 	private static String toRecover = null;
 	
+	/** print an event for every file or not. */
+	private static boolean verbose = false;
+	
+	/** stop at the first mismatch, or report it and go on. */
+	private static boolean failOnMismatch = false;
+	
+	/** only check the files, write nothing. */
+	private static boolean dryRun = false;
+	
+	/** the bytes of objects read ahead of the files restored. */
+	private static long prefetch = 64L << 20;
+	
 	/**
 	 * run.
 	 * @param args args
 	 */
 	public static void main(final String[] args) {
+		if (verbose) {
+			ProgressReporter.getReporter().setLevel(
+					ProgressReporter.Level.DEBUG);
+		}
+		BackupManager.setRestoreCheck(failOnMismatch, dryRun);
+		BackupManager.setRestorePrefetch(prefetch);
 		BackupManager bm = BackupManager.getManager();
 		if (path == null) {
 			bm.loadRecoverSetting();
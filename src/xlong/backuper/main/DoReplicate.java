@@ -0,0 +1,42 @@
+package xlong.backuper.main;
+
+import xlong.backuper.manager.BackupManager;
+
+/**
+ * Copy the repository to a second location, like a mounted volume.
+ * Only the objects and backups the target misses are copied,
+ * so running it every day costs as much as the changes of the day.
+ * Set the targetBackupDir and targetObjectDir to the second location.
+ * Set the threads to change the number of workers.
+ * 
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ *
+ */
+public final class DoReplicate {
+	/**
+	 * Constructor.
+	 */
+	private DoReplicate() {
+		
+	}
+	
+	/** the backup directory of the target. */
+	private static String targetBackupDir = "replica/backup";
+	
+	/** the object directory of the target. */
+	private static String targetObjectDir = "replica/object";
+	
+	/** the number of workers. */
+	private static int threads = 8;
+	
+	/**
+	 * run.
+	 * @param args args
+	 */
+	public static void main(final String[] args) {
+		BackupManager bm = BackupManager.getManager();
+		if (!bm.replicate(targetBackupDir, targetObjectDir, threads)) {
+			System.exit(1);
+		}
+	}
+}
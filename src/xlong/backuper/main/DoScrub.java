@@ -0,0 +1,52 @@
+package xlong.backuper.main;
+
+import xlong.backuper.manager.BackupManager;
+
+/**
+ * Verify the repository. Every object is inflated and hashed
+ * against its name and every tree is checked for missing blobs.
+ * Set the threads to change the number of workers.
+ * Set the bytesPerSecond to limit the read rate.
+ * Set the resume to continue an interrupted scrub.
+ * Set the loop to scrub again and again.
+ * 
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ *
+ */
+public final class DoScrub {
+	/**
+	 * Constructor.
+	 */
+	private DoScrub() {
+		
+	}
+	
+	/** the number of workers. */
+	private static int threads = 4;
+	
+	/** the read limit in bytes per second. 
+	 *  set 0 to not limit.
+	 */
+	private static long bytesPerSecond = 0;
+	
+	/** continue from the last checkpoint or not. */
+	private static boolean resume = true;
+	
+	/** scrub forever or only once. */
+	private static boolean loop = false;
+	
+	/**
+	 * run.
+	 * @param args args
+	 */
+	public static void main(final String[] args) {
+		BackupManager bm = BackupManager.getManager();
+		boolean ok = bm.scrub(threads, bytesPerSecond, resume);
+		while (loop) {
+			ok = bm.scrub(threads, bytesPerSecond, true);
+		}
+		if (!ok) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package xlong.backuper.main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import xlong.backuper.manager.BackupManager;
+import xlong.backuper.manager.SpaceReport;
+
+/**
+ * Show the space of every backup, as recorded when it was made,
+ * and the bytes only a set of backups refers to, which deleting them 
+ * would free.
+ * Set the backups to change the set, empty for the oldest backup.
+ * 
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ *
+ */
+public final class DoSpace {
+	/**
+	 * Constructor.
+	 */
+	private DoSpace() {
+		
+	}
+	
+	/** the dates of the backups in the set. */
+	private static String[] backups = {};
+	
+	/**
+	 * run.
+	 * @param args args
+	 */
+	public static void main(final String[] args) {
+		BackupManager bm = BackupManager.getManager();
+		ArrayList<String> blist = bm.getBackupList();
+		if (blist.isEmpty()) {
+			return;
+		}
+		for (String s:blist) {
+			System.out.println(s + " " + bm.getBackup(s).getSpace());
+		}
+		List<String> set = Arrays.asList(backups);
+		if (set.isEmpty()) {
+			set = blist.subList(0, 1);
+		}
+		SpaceReport report = bm.spaceReport(set);
+		if (report == null) {
+			System.exit(1);
+		}
+		System.out.println(set + ": " + report);
+	}
+}
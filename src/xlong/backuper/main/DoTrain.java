@@ -0,0 +1,40 @@
+package xlong.backuper.main;
+
+import xlong.backuper.manager.BackupManager;
+
+/**
+ * Train a preset dictionary for each file extension from the small
+ * files of the last backup, like JSON, XML or source files.
+ * The next backups compress small files with them.
+ * Run it again when the files change a lot, older dictionaries are kept.
+ * Set the samples to change the number of files sampled per extension.
+ * Set the size to change the size of each dictionary.
+ * 
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ *
+ */
+public final class DoTrain {
+	/**
+	 * Constructor.
+	 */
+	private DoTrain() {
+		
+	}
+	
+	/** the most files sampled for each extension. */
+	private static int samples = 1000;
+	
+	/** the size of each dictionary, at most 32768. */
+	private static int size = 16384;
+	
+	/**
+	 * run.
+	 * @param args args
+	 */
+	public static void main(final String[] args) {
+		BackupManager bm = BackupManager.getManager();
+		if (!bm.trainDictionaries(samples, size)) {
+			System.exit(1);
+		}
+	}
+}
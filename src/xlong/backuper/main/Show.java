@@ -3,11 +3,13 @@ package xlong.backuper.main;
 import java.io.IOException;
 import java.util.ArrayList;
 
+import xlong.backuper.manager.Backup;
 import xlong.backuper.manager.BackupManager;
 /**
  * Show current state.
  * And create a default backup and recover setting. 
  * Set the toShow to change the backup to show.
+ * Set the depth and the pattern to show a part of a large backup.
  * 
  * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
  *
@@ -24,6 +26,13 @@ public final class Show {
 	 *  set null to get the lastone.  
 	 */
 	private static String toShow = null;
+	
+	/** the deepest directory to show the content of, -1 for all. */
+	private static int depth = -1;
+	
+	/** the glob of the files to show, e.g. "**.java", null for all. */
+	private static String pattern = null;
+	
 	/**
 	 * run.
 	 * @param args args
@@ -37,7 +46,7 @@ public final class Show {
 				System.out.println("Last:");
 				String last = blist.get(blist.size() - 1);
 				System.out.println(last);
-				bm.showBackup(last);
+				bm.showBackup(last, depth, pattern);
 				try {
 					bm.setTreeBuilder(bm.getBackup(last).getTreeBuilder());
 					bm.setTreeRestorer(bm.getBackup(last)
@@ -47,7 +56,7 @@ public final class Show {
 				}
 			} else {
 				System.out.println(toShow);
-				bm.showBackup(toShow);
+				bm.showBackup(toShow, depth, pattern);
 				try {
 					bm.setTreeBuilder(bm.getBackup(toShow).getTreeBuilder());
 					bm.setTreeRestorer(bm.getBackup(toShow)
@@ -62,7 +71,10 @@ public final class Show {
 		bm.createRecoverSetting();
 		System.out.println("History:");
 		for (String s:bm.getBackupList()) {
-			System.out.println(s + " " + bm.getBackup(s).getMessage());
+			Backup backup = bm.getBackup(s);
+			System.out.println(s + " " + backup.getMessage() 
+					+ (backup.getSpace() == null ? "" 
+							: " (" + backup.getSpace() + ")"));
 		}
 	}
 
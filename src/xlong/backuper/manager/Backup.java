@@ -6,15 +6,29 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 import java.util.zip.DataFormatException;
 
+import xlong.backuper.object.BackupObject;
+import xlong.backuper.object.Blob;
+import xlong.backuper.object.BlobChannel;
 import xlong.backuper.object.Tree;
 import xlong.backuper.object.TreeBuilder;
+import xlong.backuper.object.TreeExporter;
+import xlong.backuper.object.TreeLister;
 import xlong.backuper.object.TreeRestorer;
+import xlong.backuper.util.ArchiveWriter;
+import xlong.backuper.util.GroupCommit;
+import xlong.backuper.util.Metrics;
 
 /**
  * A backup contains a treeBuilder, a tree, a time and a message.
@@ -39,6 +53,12 @@ public class Backup implements Serializable {
 	/** the message. */
 	private String message;
 	
+	/** the performance metrics of the backup run in JSON. */
+	private String stats;
+	
+	/** the name in the backup list, null means the date. */
+	private String name;
+	
 	/**
 	 * Constructor.
 	 * @param intb the tree builder
@@ -62,6 +82,34 @@ public class Backup implements Serializable {
 		return df.format(date);
 	}
 	
+	/**
+	 * gets the time the backup was made.
+	 * @return the time in milliseconds
+	 */
+	public final long getTime() {
+		return date.getTime();
+	}
+	
+	/**
+	 * gets the name in the backup list.
+	 * Backups started in the same second get different names.
+	 * @return the name
+	 */
+	public final String getName() {
+		if (name == null) {
+			return getDate();
+		}
+		return name;
+	}
+	
+	/**
+	 * sets the name in the backup list.
+	 * @param inname the name
+	 */
+	final void setName(final String inname) {
+		name = inname;
+	}
+	
 	/**
 	 * gets message.
 	 * @return message
@@ -70,6 +118,76 @@ public class Backup implements Serializable {
 		return message;
 	}
 	
+	/**
+	 * gets the performance metrics of the backup run.
+	 * @return metrics in JSON, null if not recorded
+	 */
+	public final String getStats() {
+		return stats;
+	}
+	
+	/**
+	 * gets the space the backup took, from its stats.
+	 * @return a summary of logical, new and physical bytes and objects
+	 *         reused and created, null if no stats were recorded
+	 */
+	public final String getSpace() {
+		if (stats == null) {
+			return null;
+		}
+		long logical = Metrics.parse(stats, Metrics.Counter.BYTES_SCANNED);
+		// files resumed were stored by the run which died
+		long fresh = logical 
+				- Metrics.parse(stats, Metrics.Counter.BYTES_DEDUPLICATED)
+				- Metrics.parse(stats, Metrics.Counter.BYTES_RESUMED);
+		long physical = Metrics.parse(stats, Metrics.Counter.BYTES_WRITTEN);
+		return String.format(Locale.ROOT, 
+				"logical %d, new %d, physical %d bytes, "
+				+ "objects reused %d, created %d, "
+				+ "dedup %s, compression %s",
+				logical, fresh, physical,
+				Metrics.parse(stats, Metrics.Counter.OBJECTS_REUSED),
+				Metrics.parse(stats, Metrics.Counter.OBJECTS_WRITTEN),
+				ratio(logical, fresh), ratio(fresh, physical));
+	}
+	
+	/**
+	 * Formats a ratio.
+	 * @param a the dividend
+	 * @param b the divisor
+	 * @return the ratio like "2.50x", "n/a" if b is 0
+	 */
+	private static String ratio(final long a, final long b) {
+		if (b == 0) {
+			return "n/a";
+		}
+		return String.format(Locale.ROOT, "%.2fx", (double) a / b);
+	}
+	
+	/**
+	 * sets the performance metrics of the backup run.
+	 * @param json metrics in JSON
+	 */
+	public final void setStats(final String json) {
+		stats = json;
+	}
+	
+	/**
+	 * gets the checksum of the tree.
+	 * @return the checksum of the tree
+	 */
+	public final String getTreeChecksum() {
+		return tree;
+	}
+	
+	/**
+	 * gets the checksum of the treeBuilder.
+	 * @return the checksum of the treeBuilder
+	 */
+	public final String getTreeBuilderChecksum() {
+		return treeBuilder;
+	}
+	
 	/**
 	 * gets tree.
 	 * @return tree.
@@ -91,16 +209,20 @@ public class Backup implements Serializable {
 	/**
 	 * Save this backup to file.
 	 * If the directory not exist, this method will create it.
+	 * The file is replaced atomically.
 	 * 
 	 * @param path the file save to
 	 * @throws IOException if an I/O error occurs
 	 */
 	public final void save(final Path path) throws IOException {
-		Files.createDirectories(path.getParent());
-		FileOutputStream bs = new FileOutputStream(path.toString());
+		Files.createDirectories(path.toAbsolutePath().getParent());
+		Path temp = GroupCommit.createTemp(path);
+		FileOutputStream bs = new FileOutputStream(temp.toString());
         ObjectOutputStream os = new ObjectOutputStream(bs);   
         os.writeObject(this);
+        os.flush();
         bs.close();
+        GroupCommit.commitNow(temp, path);
 	}
 	
 	/**
@@ -127,12 +249,72 @@ public class Backup implements Serializable {
 	 */
 	public final boolean recover(final TreeRestorer tr) {
 		try {
-			((Tree) Tree.load(tree)).restore(tr);
+			return ((Tree) Tree.load(tree)).restore(tr);
 		} catch (IOException | DataFormatException e) {
 			e.printStackTrace();
 			return false;
 		}
-		return true;
+	}
+	
+	/**
+	 * Loads the tree of the backup.
+	 * @return the tree
+	 * @throws IOException if an I/O error occurs
+	 */
+	public final Tree loadTree() throws IOException {
+		return (Tree) Tree.load(tree);
+	}
+	
+	/**
+	 * Opens a file of the backup to read it in place.
+	 * @param path the nickname path of the file
+	 * @return the channel
+	 * @throws IOException if the file is not in the backup or 
+	 *         an I/O error occurs
+	 */
+	public final BlobChannel open(final String path) throws IOException {
+		BackupObject o = loadTree().get(Paths.get(path));
+		if (!(o instanceof Blob)) {
+			throw new NoSuchFileException(path, null, 
+					o == null ? "Not in backup " + getName() : "Not a file");
+		}
+		return new BlobChannel((Blob) o);
+	}
+	
+	/**
+	 * Exports the backup into an archive, streaming the tree.
+	 * @param writer the archive, finished at the end
+	 * @throws IOException if an I/O error occurs
+	 */
+	public final void export(final ArchiveWriter writer) throws IOException {
+		((Tree) Tree.load(tree)).walk(new TreeExporter(writer));
+		writer.finish();
+	}
+	
+	/**
+	 * Writes the backup as text, streaming the tree.
+	 * @param out the output
+	 * @param depth the deepest tree to list the content of,
+	 *        negative for no limit
+	 * @param filter the filter of blobs, null for all
+	 * @throws IOException if an I/O error occurs
+	 */
+	public final void write(final Writer out, final int depth, 
+			final PathMatcher filter) throws IOException {
+		out.write("TreeBuilder:\n");
+		out.write(((TreeBuilder) TreeBuilder.load(treeBuilder)).list());
+		out.write("\n");
+
+		out.write("Tree: ");
+		((Tree) Tree.load(tree)).walk(new TreeLister(out, depth, filter));
+		out.write("\n");
+		
+		out.write("Date: " + getDate() + "\n");
+		out.write("Message: " + message + "\n");
+		if (stats != null) {
+			out.write("Stats: " + stats + "\n");
+			out.write("Space: " + getSpace() + "\n");
+		}
 	}
 	
 	/**
@@ -141,23 +323,14 @@ public class Backup implements Serializable {
 	 */
 	@Override
 	public final String toString() {
-		String s = "";
+		StringWriter s = new StringWriter();
 		try {
-			s += "TreeBuilder:\n";
-			s += ((TreeBuilder) TreeBuilder.load(treeBuilder)).list();
-			s += "\n";
-
-			s += "Tree: ";
-			s += ((Tree) Tree.load(tree)).listAll();
-			s += "\n";
-			
-			s += "Date: " + getDate() + "\n";
-			s += "Message: " + message + "\n";
+			write(s, -1, null);
 		} catch (IOException e) {
 			e.printStackTrace();
 			return null;
 		}
- 		return s;
+ 		return s.toString();
 	}
 	
 }
\ No newline at end of file
@@ -1,22 +1,66 @@
 package xlong.backuper.manager;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import xlong.backuper.object.BackupObject;
+import xlong.backuper.object.Blob;
+import xlong.backuper.object.Dictionaries;
+import xlong.backuper.object.BlobIngester;
+import xlong.backuper.object.Checkpoint;
+import xlong.backuper.object.RestorePlan;
 import xlong.backuper.object.Tree;
 import xlong.backuper.object.TreeBuilder;
 import xlong.backuper.object.TreeRestorer;
+import xlong.backuper.util.ArchiveWriter;
+import xlong.backuper.util.CompressionUtil;
+import xlong.backuper.util.GroupCommit;
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.ProcessLock;
+import xlong.backuper.util.ProgressReporter;
+import xlong.backuper.util.TarWriter;
+import xlong.backuper.util.Throttle;
+import xlong.backuper.util.ZipWriter;
 
 
-/** Creates, deletes and manages backups. */
+/**
+ * Creates, deletes and manages backups.
+ * <p>
+ * Several processes may back up into one repository at once.
+ * The backup list is changed under a lock file, merged with the list
+ * other processes have saved meanwhile, and each backup gets a unique name.
+ * <p>
+ * Only one backup, restore, replicate or rebalance may run in a JVM at
+ * a time: the batches of {@link GroupCommit}, the current
+ * {@link Metrics} and the {@link ProgressReporter} are global to the
+ * JVM. Run concurrent backups as separate processes.
+ */
 public final class BackupManager implements Serializable {
 		
 	/** for serialization. */
@@ -34,9 +78,69 @@ public final class BackupManager implements Serializable {
 	/** default recover setting file. */
 	private static String recoverSetting = "recover";
 	
+	/** the file listing the object directories. */
+	private static String objectSetting = "objects";
+	
+	/** the object directories last used from the setting file. */
+	private static String[] settingObjectDirs;
+	
 	/** the name of the file to store manager. */
 	private static String managerFileName = "manager";
 	
+	/** the name of the lock file of the backup list. */
+	private static String lockFileName = "manager.lock";
+	
+	/** the name of the file to store scrub checkpoint. */
+	private static String scrubFileName = "scrub";
+	
+	/** the prefix of the names of the backup checkpoints. */
+	private static String checkpointFileName = "checkpoint";
+	
+	/** the time between two backup checkpoints in seconds. */
+	private static long checkpointSeconds = 60;
+	
+	/** resume an interrupted backup from its checkpoint or start over. */
+	private static boolean resumeBackup = true;
+	
+	/** the number of objects flushed to disk together. */
+	private static int syncBatchFiles = 1024;
+	
+	/** the number of bytes of objects flushed to disk together. */
+	private static long syncBatchBytes = 64L << 20;
+	
+	/** how files are ingested. */
+	private static BlobIngester.Mode ingestMode = BlobIngester.Mode.CPU;
+	
+	/** the number of threads in ingest mode IO. */
+	private static int ingestThreads = 256;
+	
+	/** the bound of the bytes of files ingested at once. */
+	private static long ingestBytes = 256L << 20;
+	
+	/** the threads of the ingest stages hash, compress and write. */
+	private static int[] stageThreads = null;
+	
+	/** the capacity of the queue of each ingest stage. */
+	private static int stageQueue = 0;
+	
+	/** the length of the name of a dictionary. */
+	private static final int DICTIDLEN = 8;
+	
+	/** the buffer of the output of an export. */
+	private static final int EXPORTBUFFER = 1 << 20;
+	
+	/** the longest chain of deltas, 0 to store every file in full. */
+	private static int deltaChain = 0;
+	
+	/** the deflate level to start with. */
+	private static int deflateLevel = CompressionUtil.DEFAULTLEVEL;
+	
+	/** step the deflate level while backing up or keep it. */
+	private static boolean adaptiveLevel = true;
+	
+	/** the time a backup should take at most in seconds, 0 for no limit. */
+	private static long backupWindow = 0;
+	
 	/** backup list. */
 	private ArrayList<String> backups;
 	
@@ -70,6 +174,162 @@ public final class BackupManager implements Serializable {
 		treeRestorer = tr;
 	}
 	
+	/**
+	 * Sets the directory to store backups.
+	 * Call before {@link #getManager()}.
+	 * @param dir the directory
+	 */
+	public static void setBackupDir(final String dir) {
+		backupDir = dir;
+	}
+	
+	/**
+	 * Gets the directory to store backups.
+	 * @return the directory
+	 */
+	public static String getBackupDir() {
+		return backupDir;
+	}
+	
+	/**
+	 * Sets how files are ingested.
+	 * Use IO when the source or the repository is on high-latency storage
+	 * like NFS, CPU for local disks.
+	 * @param mode the mode
+	 * @param threads the number of threads in mode IO
+	 * @param bytes the bound of the bytes of files ingested at once
+	 */
+	public static void setIngest(final BlobIngester.Mode mode, 
+			final int threads, final long bytes) {
+		ingestMode = mode;
+		ingestThreads = threads;
+		ingestBytes = bytes;
+	}
+	
+	/**
+	 * Sets the threads of each ingest stage, instead of the defaults
+	 * of the mode.
+	 * @param hash the threads reading and hashing files
+	 * @param compress the threads deflating files
+	 * @param write the threads writing objects
+	 * @param queue the capacity of the queue of each stage
+	 */
+	public static void setIngestStages(final int hash, final int compress,
+			final int write, final int queue) {
+		stageThreads = new int[] {hash, compress, write};
+		stageQueue = queue;
+	}
+	
+	/**
+	 * Stores changed small files as deltas to their version in the
+	 * previous backup. Restoring a delta reads its whole chain,
+	 * so the chain is cut by a full copy now and then.
+	 * @param maxChain the longest chain of deltas, 0 for no deltas
+	 */
+	public static void setDelta(final int maxChain) {
+		deltaChain = Math.min(maxChain, Blob.MAXCHAIN);
+	}
+	
+	/**
+	 * Sets the deflate level of small files.
+	 * @param level the level to start with, 0 only stores, 9 is best
+	 * @param adaptive step the level while backing up, down while
+	 *        deflate is the bottleneck, up while the disk is
+	 * @param windowSeconds the time a backup should take at most,
+	 *        0 for no limit. The level steps down, at last to storing 
+	 *        only, while the backup is behind.
+	 */
+	public static void setCompression(final int level, 
+			final boolean adaptive, final long windowSeconds) {
+		deflateLevel = level;
+		adaptiveLevel = adaptive;
+		backupWindow = windowSeconds;
+	}
+	
+	/**
+	 * Bounds the cost of backups, so they do not starve the workloads
+	 * of the host. Takes effect at once, also while a backup runs,
+	 * see {@link Throttle}.
+	 * @param readBytesPerSecond the bytes read from files per second
+	 * @param writeBytesPerSecond the bytes written to the repository
+	 *        per second
+	 * @param opsPerSecond the I/O operations per second
+	 * @param workers the ingest threads working at once
+	 */
+	public static void setThrottle(final long readBytesPerSecond, 
+			final long writeBytesPerSecond, final long opsPerSecond, 
+			final int workers) {
+		Throttle throttle = Throttle.getThrottle();
+		throttle.setReadRate(readBytesPerSecond);
+		throttle.setWriteRate(writeBytesPerSecond);
+		throttle.setOpRate(opsPerSecond);
+		throttle.setWorkers(workers);
+	}
+	
+	/**
+	 * Sets how restores check files. Every file is hashed as it is
+	 * restored and compared to its checksum.
+	 * @param failOnMismatch a mismatch fails the whole restore,
+	 *        or is only reported and the restore goes on
+	 * @param dryRun restore to nowhere, only checking that the backup
+	 *        can be restored
+	 */
+	public static void setRestoreCheck(final boolean failOnMismatch, 
+			final boolean dryRun) {
+		Blob.setRestoreCheck(failOnMismatch, dryRun);
+	}
+	
+	/**
+	 * Sets the bytes of objects read ahead of the files being restored,
+	 * see {@link RestorePlan}.
+	 * @param bytes the bytes, 0 for no read ahead
+	 */
+	public static void setRestorePrefetch(final long bytes) {
+		RestorePlan.setPrefetch(bytes);
+	}
+	
+	/**
+	 * Sets how a backup records its progress. The files done are
+	 * written to a checkpoint now and then, so a backup which died
+	 * resumes without reading them again, see {@link Checkpoint}.
+	 * @param seconds the time between two checkpoints
+	 * @param resume resume an interrupted backup or start over
+	 */
+	public static void setCheckpoint(final long seconds, 
+			final boolean resume) {
+		checkpointSeconds = seconds;
+		resumeBackup = resume;
+	}
+	
+	/**
+	 * Creates the ingester of a backup.
+	 * @param expectedBytes the bytes expected to be scanned
+	 * @return the ingester
+	 */
+	private static BlobIngester newIngester(final long expectedBytes) {
+		BlobIngester ingester;
+		if (stageThreads == null || ingestMode == BlobIngester.Mode.SERIAL) {
+			ingester = new BlobIngester(ingestMode, ingestThreads, 
+					ingestBytes);
+		} else {
+			ingester = new BlobIngester(ingestMode, stageThreads[0], 
+					stageThreads[1], stageThreads[2], stageQueue, 
+					ingestBytes);
+		}
+		ingester.setDeltaChain(deltaChain);
+		ingester.setLevel(deflateLevel, adaptiveLevel, 
+				backupWindow * 1000L, expectedBytes);
+		return ingester;
+	}
+	
+	/**
+	 * Gets how files are ingested.
+	 * @return the mode
+	 */
+	public static BlobIngester.Mode getIngestMode() {
+		return ingestMode;
+	}
+	
 	/** get file path. 
 	 * @return the path
 	 */
@@ -77,6 +337,13 @@ public final class BackupManager implements Serializable {
 		return Paths.get(backupDir + "/" + managerFileName);
 	}
 	
+	/** get lock file path.
+	 * @return the path
+	 */
+	private static Path getLockPath() {
+		return Paths.get(backupDir + "/" + lockFileName);
+	}
+	
 	/** get file path of backup.
 	 * 
 	 * @param name backup name
@@ -208,6 +475,18 @@ public final class BackupManager implements Serializable {
 		save();
 	}
 	
+	/**
+	 * add an include or exclude rule to a backup map.
+	 * @param path filepath of the map
+	 * @param rule the rule, like "- node_modules/"
+	 * @return success or not
+	 */
+	public boolean addBackupRule(final String path, final String rule) {
+		boolean flag = treeBuilder.addRule(Paths.get(path), rule);
+		save();
+		return flag;
+	}
+	
 	/**
 	 * remove a backup map.
 	 * @param path filepath
@@ -234,36 +513,180 @@ public final class BackupManager implements Serializable {
 	
 	/**
 	 * Create new Backup.
+	 * A backup which died resumes from its checkpoint, see
+	 * {@link #setCheckpoint(long, boolean)}.
 	 * @param message the message
 	 * @return success or not
 	 */
 	public boolean newBackup(final String message) {
+		Metrics metrics = Metrics.start("backup");
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		String last = null;
+		Tree previous = null;
+		if (backups.size() > 0) {
+			Backup lastBackup = getBackup(backups.get(backups.size() - 1));
+			if (lastBackup != null) {
+				last = lastBackup.getStats();
+				if (deltaChain > 0) {
+					previous = loadTree(lastBackup.getTreeChecksum());
+				}
+			}
+		}
+		reporter.begin("backup", 
+				Metrics.parse(last, Metrics.Counter.FILES_SCANNED),
+				Metrics.parse(last, Metrics.Counter.BYTES_SCANNED));
+		GroupCommit.begin(syncBatchFiles, syncBatchBytes);
+		BlobIngester ingester = newIngester(
+				Metrics.parse(last, Metrics.Counter.BYTES_SCANNED));
 		Tree tree = null;
+		Checkpoint checkpoint = null;
+		boolean flag = true;
 		try {
-			tree = Tree.create(treeBuilder);
+			try {
+				checkpoint = claimCheckpoint();
+				if (checkpoint.getResumed() > 0) {
+					reporter.info("Resume backup, " 
+							+ checkpoint.getResumed() + " files done");
+				}
+				ingester.setCheckpoint(checkpoint);
+				tree = Tree.create(treeBuilder, ingester, previous);
+			} finally {
+				ingester.shutdown();
+				reporter.end();
+			}
+			treeBuilder.save();
+			tree.save();
 		} catch (IOException e) {
 			e.printStackTrace();
-			return false;
+			flag = false;
+		} finally {
+			// objects must be on disk before a backup refers to them
+			try {
+				GroupCommit.end();
+			} catch (IOException e) {
+				e.printStackTrace();
+				flag = false;
+			}
+			// a checkpoint which cannot be written only costs a resume
+			if (checkpoint != null) {
+				try {
+					checkpoint.flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
 		}
 		try {
-			treeBuilder.save();
-			tree.save();
+			if (flag) {
+				flag = saveBackup(new Backup(treeBuilder.getChecksum(), 
+						tree.getChecksum(), message), metrics, checkpoint);
+			}
+		} finally {
+			if (checkpoint != null) {
+				try {
+					checkpoint.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return flag;
+	}
+	
+	/**
+	 * Claims the checkpoint of the backup, under the lock of the backup
+	 * directory. A backup which died left its checkpoint, the next backup
+	 * with the same tree builder resumes from it. Backups running at once
+	 * have checkpoints of their own.
+	 * @return the checkpoint
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Checkpoint claimCheckpoint() throws IOException {
+		ProcessLock lock = ProcessLock.lock(getLockPath());
+		try {
+			return Checkpoint.claim(Paths.get(backupDir), 
+					checkpointFileName + "-" + treeBuilder.getChecksum(),
+					checkpointSeconds, resumeBackup);
+		} finally {
+			lock.close();
+		}
+	}
+	
+	/**
+	 * Saves a backup and adds it to the backup list, under the lock of
+	 * the backup directory. Its checkpoint is deleted then.
+	 * @param backup the backup
+	 * @param metrics the metrics of the backup
+	 * @param checkpoint the checkpoint of the backup
+	 * @return success or not
+	 */
+	private boolean saveBackup(final Backup backup, final Metrics metrics,
+			final Checkpoint checkpoint) {
+		metrics.finish();
+		backup.setStats(metrics.toJson());
+		try {
+			ProcessLock lock = ProcessLock.lock(getLockPath());
+			try {
+				merge();
+				String name = backup.getDate();
+				for (int i = 1; backups.contains(name) 
+						|| Files.exists(getPath(name)); i++) {
+					name = backup.getDate() + "_" + i;
+				}
+				backup.setName(name);
+				backup.save(getPath(name));
+				backups.add(name);
+				save(getPath());
+				try {
+					checkpoint.delete();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			} finally {
+				lock.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		}
-		
-		Backup backup = new Backup(treeBuilder.getChecksum(), 
-				tree.getChecksum(), message);
+		return true;
+	}
+	
+	/**
+	 * Loads the tree of a backup.
+	 * @param checksum the checksum of the tree
+	 * @return the tree, null if it cannot be loaded
+	 */
+	private static Tree loadTree(final String checksum) {
 		try {
-			backup.save(getPath(backup.getDate()));
+			BackupObject o = BackupObject.load(checksum);
+			if (o instanceof Tree) {
+				return (Tree) o;
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
-			return false;
 		}
-		backups.add(backup.getDate());
-		save();
-		return true;
+		return null;
+	}
+	
+	/**
+	 * Adds the backups other processes have saved to the backup list.
+	 * The caller holds the lock.
+	 */
+	private void merge() {
+		if (!Files.exists(getPath())) {
+			return;
+		}
+		BackupManager saved = load();
+		if (saved == null) {
+			return;
+		}
+		for (String name:saved.backups) {
+			if (!backups.contains(name)) {
+				backups.add(name);
+			}
+		}
+		Collections.sort(backups);
 	}
 	
 	/**
@@ -271,6 +694,7 @@ public final class BackupManager implements Serializable {
 	 * @return the manager
 	 */
 	public static BackupManager getManager() {
+		loadObjectDirs();
 		Path path = getPath();
 		if (Files.exists(path)) {
 			return load();
@@ -306,7 +730,31 @@ public final class BackupManager implements Serializable {
 	 * @param date the date of the backup
 	 */
 	public void showBackup(final String date) {
-		System.out.println(getBackup(date).toString());
+		showBackup(date, -1, null);
+	}
+	
+	/**
+	 * Show backup in console, streaming the tree.
+	 * @param date the date of the backup
+	 * @param depth the deepest tree to list the content of,
+	 *        negative for no limit
+	 * @param pattern the glob of the blobs to list, null for all
+	 */
+	public void showBackup(final String date, final int depth, 
+			final String pattern) {
+		PathMatcher filter = null;
+		if (pattern != null) {
+			filter = FileSystems.getDefault().getPathMatcher(
+					"glob:" + pattern);
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+		try {
+			getBackup(date).write(out, depth, filter);
+			out.write("\n");
+			out.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	/**
@@ -315,22 +763,418 @@ public final class BackupManager implements Serializable {
 	 * @return success or not
 	 */
 	public boolean recover(final String date) {
-		return getBackup(date).recover(treeRestorer);
+		Metrics metrics = Metrics.start("restore");
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		Backup backup = getBackup(date);
+		reporter.begin("restore", 
+				Metrics.parse(backup.getStats(), 
+						Metrics.Counter.FILES_SCANNED),
+				Metrics.parse(backup.getStats(), 
+						Metrics.Counter.BYTES_SCANNED));
+		boolean flag = backup.recover(treeRestorer);
+		metrics.finish();
+		reporter.end();
+		reporter.info("Stats: " + metrics.toJson());
+		reporter.flush();
+		return flag;
+	}
+	
+	/**
+	 * Opens a file of a backup to read it in place, at any position,
+	 * without restoring it.
+	 * @param date the date of the backup
+	 * @param path the nickname path of the file, like "nick/dir/file"
+	 * @return the channel
+	 * @throws IOException if the backup or the file does not exist or 
+	 *         an I/O error occurs
+	 */
+	public SeekableByteChannel openFile(final String date, 
+			final String path) throws IOException {
+		Backup backup = getBackup(date);
+		if (backup == null) {
+			throw new NoSuchFileException(date, null, "No such backup");
+		}
+		return backup.open(path);
+	}
+	
+	/**
+	 * Opens a file of a backup to read it as a stream, without 
+	 * restoring it.
+	 * @param date the date of the backup
+	 * @param path the nickname path of the file, like "nick/dir/file"
+	 * @return the stream
+	 * @throws IOException if the backup or the file does not exist or 
+	 *         an I/O error occurs
+	 */
+	public InputStream openStream(final String date, final String path) 
+			throws IOException {
+		return Channels.newInputStream(openFile(date, path));
+	}
+	
+	/**
+	 * Exports a backup as an archive, without restoring it to disk.
+	 * @param date the date of the backup
+	 * @param format "tar" or "zip"
+	 * @param output the archive file, "-" for the standard output
+	 * @return success or not
+	 */
+	public boolean export(final String date, final String format, 
+			final String output) {
+		boolean zip = "zip".equalsIgnoreCase(format);
+		if (!zip && !"tar".equalsIgnoreCase(format)) {
+			throw new IllegalArgumentException("Unknown format " + format);
+		}
+		Backup backup = getBackup(date);
+		if (backup == null) {
+			return false;
+		}
+		Metrics metrics = Metrics.start("export");
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		reporter.begin("export", 
+				Metrics.parse(backup.getStats(), 
+						Metrics.Counter.FILES_SCANNED),
+				Metrics.parse(backup.getStats(), 
+						Metrics.Counter.BYTES_SCANNED));
+		boolean flag = true;
+		boolean stdout = "-".equals(output);
+		try (OutputStream out = new BufferedOutputStream(stdout 
+				? new FileOutputStream(FileDescriptor.out) 
+				: new FileOutputStream(output), EXPORTBUFFER)) {
+			ArchiveWriter writer = zip 
+					? new ZipWriter(out, backup.getTime()) 
+					: new TarWriter(out, backup.getTime());
+			backup.export(writer);
+		} catch (IOException e) {
+			e.printStackTrace();
+			flag = false;
+		}
+		metrics.finish();
+		reporter.end();
+		reporter.info("Stats: " + metrics.toJson());
+		reporter.flush();
+		return flag;
+	}
+	
+	/**
+	 * Counts the objects a set of backups refers to, and the bytes only
+	 * they refer to, which deleting them frees.
+	 * @param dates the dates of the backups in the set
+	 * @return the report, null if a backup cannot be loaded
+	 */
+	public SpaceReport spaceReport(final List<String> dates) {
+		Metrics metrics = Metrics.start("space");
+		SpaceReport report = new SpaceReport();
+		try {
+			for (String date:getBackupList()) {
+				if (!dates.contains(date)) {
+					Backup backup = getBackup(date);
+					if (backup == null) {
+						return null;
+					}
+					report.exclude(backup);
+				}
+			}
+			for (String date:dates) {
+				Backup backup = getBackup(date);
+				if (backup == null) {
+					return null;
+				}
+				report.include(backup);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			metrics.finish();
+		}
+		return report;
+	}
+	
+	/**
+	 * Verifies the objects of the repository and the objects all backups
+	 * refer to.
+	 * @param threads the number of workers
+	 * @param bytesPerSecond the read limit, 0 means unlimited
+	 * @param resume continue from the last checkpoint or start over
+	 * @return no problem found or not
+	 */
+	public boolean scrub(final int threads, final long bytesPerSecond, 
+			final boolean resume) {
+		Scrubber scrubber = new Scrubber(threads, bytesPerSecond, 
+				Paths.get(backupDir + "/" + scrubFileName));
+		boolean flag = true;
+		for (String date:backups) {
+			Backup backup = getBackup(date);
+			if (backup == null || !scrubber.checkBackup(date, backup)) {
+				flag = false;
+			}
+		}
+		try {
+			if (!scrubber.scrub(resume)) {
+				flag = false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		return flag;
+	}
+	
+	/**
+	 * Copies this repository to a second location, transferring only
+	 * what the target misses.
+	 * All objects are copied and flushed first, then the missing backups,
+	 * then the backup list of the target is merged under its lock, so
+	 * the target never lists a backup whose objects are not there.
+	 * @param targetBackupDir the backup directory of the target
+	 * @param targetObjectDir the object directory of the target
+	 * @param threads the number of workers copying objects
+	 * @return success or not
+	 */
+	public boolean replicate(final String targetBackupDir, 
+			final String targetObjectDir, final int threads) {
+		Metrics metrics = Metrics.start("replicate");
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		Replicator replicator = new Replicator(
+				getObjectPaths(), Paths.get(targetObjectDir), threads);
+		boolean flag;
+		GroupCommit.begin(syncBatchFiles, syncBatchBytes);
+		try {
+			try {
+				flag = replicator.replicate();
+			} finally {
+				GroupCommit.end();
+			}
+			if (!flag) {
+				return false;
+			}
+			replicateDictionaries(targetObjectDir);
+			Path dir = Paths.get(targetBackupDir);
+			Files.createDirectories(dir);
+			for (String name:backups) {
+				Path to = dir.resolve(name);
+				if (!Files.exists(to)) {
+					Path temp = GroupCommit.createTemp(to);
+					Files.copy(getPath(name), temp, 
+							StandardCopyOption.REPLACE_EXISTING);
+					GroupCommit.commitNow(temp, to);
+				}
+			}
+			Path managerPath = dir.resolve(managerFileName);
+			ProcessLock lock = ProcessLock.lock(dir.resolve(lockFileName));
+			try {
+				BackupManager target = this;
+				if (Files.exists(managerPath)) {
+					target = load(managerPath);
+					for (String name:backups) {
+						if (!target.backups.contains(name)) {
+							target.backups.add(name);
+						}
+					}
+					Collections.sort(target.backups);
+				}
+				target.save(managerPath);
+			} finally {
+				lock.close();
+			}
+		} catch (IOException | ClassNotFoundException e) {
+			e.printStackTrace();
+			return false;
+		}
+		metrics.finish();
+		reporter.info(String.format(
+				"Replicated %d of %d objects, %d bytes, %d backups", 
+				replicator.getCopied(), replicator.getObjects(), 
+				replicator.getBytes(), backups.size()));
+		reporter.flush();
+		return true;
+	}
+	
+	/**
+	 * Gets the object directories as paths.
+	 * @return the paths
+	 */
+	private static Path[] getObjectPaths() {
+		String[] dirs = BackupObject.getObjectDirs();
+		Path[] paths = new Path[dirs.length];
+		for (int i = 0; i < dirs.length; i++) {
+			paths[i] = Paths.get(dirs[i]);
+		}
+		return paths;
+	}
+	
+	/**
+	 * Uses the object directories listed in the setting file,
+	 * one per line. Without the file the default directory is used.
+	 * Object directories a caller has set are kept.
+	 */
+	private static void loadObjectDirs() {
+		if (BackupObject.isObjectDirSet() && !Arrays.equals(
+				BackupObject.getObjectDirs(), settingObjectDirs)) {
+			return;
+		}
+		Path path = Paths.get(settingDir + "/" + objectSetting);
+		if (!Files.exists(path)) {
+			return;
+		}
+		try {
+			ArrayList<String> dirs = new ArrayList<String>();
+			for (String line:Files.readAllLines(path, 
+					StandardCharsets.UTF_8)) {
+				if (!line.trim().isEmpty()) {
+					dirs.add(line.trim());
+				}
+			}
+			if (!dirs.isEmpty()) {
+				settingObjectDirs = dirs.toArray(new String[dirs.size()]);
+				BackupObject.setObjectDirs(settingObjectDirs);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Adds an object directory, e.g. on a new disk, and saves the list
+	 * to the setting file. Objects are not moved, call 
+	 * {@link #rebalance(int)} before the next backup or restore.
+	 * @param dir the object directory
+	 * @return success or not
+	 */
+	public boolean addObjectDir(final String dir) {
+		ArrayList<String> dirs = new ArrayList<String>();
+		Collections.addAll(dirs, BackupObject.getObjectDirs());
+		if (dirs.contains(dir)) {
+			return true;
+		}
+		dirs.add(dir);
+		Path path = Paths.get(settingDir + "/" + objectSetting);
+		StringBuilder sb = new StringBuilder();
+		for (String d:dirs) {
+			sb.append(d).append('\n');
+		}
+		try {
+			Files.createDirectories(Paths.get(dir));
+			Path temp = GroupCommit.createTemp(path);
+			Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+			GroupCommit.commitNow(temp, path);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		settingObjectDirs = dirs.toArray(new String[dirs.size()]);
+		BackupObject.setObjectDirs(settingObjectDirs);
+		return true;
+	}
+	
+	/**
+	 * Moves the objects to the object directories they belong to,
+	 * after object directories were added.
+	 * @param threads the number of workers
+	 * @return success or not
+	 */
+	public boolean rebalance(final int threads) {
+		Metrics metrics = Metrics.start("rebalance");
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		Rebalancer rebalancer = new Rebalancer(threads);
+		boolean flag;
+		GroupCommit.begin(syncBatchFiles, syncBatchBytes);
+		try {
+			try {
+				flag = rebalancer.rebalance();
+			} finally {
+				GroupCommit.end();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		metrics.finish();
+		reporter.info(String.format("Rebalanced %d objects, %d bytes", 
+				rebalancer.getMoved(), rebalancer.getBytes()));
+		reporter.flush();
+		return flag;
+	}
+	
+	/**
+	 * Trains a preset dictionary for each file extension from the small
+	 * files of the last backup. Later backups compress small files with
+	 * them, objects already stored are kept as they are.
+	 * @param samples the most files sampled for each extension
+	 * @param size the size of each dictionary, at most 32768
+	 * @return success or not
+	 */
+	public boolean trainDictionaries(final int samples, final int size) {
+		if (backups.isEmpty()) {
+			ProgressReporter.getReporter().error("No backup to train from");
+			return false;
+		}
+		Backup backup = getBackup(backups.get(backups.size() - 1));
+		Tree tree = backup == null ? null 
+				: loadTree(backup.getTreeChecksum());
+		if (tree == null) {
+			return false;
+		}
+		try {
+			int n = Dictionaries.train(tree, samples, size);
+			ProgressReporter.getReporter().info("Trained " + n 
+					+ " dictionaries");
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		ProgressReporter.getReporter().flush();
+		return true;
+	}
+	
+	/**
+	 * Copies the dictionaries the target misses, and the index.
+	 * @param targetObjectDir the object directory of the target
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void replicateDictionaries(final String targetObjectDir)
+			throws IOException {
+		Path from = CompressionUtil.getDictionaryDir();
+		if (!Files.isDirectory(from)) {
+			return;
+		}
+		Path to = Paths.get(targetObjectDir).resolve(from.getFileName());
+		Files.createDirectories(to);
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(from)) {
+			for (Path p:ds) {
+				String name = p.getFileName().toString();
+				if (name.endsWith(GroupCommit.TEMPSUFFIX)) {
+					continue;
+				}
+				// dictionaries never change, the index does
+				if (Scrubber.isHex(name, DICTIDLEN) 
+						&& Files.exists(to.resolve(name))) {
+					continue;
+				}
+				Path temp = GroupCommit.createTemp(to.resolve(name));
+				Files.copy(p, temp, StandardCopyOption.REPLACE_EXISTING);
+				GroupCommit.commitNow(temp, to.resolve(name));
+			}
+		}
 	}
 	
 	/**
 	 * Saves the manager to file.
 	 * If the directory not exist, this method will create it.
+	 * The file is replaced atomically.
 	 * 
 	 * @param path the file save to
 	 * @throws IOException if an I/O error occurs
 	 */
 	public void save(final Path path) throws IOException {
-		Files.createDirectories(path.getParent());
-		FileOutputStream bs = new FileOutputStream(path.toString());
+		Files.createDirectories(path.toAbsolutePath().getParent());
+		Path temp = GroupCommit.createTemp(path);
+		FileOutputStream bs = new FileOutputStream(temp.toString());
         ObjectOutputStream os = new ObjectOutputStream(bs);   
         os.writeObject(this);
+        os.flush();
         bs.close();
+        GroupCommit.commitNow(temp, path);
 	}
 	
 	/**
@@ -352,10 +1196,17 @@ public final class BackupManager implements Serializable {
 	
 	/**
 	 * Saves the manager.
+	 * Backups other processes have added meanwhile are kept.
 	 */
 	public void save() {
 		try {
-			save(getPath());
+			ProcessLock lock = ProcessLock.lock(getLockPath());
+			try {
+				merge();
+				save(getPath());
+			} finally {
+				lock.close();
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
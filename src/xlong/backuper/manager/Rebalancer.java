@@ -0,0 +1,179 @@
+package xlong.backuper.manager;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import xlong.backuper.object.BackupObject;
+import xlong.backuper.util.GroupCommit;
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.ProgressReporter;
+
+/**
+ * A rebalancer moves every fan-out directory to the object directory
+ * it belongs to, see {@link BackupObject#setObjectDirs(String...)}.
+ * <p>
+ * Objects are renamed when both directories are on one file system and
+ * copied otherwise. Copies are flushed one fan-out directory at a time
+ * by {@link GroupCommit} before their sources are deleted, so an
+ * interrupted rebalance loses nothing and the next one just goes on.
+ * No backup may run meanwhile, it would look for objects where they
+ * are not yet.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class Rebalancer {
+
+	/** the length of a checksum. */
+	private static final int CHECKSUMLEN = 40;
+
+	/** the length of the fan-out directory name. */
+	private static final int PREFIXLEN = 2;
+
+	/** the number of workers. */
+	private final int threads;
+
+	/** the number of objects moved. */
+	private final AtomicLong moved = new AtomicLong();
+
+	/** the number of bytes moved. */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * @param workers the number of workers
+	 */
+	public Rebalancer(final int workers) {
+		threads = workers;
+	}
+
+	/**
+	 * Gets the number of objects moved.
+	 * @return the number of objects
+	 */
+	public long getMoved() {
+		return moved.get();
+	}
+
+	/**
+	 * Gets the number of bytes moved.
+	 * @return the number of bytes
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Moves the objects which are not in their object directory.
+	 * @return no move failed or not
+	 * @throws IOException if a directory cannot be listed
+	 */
+	public boolean rebalance() throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		boolean flag = true;
+		try {
+			for (String root:BackupObject.getObjectDirs()) {
+				Path source = Paths.get(root);
+				for (String prefix:Replicator.list(source, PREFIXLEN)) {
+					Path owner = Paths.get(BackupObject.getObjectDir(prefix));
+					if (owner.equals(source)) {
+						continue;
+					}
+					if (!move(pool, source.resolve(prefix),
+							owner.resolve(prefix))) {
+						flag = false;
+					}
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return flag;
+	}
+
+	/**
+	 * Moves the objects of a fan-out directory and deletes it if it is
+	 * empty then.
+	 * @param pool the workers
+	 * @param from the fan-out directory
+	 * @param to the fan-out directory in the object directory it belongs to
+	 * @return no move failed or not
+	 * @throws IOException if a directory cannot be listed or flushed
+	 */
+	private boolean move(final ExecutorService pool, final Path from,
+			final Path to) throws IOException {
+		final ProgressReporter reporter = ProgressReporter.getReporter();
+		final Metrics metrics = Metrics.getCurrent();
+		Files.createDirectories(to);
+		List<Future<Path>> futures = new ArrayList<>();
+		for (final String name:Replicator.list(from,
+				CHECKSUMLEN - PREFIXLEN)) {
+			futures.add(pool.submit(new Callable<Path>() {
+				@Override
+				public Path call() throws IOException {
+					Path source = from.resolve(name);
+					Path target = to.resolve(name);
+					if (GroupCommit.exists(target)) {
+						return source;
+					}
+					long size = Files.size(source);
+					try {
+						Files.move(source, target,
+								StandardCopyOption.ATOMIC_MOVE);
+						source = null;
+					} catch (AtomicMoveNotSupportedException e) {
+						Replicator.copy(source, target);
+					}
+					moved.incrementAndGet();
+					bytes.addAndGet(size);
+					metrics.add(Metrics.Counter.OBJECTS_WRITTEN, 1);
+					metrics.add(Metrics.Counter.BYTES_WRITTEN, size);
+					return source;
+				}
+			}));
+		}
+		List<Path> copied = new ArrayList<>();
+		boolean flag = true;
+		for (Future<Path> f:futures) {
+			try {
+				Path source = f.get();
+				if (source != null) {
+					copied.add(source);
+				}
+			} catch (ExecutionException e) {
+				reporter.error("Rebalance: " + e.getCause());
+				flag = false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+		// the copies must be on disk before their sources are deleted
+		GroupCommit.flush();
+		GroupCommit.forceDirectory(to);
+		for (Path source:copied) {
+			Files.deleteIfExists(source);
+		}
+		GroupCommit.forceDirectory(from);
+		try {
+			Files.deleteIfExists(from.resolve(GroupCommit.LOCKFILE));
+			Files.deleteIfExists(from);
+		} catch (DirectoryNotEmptyException e) {
+			// temporary files of a running backup, or failed moves
+			reporter.info("Rebalance kept " + from);
+		}
+		return flag;
+	}
+}
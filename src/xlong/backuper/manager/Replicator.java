@@ -0,0 +1,224 @@
+package xlong.backuper.manager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import xlong.backuper.util.GroupCommit;
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.ProgressReporter;
+
+/**
+ * A replicator copies the objects a target repository misses
+ * from a source repository.
+ * <p>
+ * Both object directories are listed one fan-out directory at a time,
+ * the sorted names are merged, and only the names missing in the target
+ * are copied, by a pool of workers. No object is stat'ed, so the cost
+ * follows the number of new objects, not the size of the repository.
+ * A source striped over several object directories is read from all
+ * of them into the one target directory.
+ * Copies are written to temporary files and committed by
+ * {@link GroupCommit}, so an interrupted replication leaves no
+ * truncated object and the next one just goes on.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class Replicator {
+
+	/** the length of a checksum. */
+	private static final int CHECKSUMLEN = 40;
+
+	/** the length of the fan-out directory name. */
+	private static final int PREFIXLEN = 2;
+
+	/** the source object directories. */
+	private final Path[] sources;
+
+	/** the target object directory. */
+	private final Path target;
+
+	/** the number of workers. */
+	private final int threads;
+
+	/** the number of objects in the source. */
+	private final AtomicLong objects = new AtomicLong();
+
+	/** the number of objects copied. */
+	private final AtomicLong copied = new AtomicLong();
+
+	/** the number of bytes copied. */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * @param sourceDirs the source object directories
+	 * @param targetDir the target object directory
+	 * @param workers the number of workers
+	 */
+	public Replicator(final Path[] sourceDirs, final Path targetDir,
+			final int workers) {
+		sources = sourceDirs.clone();
+		target = targetDir;
+		threads = workers;
+	}
+
+	/**
+	 * Gets the number of objects in the source.
+	 * @return the number of objects
+	 */
+	public long getObjects() {
+		return objects.get();
+	}
+
+	/**
+	 * Gets the number of objects copied.
+	 * @return the number of objects
+	 */
+	public long getCopied() {
+		return copied.get();
+	}
+
+	/**
+	 * Gets the number of bytes copied.
+	 * @return the number of bytes
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Lists the sorted names in a directory that pass a filter.
+	 * A missing directory has no names.
+	 * @param dir the directory
+	 * @param length the length of the names, they must be hexadecimal
+	 * @return the names
+	 * @throws IOException if an I/O error occurs
+	 */
+	static List<String> list(final Path dir, final int length)
+			throws IOException {
+		List<String> names = new ArrayList<>();
+		if (!Files.isDirectory(dir)) {
+			return names;
+		}
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (Path p:ds) {
+				String name = p.getFileName().toString();
+				if (Scrubber.isHex(name, length)) {
+					names.add(name);
+				}
+			}
+		}
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * Copies the objects the target misses.
+	 * @return no copy failed or not
+	 * @throws IOException if a directory cannot be listed
+	 */
+	public boolean replicate() throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		boolean flag = true;
+		try {
+			for (Path source:sources) {
+				if (!replicate(pool, source)) {
+					flag = false;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return flag;
+	}
+
+	/**
+	 * Copies the objects of one source directory the target misses.
+	 * @param pool the workers
+	 * @param source the source object directory
+	 * @return no copy failed or not
+	 * @throws IOException if a directory cannot be listed
+	 */
+	private boolean replicate(final ExecutorService pool, final Path source)
+			throws IOException {
+		final ProgressReporter reporter = ProgressReporter.getReporter();
+		final Metrics metrics = Metrics.getCurrent();
+		boolean flag = true;
+		for (String prefix:list(source, PREFIXLEN)) {
+			final Path from = source.resolve(prefix);
+			final Path to = target.resolve(prefix);
+			List<String> have = list(to, CHECKSUMLEN - PREFIXLEN);
+			List<String> want = list(from, CHECKSUMLEN - PREFIXLEN);
+			objects.addAndGet(want.size());
+			List<Future<Void>> futures = new ArrayList<>();
+			int i = 0;
+			for (final String name:want) {
+				while (i < have.size()
+						&& have.get(i).compareTo(name) < 0) {
+					i++;
+				}
+				if (i < have.size() && have.get(i).equals(name)) {
+					continue;
+				}
+				Files.createDirectories(to);
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						long size = copy(from.resolve(name),
+								to.resolve(name));
+						copied.incrementAndGet();
+						bytes.addAndGet(size);
+						metrics.add(Metrics.Counter.OBJECTS_WRITTEN, 1);
+						metrics.add(Metrics.Counter.BYTES_WRITTEN, size);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f:futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					reporter.error("Replicate: " + e.getCause());
+					flag = false;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+		}
+		return flag;
+	}
+
+	/**
+	 * Copies a file durably.
+	 * @param from the source file
+	 * @param to the target file
+	 * @return the number of bytes copied
+	 * @throws IOException if an I/O error occurs
+	 */
+	static long copy(final Path from, final Path to) throws IOException {
+		long t0 = System.nanoTime();
+		Path temp = GroupCommit.createTemp(to);
+		long size;
+		try (InputStream in = Files.newInputStream(from)) {
+			size = Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Metrics.getCurrent().time(Metrics.Phase.WRITE,
+				System.nanoTime() - t0);
+		GroupCommit.commit(temp, to, size);
+		return size;
+	}
+}
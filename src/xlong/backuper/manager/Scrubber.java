@@ -0,0 +1,553 @@
+package xlong.backuper.manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.InflaterInputStream;
+
+import xlong.backuper.object.BackupObject;
+import xlong.backuper.object.Blob;
+import xlong.backuper.object.Tree;
+import xlong.backuper.util.CompressionUtil;
+import xlong.backuper.util.GroupCommit;
+import xlong.backuper.util.HashingOutputStream;
+import xlong.backuper.util.ProgressReporter;
+import xlong.backuper.util.RateLimiter;
+import xlong.backuper.util.SHA1Util;
+import xlong.backuper.util.SparseUtil;
+import xlong.backuper.util.ThrottledInputStream;
+
+/**
+ * A scrubber verifies the objects in the repository.
+ * <p>
+ * Every object is streamed, inflated if it is compressed, and hashed.
+ * The checksum must be the same as the name of the object.
+ * If the object is a tree, all blobs it refers to must exist.
+ * <p>
+ * Objects are verified one fan-out directory ("checksum[0-1]") at a time
+ * by a pool of workers. The read rate of all workers together is limited.
+ * After a fan-out directory is finished in every object directory, its
+ * name is written to the checkpoint file, so an interrupted scrub can
+ * resume from the next one.
+ * The checkpoint file is deleted when the scrub finishes.
+ * Temporary files left by interrupted writes are deleted once stale.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class Scrubber {
+
+	/** the length of a checksum. */
+	private static final int CHECKSUMLEN = 40;
+
+	/** the length of the fan-out directory name. */
+	private static final int PREFIXLEN = 2;
+
+	/** the first two bytes of a serialized java object. */
+	private static final int[] SERIALMAGIC = {0xac, 0xed};
+
+	/** the compression method deflate in a zlib header. */
+	private static final int ZLIBDEFLATE = 8;
+
+	/** a zlib header is a multiple of this number. */
+	private static final int ZLIBCHECK = 31;
+
+	/** the flag of a preset dictionary in a zlib header. */
+	private static final int ZLIBDICT = 0x20;
+
+	/** mask of the compression method in a zlib header. */
+	private static final int ZLIBMETHODMASK = 0x0f;
+
+	/** constant for changing byte into numbers. */
+	private static final int BYTEMASK = 0xff;
+
+	/** bits in a byte. */
+	private static final int BYTEBITS = 8;
+
+	/** temporary files older than this are stale, in milliseconds. */
+	private static final long STALETEMP = 24L * 60 * 60 * 1000;
+
+	/** size of buffers. */
+	private static final int BUFFERSIZE = 65536;
+
+	/** the number of workers. */
+	private final int threads;
+
+	/** limits the bytes read per second. */
+	private final RateLimiter limiter;
+
+	/** the checkpoint file. */
+	private final Path checkpoint;
+
+	/** the number of objects verified. */
+	private final AtomicLong objects = new AtomicLong();
+
+	/** the number of bytes verified. */
+	private final AtomicLong bytes = new AtomicLong();
+
+	/** the problems found. */
+	private final List<String> errors =
+			Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * Constructor.
+	 * @param workers the number of workers
+	 * @param bytesPerSecond the read limit, 0 means unlimited
+	 * @param checkpointPath the checkpoint file
+	 */
+	public Scrubber(final int workers, final long bytesPerSecond,
+			final Path checkpointPath) {
+		threads = workers;
+		limiter = new RateLimiter(bytesPerSecond);
+		checkpoint = checkpointPath;
+	}
+
+	/**
+	 * Gets the read limiter, so the rate can be changed while scrubbing.
+	 * @return the limiter
+	 */
+	public RateLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Gets the number of objects verified.
+	 * @return the number of objects
+	 */
+	public long getObjects() {
+		return objects.get();
+	}
+
+	/**
+	 * Gets the number of bytes verified.
+	 * @return the number of bytes
+	 */
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * Gets the problems found.
+	 * @return the problems
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Records a problem.
+	 * @param error the problem
+	 */
+	private void report(final String error) {
+		ProgressReporter.getReporter().error("Scrub: " + error);
+		errors.add(error);
+	}
+
+	/**
+	 * Checks the objects a backup refers to exist.
+	 * @param name the name of the backup
+	 * @param backup the backup
+	 * @return all exist or not
+	 */
+	public boolean checkBackup(final String name, final Backup backup) {
+		boolean flag = true;
+		if (!Files.exists(BackupObject.checksumToPath(
+				backup.getTreeChecksum()))) {
+			report("backup " + name + " misses tree "
+				+ backup.getTreeChecksum());
+			flag = false;
+		}
+		if (!Files.exists(BackupObject.checksumToPath(
+				backup.getTreeBuilderChecksum()))) {
+			report("backup " + name + " misses tree builder "
+				+ backup.getTreeBuilderChecksum());
+			flag = false;
+		}
+		return flag;
+	}
+
+	/**
+	 * Verifies all objects.
+	 * @param resume continue from the checkpoint or start over
+	 * @return no problem found or not
+	 * @throws IOException if the object directory cannot be listed
+	 */
+	public boolean scrub(final boolean resume) throws IOException {
+		String done = null;
+		if (resume && Files.exists(checkpoint)) {
+			done = readCheckpoint();
+			ProgressReporter.getReporter().info(
+					"Scrub resumes after " + done);
+		}
+		List<Path> dirs = new ArrayList<>();
+		for (String root:BackupObject.getObjectDirs()) {
+			Path objectDir = Paths.get(root);
+			if (!Files.isDirectory(objectDir)) {
+				continue;
+			}
+			try (DirectoryStream<Path> ds =
+					Files.newDirectoryStream(objectDir)) {
+				for (Path p:ds) {
+					if (isHex(p.getFileName().toString(), PREFIXLEN)
+							&& Files.isDirectory(p)) {
+						dirs.add(p);
+					}
+				}
+			}
+		}
+		// by fan-out directory first, the checkpoint only knows its name
+		Collections.sort(dirs, new Comparator<Path>() {
+			@Override
+			public int compare(final Path a, final Path b) {
+				int c = a.getFileName().compareTo(b.getFileName());
+				return c != 0 ? c : a.compareTo(b);
+			}
+		});
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (int i = 0; i < dirs.size(); i++) {
+				Path dir = dirs.get(i);
+				String prefix = dir.getFileName().toString();
+				if (done != null && prefix.compareTo(done) <= 0) {
+					continue;
+				}
+				Path owner = Paths.get(BackupObject.getObjectDir(prefix));
+				if (!owner.equals(dir.getParent())) {
+					report(dir + " belongs to " + owner + ", rebalance");
+				}
+				scrubDirectory(pool, dir);
+				// a prefix may be in several roots, all must be done
+				if (i + 1 == dirs.size() || !dirs.get(i + 1).getFileName()
+						.toString().equals(prefix)) {
+					writeCheckpoint(prefix);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		Files.deleteIfExists(checkpoint);
+		ProgressReporter.getReporter().info("Scrub verified " 
+				+ objects.get() + " objects, " + bytes.get() + " bytes, " 
+				+ errors.size() + " problems");
+		ProgressReporter.getReporter().flush();
+		return errors.isEmpty();
+	}
+
+	/**
+	 * Verifies all objects in a fan-out directory and waits for them.
+	 * @param pool the workers
+	 * @param dir the fan-out directory
+	 * @throws IOException if the directory cannot be listed
+	 */
+	private void scrubDirectory(final ExecutorService pool, final Path dir)
+			throws IOException {
+		final String prefix = dir.getFileName().toString();
+		List<Future<Boolean>> futures = new ArrayList<>();
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for (final Path p:ds) {
+				final String name = p.getFileName().toString();
+				if (name.endsWith(GroupCommit.TEMPSUFFIX)) {
+					deleteStale(p);
+					continue;
+				}
+				if (!isHex(name, CHECKSUMLEN - PREFIXLEN)) {
+					continue;
+				}
+				futures.add(pool.submit(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return verify(p, prefix + name);
+					}
+				}));
+			}
+		}
+		for (Future<Boolean> f:futures) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Scrub interrupted", e);
+			} catch (ExecutionException e) {
+				report(dir + ": " + e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Deletes a temporary file left by an interrupted write.
+	 * Recent temporary files may belong to a running backup and are kept.
+	 * @param temp the temporary file
+	 */
+	private void deleteStale(final Path temp) {
+		try {
+			long age = System.currentTimeMillis()
+					- Files.getLastModifiedTime(temp).toMillis();
+			if (age > STALETEMP) {
+				Files.deleteIfExists(temp);
+				ProgressReporter.getReporter().info(
+						"Scrub deleted stale " + temp);
+			}
+		} catch (IOException e) {
+			report("cannot delete " + temp + ": " + e);
+		}
+	}
+
+	/**
+	 * Verifies an object.
+	 * @param file the object file
+	 * @param checksum the checksum of the object
+	 * @return correct or not
+	 */
+	private boolean verify(final Path file, final String checksum) {
+		try {
+			bytes.addAndGet(Files.size(file));
+			objects.incrementAndGet();
+			if (Blob.isDelta(file)) {
+				if (checksum.equals(SHA1Util.sha1Checksum(
+						Blob.readContent(checksum)))) {
+					return true;
+				}
+				report("delta object " + checksum + " is corrupt");
+				return false;
+			}
+			if (Blob.isSparse(file)) {
+				// the zeros between the extents are hashed, not read
+				try (InputStream in = open(file)) {
+					for (int i = 0; i < Blob.SPARSEHEADER; i++) {
+						in.read();
+					}
+					HashingOutputStream data = new HashingOutputStream(null);
+					SparseUtil.expand(in, data);
+					if (checksum.equals(data.getChecksum())) {
+						return true;
+					}
+				} catch (IOException e) {
+					// not sparse, it may be an uncompressed blob
+				}
+			}
+			boolean serialized = false;
+			try (InputStream in = open(file)) {
+				if (isZlib(in) && hasDictionary(in)) {
+					// the content of a small file, inflated in memory
+					byte[] data = CompressionUtil.inflate(toByteArray(in));
+					if (checksum.equals(SHA1Util.sha1Checksum(data))) {
+						return true;
+					}
+				} else if (isZlib(in)) {
+					InputStream data = new BufferedInputStream(
+							new InflaterInputStream(in), BUFFERSIZE);
+					serialized = startsWith(data, SERIALMAGIC);
+					if (checksum.equals(SHA1Util.sha1Checksum(data))) {
+						return !serialized || checkReferences(checksum);
+					}
+				}
+			} catch (IOException e) {
+				// not a zlib stream, it may be an uncompressed blob
+				serialized = false;
+			}
+			try (InputStream in = open(file)) {
+				if (checksum.equals(SHA1Util.sha1Checksum(in))) {
+					return true;
+				}
+			}
+			report("object " + checksum + " is corrupt");
+		} catch (IOException e) {
+			report("object " + checksum + " cannot be read: " + e);
+		}
+		return false;
+	}
+
+	/**
+	 * Checks the blobs a tree object refers to exist.
+	 * Objects which are not trees are ignored.
+	 * @param checksum the checksum of the object
+	 * @return all exist or not
+	 */
+	private boolean checkReferences(final String checksum) {
+		BackupObject o;
+		try {
+			o = BackupObject.load(checksum);
+		} catch (IOException e) {
+			// a blob which looks like a serialized object
+			return true;
+		}
+		if (o instanceof Tree) {
+			return checkReferences(checksum, (Tree) o);
+		}
+		return true;
+	}
+
+	/**
+	 * Checks the blobs a tree and its subtrees refer to exist.
+	 * @param root the checksum of the tree object
+	 * @param tree the tree
+	 * @return all exist or not
+	 */
+	private boolean checkReferences(final String root, final Tree tree) {
+		boolean flag = true;
+		for (Entry<String, Blob> en:tree.getBlobs().entrySet()) {
+			Blob blob = en.getValue();
+			if (!Files.exists(blob.getPath())) {
+				report("tree " + root + " misses blob "
+						+ blob.getChecksum() + " (" + en.getKey() + ")");
+				flag = false;
+			}
+		}
+		for (Tree subtree:tree.getTrees().values()) {
+			if (!checkReferences(root, subtree)) {
+				flag = false;
+			}
+		}
+		return flag;
+	}
+
+	/**
+	 * Opens an object with limited read rate.
+	 * @param file the object file
+	 * @return the stream
+	 * @throws IOException if an I/O error occurs
+	 */
+	private InputStream open(final Path file) throws IOException {
+		return new BufferedInputStream(new ThrottledInputStream(
+				Files.newInputStream(file), limiter), BUFFERSIZE);
+	}
+
+	/**
+	 * Tests whether a zlib stream has a preset dictionary.
+	 * The stream is reset to its start.
+	 * @param in the stream, must support mark
+	 * @return has a preset dictionary or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static boolean hasDictionary(final InputStream in)
+			throws IOException {
+		in.mark(2);
+		in.read();
+		int flg = in.read();
+		in.reset();
+		return (flg & ZLIBDICT) != 0;
+	}
+
+	/**
+	 * Reads the rest of a stream.
+	 * @param in the stream
+	 * @return the bytes
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static byte[] toByteArray(final InputStream in)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFERSIZE];
+		int count;
+		while ((count = in.read(buffer)) > 0) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Tests whether a stream starts with a zlib header.
+	 * The stream is reset to its start.
+	 * @param in the stream, must support mark
+	 * @return starts with a zlib header or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static boolean isZlib(final InputStream in) throws IOException {
+		in.mark(2);
+		int cmf = in.read();
+		int flg = in.read();
+		in.reset();
+		if (cmf < 0 || flg < 0) {
+			return false;
+		}
+		return (cmf & ZLIBMETHODMASK) == ZLIBDEFLATE
+				&& ((cmf << BYTEBITS) | flg) % ZLIBCHECK == 0;
+	}
+
+	/**
+	 * Tests whether a stream starts with given bytes.
+	 * The stream is reset to its start.
+	 * @param in the stream, must support mark
+	 * @param magic the bytes
+	 * @return starts with the bytes or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static boolean startsWith(final InputStream in,
+			final int[] magic) throws IOException {
+		in.mark(magic.length);
+		boolean flag = true;
+		for (int b:magic) {
+			if ((in.read() & BYTEMASK) != b) {
+				flag = false;
+				break;
+			}
+		}
+		in.reset();
+		return flag;
+	}
+
+	/**
+	 * Tests whether a name is a lower case hexadecimal string.
+	 * @param name the name
+	 * @param length the length the name must have
+	 * @return is hexadecimal or not
+	 */
+	static boolean isHex(final String name, final int length) {
+		if (name.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the last finished fan-out directory.
+	 * @return the name of the directory
+	 * @throws IOException if an I/O error occurs
+	 */
+	private String readCheckpoint() throws IOException {
+		try (BufferedReader in = Files.newBufferedReader(
+				checkpoint, StandardCharsets.UTF_8)) {
+			return in.readLine();
+		}
+	}
+
+	/**
+	 * Writes the last finished fan-out directory.
+	 * @param prefix the name of the directory
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void writeCheckpoint(final String prefix) throws IOException {
+		Files.createDirectories(checkpoint.toAbsolutePath().getParent());
+		Path temp = GroupCommit.createTemp(checkpoint);
+		try (BufferedWriter out = Files.newBufferedWriter(
+				temp, StandardCharsets.UTF_8)) {
+			out.write(prefix + "\n");
+		}
+		GroupCommit.commitNow(temp, checkpoint);
+	}
+}
@@ -0,0 +1,211 @@
+package xlong.backuper.manager;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import xlong.backuper.object.BackupObject;
+import xlong.backuper.object.Blob;
+import xlong.backuper.object.Tree;
+import xlong.backuper.object.TreeVisitor;
+import xlong.backuper.util.ObjectIdSet;
+import xlong.backuper.util.ProgressReporter;
+
+/**
+ * Counts the objects a set of backups refers to, and the unique ones,
+ * which no other backup refers to, so deleting the set frees them.
+ * <p>
+ * The other backups are added first, then the set. Objects are kept in
+ * {@link ObjectIdSet}s, a subtree already in a set is not walked again,
+ * so backups sharing most of their trees are counted fast.
+ * The bases of delta objects count as referred to as well.
+ * Subtrees are stored inside the tree of their backup, they are only
+ * used to skip, the objects counted are blobs, trees and tree builders.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class SpaceReport {
+
+	/** the objects of the other backups. */
+	private final ObjectIdSet others = new ObjectIdSet();
+
+	/** the objects of the set. */
+	private final ObjectIdSet mine = new ObjectIdSet();
+
+	/** the backups in the set. */
+	private int backups = 0;
+
+	/** the objects the set refers to. */
+	private long objects = 0;
+
+	/** the bytes of the objects the set refers to. */
+	private long bytes = 0;
+
+	/** the objects only the set refers to. */
+	private long uniqueObjects = 0;
+
+	/** the bytes of the objects only the set refers to. */
+	private long uniqueBytes = 0;
+
+	/** the objects missing in the repository. */
+	private long missing = 0;
+
+	/**
+	 * Constructor.
+	 */
+	SpaceReport() {
+	}
+
+	/**
+	 * Adds a backup outside the set. Must be called before
+	 * {@link #include(Backup)}.
+	 * @param backup the backup
+	 * @throws IOException if an I/O error occurs
+	 */
+	void exclude(final Backup backup) throws IOException {
+		walk(backup, others, false);
+	}
+
+	/**
+	 * Adds a backup of the set.
+	 * @param backup the backup
+	 * @throws IOException if an I/O error occurs
+	 */
+	void include(final Backup backup) throws IOException {
+		backups++;
+		walk(backup, mine, true);
+	}
+
+	/**
+	 * Adds the objects of a backup to a set.
+	 * @param backup the backup
+	 * @param set the set
+	 * @param count count the objects or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void walk(final Backup backup, final ObjectIdSet set,
+			final boolean count) throws IOException {
+		add(backup.getTreeBuilderChecksum(), set, count);
+		if (!add(backup.getTreeChecksum(), set, count)) {
+			return;
+		}
+		backup.loadTree().walk(new TreeVisitor() {
+			@Override
+			public boolean preVisitTree(final Path path, final Tree tree,
+					final int depth) {
+				return depth == 0 || set.add(tree.getChecksum());
+			}
+
+			@Override
+			public void visitBlob(final Path path, final Blob blob,
+					final int depth) throws IOException {
+				String checksum = blob.getChecksum();
+				while (checksum != null && add(checksum, set, count)) {
+					checksum = base(checksum);
+				}
+			}
+
+			@Override
+			public void postVisitTree(final Path path, final Tree tree,
+					final int depth) {
+				// nothing to do
+			}
+		});
+	}
+
+	/**
+	 * Gets the base of a delta object.
+	 * @param checksum the checksum of the object
+	 * @return the checksum of the base, null if not a delta or missing
+	 */
+	private static String base(final String checksum) {
+		try {
+			return Blob.deltaBase(checksum);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Adds an object to a set, counting it the first time.
+	 * @param checksum the checksum of the object
+	 * @param set the set
+	 * @param count count the object or not
+	 * @return added or already in the set
+	 * @throws IOException if an I/O error occurs
+	 */
+	private boolean add(final String checksum, final ObjectIdSet set,
+			final boolean count) throws IOException {
+		if (!set.add(checksum)) {
+			return false;
+		}
+		if (count) {
+			long size;
+			try {
+				size = Files.size(BackupObject.checksumToPath(checksum));
+			} catch (NoSuchFileException e) {
+				missing++;
+				ProgressReporter.getReporter().warn(
+						"Missing object " + checksum);
+				return true;
+			}
+			objects++;
+			bytes += size;
+			if (!others.contains(checksum)) {
+				uniqueObjects++;
+				uniqueBytes += size;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the objects the set refers to.
+	 * @return the number of objects
+	 */
+	public long getObjects() {
+		return objects;
+	}
+
+	/**
+	 * Gets the bytes of the objects the set refers to.
+	 * @return the bytes in the repository
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Gets the objects only the set refers to.
+	 * @return the number of objects
+	 */
+	public long getUniqueObjects() {
+		return uniqueObjects;
+	}
+
+	/**
+	 * Gets the bytes of the objects only the set refers to,
+	 * which deleting the set frees.
+	 * @return the bytes in the repository
+	 */
+	public long getUniqueBytes() {
+		return uniqueBytes;
+	}
+
+	/**
+	 * Gets the objects missing in the repository.
+	 * @return the number of objects
+	 */
+	public long getMissing() {
+		return missing;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d backups refer to %d objects, %d bytes; "
+				+ "only they refer to %d objects, %d bytes; %d missing",
+				backups, objects, bytes, uniqueObjects, uniqueBytes,
+				missing);
+	}
+}
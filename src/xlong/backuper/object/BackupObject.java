@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -26,23 +27,101 @@ public abstract class BackupObject
 	/** for serialization. */
 	private static final long serialVersionUID = 4193229535711024873L;
 	
-	/** the directory to store objects. */
-	private static String objectDir = "object";
+	/** the number of fan-out directories. */
+	private static final int FANOUT = 256;
+	
+	/** the directories to store objects. */
+	private static volatile String[] objectDirs = {"object"};
+	
+	/** the directory storing each fan-out directory, by its number. */
+	private static volatile String[] owners = route(objectDirs);
+	
+	/** the object directories were set or are the default. */
+	private static volatile boolean objectDirsSet = false;
 	
 	/**
 	 * Sets the object directory.
 	 * @param dir the object directory wants to set.
 	 */
 	public static final void setObjectDir(final String dir) {
-		objectDir = dir;
+		setObjectDirs(dir);
+	}
+	
+	/**
+	 * Sets the object directories, e.g. one on each disk.
+	 * Each fan-out directory is stored in one of them, chosen by
+	 * rendezvous hashing of its number and the index of the directory.
+	 * Add directories at the end only: then only the fan-out directories
+	 * the new ones win move, all others stay. Rebalance after a change,
+	 * objects are only looked up where they belong.
+	 * @param dirs the object directories
+	 */
+	public static final synchronized void setObjectDirs(
+			final String... dirs) {
+		if (dirs.length == 0) {
+			throw new IllegalArgumentException("No object directory");
+		}
+		String[] copy = dirs.clone();
+		owners = route(copy);
+		objectDirs = copy;
+		objectDirsSet = true;
+		CompressionUtil.setDictionaryDir(Paths.get(copy[0], "dict"));
 	}
 	
 	/**
-	 * Gets the object directory. 
+	 * Tests whether the object directories were set.
+	 * @return set or the default
+	 */
+	public static final boolean isObjectDirSet() {
+		return objectDirsSet;
+	}
+	
+	/**
+	 * Gets the object directory, the first one if there are several.
 	 * @return the object directory.
 	 */
 	public static final String getObjectDir() {
-		return objectDir;
+		return objectDirs[0];
+	}
+	
+	/**
+	 * Gets the object directories.
+	 * @return the object directories
+	 */
+	public static final String[] getObjectDirs() {
+		return objectDirs.clone();
+	}
+	
+	/**
+	 * Gets the object directory storing a checksum.
+	 * @param checksum the checksum, or only its fan-out prefix
+	 * @return the object directory
+	 */
+	public static final String getObjectDir(final String checksum) {
+		return owners[Integer.parseInt(checksum.substring(0, 2), 16)];
+	}
+	
+	/**
+	 * Chooses the directory of each fan-out directory.
+	 * The directory with the highest hash of its index and
+	 * the fan-out number wins.
+	 * @param dirs the object directories
+	 * @return the directory by fan-out number
+	 */
+	private static String[] route(final String[] dirs) {
+		String[] result = new String[FANOUT];
+		for (int i = 0; i < FANOUT; i++) {
+			String best = null;
+			for (int j = 0; j < dirs.length; j++) {
+				String weight = SHA1Util.sha1Checksum(
+						(j + ":" + i).getBytes(StandardCharsets.US_ASCII));
+				if (best == null || weight.compareTo(best) > 0) {
+					best = weight;
+					result[i] = dirs[j];
+				}
+			}
+		}
+		return result;
 	}
 	
 	/**
@@ -52,7 +131,7 @@ public abstract class BackupObject
 	 * @param checksum checksum
 	 * @return name
 	 */
-	protected static final String checksumToName(final String checksum) {
+	public static final String checksumToName(final String checksum) {
 		return (checksum.substring(0, 2) + "/" + checksum.substring(2));
 	}
 	
@@ -61,8 +140,9 @@ public abstract class BackupObject
 	 * @param checksum checksum
 	 * @return the path
 	 */
-	protected static final Path checksumToPath(final String checksum) {
-		return Paths.get(getObjectDir() + "/" + checksumToName(checksum));
+	public static final Path checksumToPath(final String checksum) {
+		return Paths.get(getObjectDir(checksum) + "/" 
+				+ checksumToName(checksum));
 	}
 	
 	/** the SHA-1 checksum of this object. */
@@ -157,6 +237,17 @@ public abstract class BackupObject
         return bytesArray;
 	}
 	
+	/**
+	 * Gets the serialized form of an object, as it is hashed and saved.
+	 * Only for tests and benchmarks of serialization.
+	 * 
+	 * @param o the object
+	 * @return the byte array
+	 */
+	public static byte[] serialize(final BackupObject o) {
+		return o.toByteArray();
+	}
+	
 	/**
 	 * Calculate the checksum of this tree.
 	 * Notice Blob object must not use this method.
@@ -1,12 +1,27 @@
 package xlong.backuper.object;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import xlong.backuper.util.CompressionUtil;
+import xlong.backuper.util.DeltaUtil;
+import xlong.backuper.util.GroupCommit;
+import xlong.backuper.util.HashingOutputStream;
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.ProgressReporter;
 import xlong.backuper.util.SHA1Util;
+import xlong.backuper.util.SparseOutputStream;
+import xlong.backuper.util.SparseUtil;
 
 /**
  * A blob object only contains the content of a file.
@@ -20,6 +35,21 @@ import xlong.backuper.util.SHA1Util;
  * and stores the original content of a big file.
  * Uses ZLIB compression in this class.
  * <p>
+ * A small file may also be stored as a delta to the blob of its previous
+ * version: the object starts with "XLD", a version byte, the length of
+ * the chain of deltas down to a full object, the checksum of the base,
+ * then the ZLIB compressed instructions of {@link DeltaUtil}.
+ * A small file may be compressed with the preset dictionary of its
+ * extension, see {@link Dictionaries}.
+ * <p>
+ * A big file with many blocks of zeros, such as a sparse disk image,
+ * is stored as the extents of its other blocks: the object starts with
+ * "XLS" and a version byte, then the form of {@link SparseUtil}.
+ * Its blob is marked compressed, and is restored with holes.
+ * <p>
+ * The object is still named by the checksum of the content, so
+ * deduplication and restore do not care how it is stored.
+ * <p>
  * This blob class provide static methods for
  * creating a blob for a file or restoring a blot to a file.
  * 
@@ -31,7 +61,50 @@ public final class Blob extends BackupObject {
 	private static final long serialVersionUID = -4807521920350645024L;
 
 	/** the limit of compressing file. */
-	private static final int COMPRESSLIM = 100000000;
+	static final int COMPRESSLIM = 100000000;
+	
+	/** the magic of a delta object, "XLD" and the version. */
+	private static final byte[] DELTAMAGIC = {'X', 'L', 'D', 1};
+	
+	/** the magic of a sparse object, "XLS" and the version. */
+	private static final byte[] SPARSEMAGIC = {'X', 'L', 'S', 1};
+	
+	/** the length of the header of a sparse object. */
+	public static final int SPARSEHEADER = SPARSEMAGIC.length;
+	
+	/** a big file is stored sparse if this part of it is zeros. */
+	private static final int SPARSEPART = 16;
+	
+	/** the length of a checksum. */
+	private static final int CHECKSUMLEN = 40;
+	
+	/** the length of the header of a delta object. */
+	private static final int DELTAHEADER = DELTAMAGIC.length + 1 
+			+ CHECKSUMLEN;
+	
+	/** the length of a ZLIB header without dictionary identifier. */
+	static final int ZLIBHEADER = 2;
+	
+	/** the length of the ADLER-32 trailer of a ZLIB stream. */
+	static final int ZLIBTRAILER = 4;
+	
+	/** the flag of a ZLIB header saying a preset dictionary is used. */
+	private static final int ZLIBDICT = 0x20;
+	
+	/** the smallest file worth a delta. */
+	static final int DELTAMIN = 4096;
+	
+	/** the longest chain of deltas possible. */
+	public static final int MAXCHAIN = 255;
+	
+	/** the buffer of a file restored. */
+	private static final int RESTOREBUFFER = 65536;
+	
+	/** a checksum mismatch fails the whole restore or only the file. */
+	private static volatile boolean failOnMismatch = false;
+	
+	/** restores only check the files, writing nothing. */
+	private static volatile boolean dryRun = false;
 	
 	/** the blob is compressed or not. */
 	private boolean compressed;
@@ -43,8 +116,26 @@ public final class Blob extends BackupObject {
 	private Blob(final String checksum) {
 		setChecksum(checksum);
 	}
+	
+	/**
+	 * Constructor for blobs already saved.
+	 * @param checksum the checksum of a file this blob stores.
+	 * @param isCompressed the blob is compressed or not
+	 */
+	Blob(final String checksum, final boolean isCompressed) {
+		setChecksum(checksum);
+		compressed = isCompressed;
+	}
 
 
+	/**
+	 * Tests whether the blob is compressed.
+	 * @return compressed or not
+	 */
+	boolean isCompressed() {
+		return compressed;
+	}
+
 	/**
 	 * Save the file to the file system, 
 	 * if the file not exist in the file system.
@@ -57,66 +148,615 @@ public final class Blob extends BackupObject {
 	protected static Blob create(
 			final Path filePath) 
 					throws IOException {
-		System.out.println("Create Blob for " + filePath);
-		String checksum = SHA1Util.sha1Checksum(filePath);
+		long t0 = System.nanoTime();
+		long size = Files.size(filePath);
+		Metrics.getCurrent().time(Metrics.Phase.SCAN, System.nanoTime() - t0);
+		return create(filePath, size);
+	}
+
+	/**
+	 * Save the file to the file system, 
+	 * if the file not exist in the file system.
+	 * Creates a new blob contains the checksum of the file.
+	 * 
+	 * @param filePath the file to save.
+	 * @param size the size of the file, already known
+	 * @return the created Blob
+	 * @throws IOException if an I/O error occurs
+	 */
+	static Blob create(final Path filePath, final long size) 
+			throws IOException {
+		return create(filePath, size, null, 0);
+	}
+
+	/**
+	 * Save the file to the file system, 
+	 * if the file not exist in the file system.
+	 * Creates a new blob contains the checksum of the file.
+	 * A changed small file is stored as a delta to the blob of its
+	 * previous version, if that is much smaller.
+	 * 
+	 * @param filePath the file to save.
+	 * @param size the size of the file, already known
+	 * @param base the blob of the previous version, may be null
+	 * @param maxChain the longest chain of deltas, 0 for no deltas
+	 * @return the created Blob
+	 * @throws IOException if an I/O error occurs
+	 */
+	static Blob create(final Path filePath, final long size,
+			final Blob base, final int maxChain) throws IOException {
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		boolean debug = reporter.isEnabled(ProgressReporter.Level.DEBUG);
+		if (debug) {
+			reporter.debug("Create Blob for " + filePath);
+		}
+		Metrics metrics = Metrics.getCurrent();
+		long start = System.nanoTime();
+		String checksum;
+		List<long[]> extents = null;
+		if (size < COMPRESSLIM) {
+			checksum = SHA1Util.sha1Checksum(filePath);
+		} else {
+			List<long[]> found = new ArrayList<>();
+			try (InputStream in = Files.newInputStream(filePath)) {
+				checksum = SparseUtil.scan(in, found);
+			}
+			if (isWorthSparse(size, found)) {
+				extents = found;
+			}
+		}
 		Blob blob = new Blob(checksum);
 		
 		Path outFilePath = blob.getPath();
 
+		long t0 = System.nanoTime();
 		Files.createDirectories(outFilePath.getParent());
+		boolean exists = GroupCommit.exists(outFilePath);
+		metrics.time(Metrics.Phase.SCAN, System.nanoTime() - t0);
+		metrics.add(Metrics.Counter.FILES_SCANNED, 1);
+		metrics.add(Metrics.Counter.BYTES_SCANNED, size);
+		metrics.add(Metrics.Counter.FILES_HASHED, 1);
+		metrics.add(Metrics.Counter.BYTES_HASHED, size);
 		
-		if (Files.size(filePath) < COMPRESSLIM) {
+		if (exists) {
+			metrics.add(Metrics.Counter.FILES_DEDUPLICATED, 1);
+			metrics.add(Metrics.Counter.OBJECTS_REUSED, 1);
+			metrics.add(Metrics.Counter.BYTES_DEDUPLICATED, size);
+		}
+		if (size < COMPRESSLIM) {
 			// compress small file
-			if (!Files.exists(outFilePath)) {
-				System.out.println(
+			if (!exists) {
+				if (debug) {
+					reporter.debug(
 						"Compress " + filePath + " to " + outFilePath);
-				CompressionUtil.compressFile(filePath, outFilePath); 
+				}
+				byte[] delta = null;
+				if (base != null && maxChain > 0 && size >= DELTAMIN) {
+					long t1 = System.nanoTime();
+					byte[] data = Files.readAllBytes(filePath);
+					metrics.time(Metrics.Phase.READ, System.nanoTime() - t1);
+					delta = delta(data, base, maxChain);
+				}
+				if (delta != null) {
+					CompressionUtil.writeCompressed(delta, outFilePath);
+				} else {
+					CompressionUtil.compressFile(filePath, outFilePath,
+							Dictionaries.forFile(filePath, size));
+					metrics.add(Metrics.Counter.FILES_COMPRESSED, 1);
+					metrics.add(Metrics.Counter.BYTES_COMPRESSED, size);
+					metrics.level(CompressionUtil.DEFAULTLEVEL, size);
+				}
+				metrics.add(Metrics.Counter.OBJECTS_WRITTEN, 1);
 			}
 			blob.compressed = true;
 		} else {
 			// copy big file
-			if (!Files.exists(outFilePath)) {
-				System.out.println(
+			if (!exists && extents != null) {
+				if (debug) {
+					reporter.debug(
+						"Copy extents of " + filePath + " to " + outFilePath);
+				}
+				writeSparse(filePath, size, extents, outFilePath);
+				metrics.add(Metrics.Counter.OBJECTS_WRITTEN, 1);
+			} else if (!exists) {
+				if (debug) {
+					reporter.debug(
 						"Copy " + filePath + " to " + outFilePath);
-				Files.copy(filePath, outFilePath);
+				}
+				t0 = System.nanoTime();
+				Path tempFile = GroupCommit.createTemp(outFilePath);
+				Files.copy(filePath, tempFile, 
+						StandardCopyOption.REPLACE_EXISTING);
+				metrics.time(Metrics.Phase.WRITE, System.nanoTime() - t0);
+				GroupCommit.commit(tempFile, outFilePath, size);
+				metrics.add(Metrics.Counter.OBJECTS_WRITTEN, 1);
+				metrics.add(Metrics.Counter.BYTES_WRITTEN, size);
 			}
-			blob.compressed = false;
+			blob.compressed = isSparse(outFilePath, size, extents);
 		}
+		metrics.latency(size, System.nanoTime() - start);
 		return blob;
 	}
 
+	/**
+	 * Tests whether a big file is worth storing sparse.
+	 * @param size the size of the file
+	 * @param extents the extents of its blocks which are not all zero
+	 * @return worth it or not
+	 */
+	static boolean isWorthSparse(final long size, 
+			final List<long[]> extents) {
+		return size >= COMPRESSLIM 
+				&& size - SparseUtil.dataBytes(extents) >= size / SPARSEPART;
+	}
+
+	/**
+	 * Tests whether the object of a big file is sparse. An object 
+	 * already on the disk is tested, it may be stored by an older backup.
+	 * A copy of a file may start like a sparse object too, but it is as
+	 * long as the file, and a sparse object always shorter, see
+	 * {@link #isWorthSparse(long, List)}.
+	 * @param outFilePath the object
+	 * @param size the size of the file
+	 * @param extents the extents of the file if worth storing sparse,
+	 *        otherwise null
+	 * @return sparse or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	static boolean isSparse(final Path outFilePath, final long size,
+			final List<long[]> extents) throws IOException {
+		if (Files.exists(outFilePath)) {
+			return Files.size(outFilePath) < size 
+					&& isSparse(head(outFilePath));
+		}
+		return extents != null;
+	}
+
+	/**
+	 * Writes a big file as a sparse object and commits it.
+	 * @param filePath the file
+	 * @param size the size of the file
+	 * @param extents the extents of its blocks which are not all zero
+	 * @param outFilePath the object
+	 * @throws IOException if an I/O error occurs
+	 */
+	static void writeSparse(final Path filePath, final long size,
+			final List<long[]> extents, final Path outFilePath) 
+					throws IOException {
+		Path tempFile = GroupCommit.createTemp(outFilePath);
+		try (OutputStream out = new BufferedOutputStream(
+				Files.newOutputStream(tempFile), SparseUtil.BLOCK)) {
+			out.write(SPARSEMAGIC);
+			SparseUtil.write(filePath, size, extents, out);
+		}
+		long objectSize = Files.size(tempFile);
+		GroupCommit.commit(tempFile, outFilePath, objectSize);
+		Metrics metrics = Metrics.getCurrent();
+		metrics.add(Metrics.Counter.BYTES_WRITTEN, objectSize);
+		metrics.add(Metrics.Counter.FILES_SPARSE, 1);
+		metrics.add(Metrics.Counter.BYTES_SPARSE, 
+				size - SparseUtil.dataBytes(extents));
+	}
+
+	/**
+	 * Sets how restores check files. Every file restored is hashed as
+	 * it is written and compared to the checksum of its blob.
+	 * @param fail a mismatch fails the whole restore, 
+	 *        or is only reported and fails the file
+	 * @param dry restore to nowhere, only checking the files
+	 */
+	public static void setRestoreCheck(final boolean fail, 
+			final boolean dry) {
+		failOnMismatch = fail;
+		dryRun = dry;
+	}
+	
+	/**
+	 * Tests whether restores only check the files, writing nothing.
+	 * @return dry run or not
+	 */
+	public static boolean isDryRun() {
+		return dryRun;
+	}
+
 	/**
 	 * Restore this blob to the file with given path.
 	 * If a file is already exist,
 	 * this method will rewrite the file.
 	 * If the output directory not exist,
 	 * this method will create the directory.
+	 * The content is hashed as it is written, a file whose checksum
+	 * does not match is reported, see 
+	 * {@link #setRestoreCheck(boolean, boolean)}.
 	 * 
 	 * @param outFilePath the path of the file restores to
 	 * @return success or not
-	 * @throws IOException if an I/O error occurs
+	 * @throws IOException if an I/O error occurs, or the checksum
+	 *         does not match and a mismatch fails the restore
 	 */
 	@Override
 	public boolean restore(final Path outFilePath) 
 			throws IOException {
-		Path inFilePath = getPath();
-		System.out.println("Restore Blob to " + outFilePath);
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		if (reporter.isEnabled(ProgressReporter.Level.DEBUG)) {
+			reporter.debug((dryRun ? "Check Blob as " : "Restore Blob to ") 
+					+ outFilePath);
+		}
+		Metrics metrics = Metrics.getCurrent();
+		long start = System.nanoTime();
 		
-		Files.createDirectories(outFilePath.getParent());
-
-		if (compressed) {
-			System.out.println(
-					"Decompress " + inFilePath + " to " + outFilePath);
-			CompressionUtil.decompressToFile(inFilePath, outFilePath);
+		byte[] head = head();
+		OutputStream target = null;
+		SparseOutputStream holes = null;
+		if (!dryRun) {
+			Files.createDirectories(outFilePath.getParent());
+			if (isSparse(head)) {
+				holes = new SparseOutputStream(outFilePath);
+				target = holes;
+			} else {
+				target = new BufferedOutputStream(
+						Files.newOutputStream(outFilePath), RESTOREBUFFER);
+			}
+		}
+		long size;
+		String checksum;
+		try (HashingOutputStream out = new HashingOutputStream(target)) {
+			restore(out, head);
+			size = out.getCount();
+			checksum = out.getChecksum();
+		}
+		if (holes != null) {
+			metrics.add(Metrics.Counter.BYTES_WRITTEN, 
+					size - holes.getSkipped());
+			metrics.add(Metrics.Counter.FILES_SPARSE, 1);
+			metrics.add(Metrics.Counter.BYTES_SPARSE, holes.getSkipped());
+		} else if (!dryRun) {
+			metrics.add(Metrics.Counter.BYTES_WRITTEN, size);
+		}
+		metrics.add(Metrics.Counter.FILES_RESTORED, 1);
+		metrics.add(Metrics.Counter.BYTES_RESTORED, size);
+		metrics.latency(size, System.nanoTime() - start);
+		if (!checksum.equals(getChecksum())) {
+			metrics.add(Metrics.Counter.FILES_MISMATCHED, 1);
+			String message = "Checksum mismatch of " + outFilePath 
+					+ ": blob " + getChecksum() + ", restored " + checksum;
+			if (failOnMismatch) {
+				throw new IOException(message);
+			}
+			reporter.error(message);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes the content of this blob to a stream.
+	 * @param out the stream, not closed
+	 * @param head the head of the object, see {@link #head()}
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void restore(final OutputStream out, final byte[] head) 
+			throws IOException {
+		Path inFilePath = getPath();
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		boolean debug = reporter.isEnabled(ProgressReporter.Level.DEBUG);
+		if (isSparse(head)) {
+			if (debug) {
+				reporter.debug("Expand " + inFilePath);
+			}
+			long t0 = System.nanoTime();
+			try (InputStream in = readSparse(inFilePath)) {
+				SparseUtil.expand(in, out);
+			}
+			Metrics.getCurrent().time(Metrics.Phase.WRITE, 
+					System.nanoTime() - t0);
+		} else if (isDelta(head)) {
+			if (debug) {
+				reporter.debug("Apply delta " + inFilePath);
+			}
+			byte[] data = readContent(getChecksum());
+			long t0 = System.nanoTime();
+			out.write(data);
+			Metrics.getCurrent().time(Metrics.Phase.WRITE, 
+					System.nanoTime() - t0);
+		} else if (compressed) {
+			if (debug) {
+				reporter.debug("Decompress " + inFilePath);
+			}
+			CompressionUtil.decompress(inFilePath, out);
 		} else {
-			System.out.println(
-					"Copy " + inFilePath + " to " + outFilePath);
-			Files.copy(inFilePath, outFilePath,
-					StandardCopyOption.REPLACE_EXISTING);
+			if (debug) {
+				reporter.debug("Copy " + inFilePath);
+			}
+			long t0 = System.nanoTime();
+			Files.copy(inFilePath, out);
+			Metrics.getCurrent().time(Metrics.Phase.WRITE, 
+					System.nanoTime() - t0);
+		}
+	}
+	
+	/**
+	 * Encodes a file as a delta object to the blob of its previous version.
+	 * Fails if the chain of deltas would be too long,
+	 * the base cannot be read or the delta is not much smaller.
+	 * 
+	 * @param content the content of the file
+	 * @param base the blob of the previous version
+	 * @param maxChain the longest chain of deltas
+	 * @return the delta object, or null to store the file in full
+	 */
+	static byte[] delta(final byte[] content, final Blob base, 
+			final int maxChain) {
+		if (!base.compressed) {
+			return null;
+		}
+		Metrics metrics = Metrics.getCurrent();
+		byte[] baseContent;
+		int chain;
+		try {
+			if (base.isSparse()) {
+				return null;
+			}
+			long t0 = System.nanoTime();
+			byte[] object = Files.readAllBytes(base.getPath());
+			metrics.time(Metrics.Phase.READ, System.nanoTime() - t0);
+			chain = isDelta(object) ? (object[DELTAMAGIC.length] & 0xff) : 0;
+			if (chain + 1 > Math.min(maxChain, MAXCHAIN)) {
+				return null;
+			}
+			baseContent = content(object);
+		} catch (IOException e) {
+			ProgressReporter.getReporter().warn("No delta to " 
+					+ base.getChecksum() + ": " + e);
+			return null;
+		}
+		byte[] instructions = DeltaUtil.encode(baseContent, content);
+		if (instructions.length > content.length / 2) {
+			return null;
+		}
+		byte[] compressed = CompressionUtil.deflate(instructions);
+		byte[] object = new byte[DELTAHEADER + compressed.length];
+		System.arraycopy(DELTAMAGIC, 0, object, 0, DELTAMAGIC.length);
+		object[DELTAMAGIC.length] = (byte) (chain + 1);
+		byte[] checksum = base.getChecksum().getBytes(
+				StandardCharsets.US_ASCII);
+		System.arraycopy(checksum, 0, object, DELTAMAGIC.length + 1, 
+				CHECKSUMLEN);
+		System.arraycopy(compressed, 0, object, DELTAHEADER, 
+				compressed.length);
+		metrics.add(Metrics.Counter.FILES_DELTA, 1);
+		metrics.add(Metrics.Counter.BYTES_DELTA, content.length);
+		return object;
+	}
+	
+	/**
+	 * Tests whether an object is a delta.
+	 * @param object the object
+	 * @return a delta or not
+	 */
+	private static boolean isDelta(final byte[] object) {
+		if (object.length < DELTAHEADER) {
+			return false;
+		}
+		for (int i = 0; i < DELTAMAGIC.length; i++) {
+			if (object[i] != DELTAMAGIC[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Tests whether an object file is a delta.
+	 * @param file the object file
+	 * @return a delta or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static boolean isDelta(final Path file) throws IOException {
+		return isDelta(head(file));
+	}
+	
+	/**
+	 * Tests whether an object is sparse.
+	 * @param object the object, or its head
+	 * @return sparse or not
+	 */
+	static boolean isSparse(final byte[] object) {
+		if (object.length < SPARSEHEADER) {
+			return false;
+		}
+		for (int i = 0; i < SPARSEMAGIC.length; i++) {
+			if (object[i] != SPARSEMAGIC[i]) {
+				return false;
+			}
 		}
 		return true;
 	}
 	
+	/**
+	 * Tests whether an object file is sparse.
+	 * @param file the object file
+	 * @return sparse or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static boolean isSparse(final Path file) throws IOException {
+		return isSparse(head(file));
+	}
+	
+	/**
+	 * Tests whether the object of this blob is sparse.
+	 * @return sparse or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	boolean isSparse() throws IOException {
+		return isSparse(head());
+	}
+	
+	/**
+	 * Opens a sparse object after its magic, to read the form of
+	 * {@link SparseUtil}.
+	 * @param file the object file
+	 * @return the stream, buffered
+	 * @throws IOException if the object cannot be read or is not sparse
+	 */
+	public static InputStream readSparse(final Path file) 
+			throws IOException {
+		InputStream in = new BufferedInputStream(
+				Files.newInputStream(file), SparseUtil.BLOCK);
+		byte[] magic = new byte[SPARSEHEADER];
+		int n = 0;
+		while (n < magic.length) {
+			int count = in.read(magic, n, magic.length - n);
+			if (count < 0) {
+				break;
+			}
+			n += count;
+		}
+		if (!isSparse(magic)) {
+			in.close();
+			throw new IOException(file + " is not a sparse object");
+		}
+		return in;
+	}
+	
+	/**
+	 * Gets the base of a delta object.
+	 * @param checksum the checksum of the object
+	 * @return the checksum of the base, null if not a delta
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static String deltaBase(final String checksum) 
+			throws IOException {
+		byte[] head = head(checksumToPath(checksum));
+		if (!isDelta(head)) {
+			return null;
+		}
+		return new String(head, DELTAMAGIC.length + 1, CHECKSUMLEN, 
+				StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Tests whether the object of this blob is a ZLIB stream without
+	 * a preset dictionary, so its deflate data can be used as it is.
+	 * @return a plain ZLIB stream or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	boolean isPlainZlib() throws IOException {
+		return isPlainZlib(head());
+	}
+	
+	/**
+	 * Tests whether an object is a ZLIB stream without a preset
+	 * dictionary.
+	 * @param head the head of the object, see {@link #head()}
+	 * @return a plain ZLIB stream or not
+	 */
+	static boolean isPlainZlib(final byte[] head) {
+		return head.length >= ZLIBHEADER && !isDelta(head) 
+				&& !isSparse(head) && (head[1] & ZLIBDICT) == 0;
+	}
+	
+	/**
+	 * Reads the head of the object of this blob once, to tell its form
+	 * with {@link #isSparse(byte[])} and {@link #isPlainZlib(byte[])}.
+	 * @return the head, empty if this blob is not compressed
+	 * @throws IOException if an I/O error occurs
+	 */
+	byte[] head() throws IOException {
+		return compressed ? head(getPath()) : new byte[0];
+	}
+	
+	/**
+	 * Reads the head of an object file, as long as a delta header.
+	 * @param file the object file
+	 * @return the head, shorter if the file is
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static byte[] head(final Path file) throws IOException {
+		byte[] head = new byte[DELTAHEADER];
+		int n = 0;
+		try (InputStream in = Files.newInputStream(file)) {
+			while (n < head.length) {
+				int count = in.read(head, n, head.length - n);
+				if (count < 0) {
+					break;
+				}
+				n += count;
+			}
+		}
+		return n == head.length ? head : Arrays.copyOf(head, n);
+	}
+	
+	/**
+	 * Reads the content of a compressed object, following deltas.
+	 * A sparse object is not read, see {@link #readSparse(Path)}.
+	 * @param checksum the checksum of the object
+	 * @return the content
+	 * @throws IOException if an object of the chain cannot be read
+	 */
+	public static byte[] readContent(final String checksum) 
+			throws IOException {
+		long t0 = System.nanoTime();
+		byte[] object = Files.readAllBytes(checksumToPath(checksum));
+		Metrics.getCurrent().time(Metrics.Phase.READ, System.nanoTime() - t0);
+		return content(object);
+	}
+	
+	/**
+	 * Reads the content of a compressed object, following deltas, if it
+	 * is shorter than a limit. An object too big to hold such content is
+	 * not read, and no more than the limit is inflated.
+	 * A sparse object is not read either.
+	 * @param checksum the checksum of the object
+	 * @param limit the content must be shorter
+	 * @return the content, null if it is not shorter than the limit
+	 * @throws IOException if an object of the chain cannot be read
+	 */
+	static byte[] readContent(final String checksum, final int limit) 
+			throws IOException {
+		Path file = checksumToPath(checksum);
+		// deflate grows content by far less than half
+		if (Files.size(file) >= DELTAHEADER + limit + limit / 2) {
+			return null;
+		}
+		long t0 = System.nanoTime();
+		byte[] object = Files.readAllBytes(file);
+		Metrics.getCurrent().time(Metrics.Phase.READ, System.nanoTime() - t0);
+		if (isSparse(object)) {
+			return null;
+		}
+		if (!isDelta(object)) {
+			return CompressionUtil.inflate(object, limit);
+		}
+		// the instructions of a delta are never longer than its target
+		byte[] instructions = CompressionUtil.inflate(Arrays.copyOfRange(
+				object, DELTAHEADER, object.length), limit);
+		if (instructions == null 
+				|| DeltaUtil.targetLength(instructions) >= limit) {
+			return null;
+		}
+		String base = new String(object, DELTAMAGIC.length + 1, 
+				CHECKSUMLEN, StandardCharsets.US_ASCII);
+		return DeltaUtil.decode(readContent(base), instructions);
+	}
+	
+	/**
+	 * Gets the content of a compressed object, following deltas.
+	 * @param object the object
+	 * @return the content
+	 * @throws IOException if an object of the chain cannot be read
+	 */
+	private static byte[] content(final byte[] object) throws IOException {
+		if (!isDelta(object)) {
+			return CompressionUtil.inflate(object);
+		}
+		String base = new String(object, DELTAMAGIC.length + 1, 
+				CHECKSUMLEN, StandardCharsets.US_ASCII);
+		byte[] instructions = CompressionUtil.inflate(Arrays.copyOfRange(
+				object, DELTAHEADER, object.length));
+		return DeltaUtil.decode(readContent(base), instructions);
+	}
+	
 	/**
 	 * Converts blob to string.
 	 * @return the string
@@ -0,0 +1,318 @@
+package xlong.backuper.object;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.SparseUtil;
+
+/**
+ * Reads the content of a blob in place, at any position, without
+ * restoring it.
+ * <p>
+ * Reads go through a window of 128K, filled from the position read,
+ * so small reads cost no call to the object each.
+ * An uncompressed object is read at any position directly.
+ * A sparse object is read at any position too, its table of extents
+ * is read when opened, the bytes between them are zeros.
+ * A ZLIB object can only be inflated from its start: reading forward
+ * goes on inflating, reading backward before the window inflates again
+ * from the start. Objects of deltas or with a preset dictionary are
+ * small, they are inflated in memory when opened.
+ * <p>
+ * The size of a ZLIB object is only known when inflated to the end,
+ * which {@link #size()} does once if no read got there before.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class BlobChannel implements SeekableByteChannel {
+
+	/** the size of the window. */
+	private static final int WINDOW = 131072;
+
+	/** the size of the buffer of a ZLIB object. */
+	private static final int BUFFERSIZE = 65536;
+
+	/** the blob. */
+	private final Blob blob;
+
+	/** the uncompressed or sparse object, null for others. */
+	private FileChannel file;
+
+	/** the extents of a sparse object, null for others. */
+	private SparseUtil.Extents extents;
+
+	/** the ZLIB object inflating, null if not opened. */
+	private InputStream stream;
+
+	/** the position of the stream in the content. */
+	private long streamPosition;
+
+	/** the window, the whole content for objects in memory. */
+	private byte[] window;
+
+	/** the position of the window in the content. */
+	private long windowStart = 0;
+
+	/** the bytes in the window. */
+	private int windowLength = 0;
+
+	/** the position. */
+	private long position = 0;
+
+	/** the size, negative if not known yet. */
+	private long size = -1;
+
+	/** open or closed. */
+	private boolean open = true;
+
+	/** the metrics of the run. */
+	private final Metrics metrics = Metrics.getCurrent();
+
+	/**
+	 * Constructor. Opens the object of a blob.
+	 * @param b the blob
+	 * @throws IOException if the object cannot be read
+	 */
+	public BlobChannel(final Blob b) throws IOException {
+		this(b, b.head());
+	}
+
+	/**
+	 * Constructor. Opens the object of a blob whose head is read.
+	 * @param b the blob
+	 * @param head the head of the object, see {@link Blob#head()}
+	 * @throws IOException if the object cannot be read
+	 */
+	BlobChannel(final Blob b, final byte[] head) throws IOException {
+		blob = b;
+		if (!blob.isCompressed()) {
+			file = FileChannel.open(blob.getPath(), StandardOpenOption.READ);
+			size = file.size();
+			window = new byte[WINDOW];
+		} else if (Blob.isSparse(head)) {
+			file = FileChannel.open(blob.getPath(), StandardOpenOption.READ);
+			try {
+				file.position(Blob.SPARSEHEADER);
+				extents = SparseUtil.Extents.read(new BufferedInputStream(
+						Channels.newInputStream(file), BUFFERSIZE), 
+						Blob.SPARSEHEADER);
+			} catch (IOException e) {
+				file.close();
+				throw e;
+			}
+			size = extents.getSize();
+			window = new byte[WINDOW];
+		} else if (Blob.isPlainZlib(head)) {
+			window = new byte[WINDOW];
+		} else {
+			window = Blob.readContent(blob.getChecksum());
+			windowLength = window.length;
+			size = window.length;
+		}
+	}
+
+	/**
+	 * Gets the blob.
+	 * @return the blob
+	 */
+	public Blob getBlob() {
+		return blob;
+	}
+
+	@Override
+	public synchronized int read(final ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		if (size >= 0 && position >= size) {
+			return -1;
+		}
+		if (position < windowStart
+				|| position >= windowStart + windowLength) {
+			fill();
+			if (windowLength == 0) {
+				return -1;
+			}
+		}
+		int off = (int) (position - windowStart);
+		int n = Math.min(dst.remaining(), windowLength - off);
+		dst.put(window, off, n);
+		position += n;
+		return n;
+	}
+
+	/**
+	 * Fills the window from the position.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void fill() throws IOException {
+		long t0 = System.nanoTime();
+		windowStart = position;
+		windowLength = 0;
+		if (extents != null) {
+			fillSparse();
+		} else if (file != null) {
+			ByteBuffer buffer = ByteBuffer.wrap(window);
+			while (buffer.hasRemaining()) {
+				if (file.read(buffer, position + buffer.position()) < 0) {
+					break;
+				}
+			}
+			windowLength = buffer.position();
+		} else {
+			seekStream(position);
+			int n = 0;
+			while (n < window.length) {
+				int count = stream.read(window, n, window.length - n);
+				if (count < 0) {
+					size = streamPosition + n;
+					break;
+				}
+				n += count;
+			}
+			streamPosition += n;
+			windowLength = n;
+		}
+		metrics.time(Metrics.Phase.READ, System.nanoTime() - t0);
+	}
+
+	/**
+	 * Fills the window of a sparse object from the position, with the
+	 * bytes of the extents and zeros between them.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void fillSparse() throws IOException {
+		long end = Math.min(size, position + window.length);
+		long at = position;
+		while (at < end) {
+			int i = extents.find(at);
+			int off = (int) (at - position);
+			if (i == extents.getCount() || extents.getOffset(i) > at) {
+				long next = i == extents.getCount() ? end
+						: Math.min(end, extents.getOffset(i));
+				Arrays.fill(window, off, (int) (next - position), (byte) 0);
+				at = next;
+				continue;
+			}
+			long next = Math.min(end, 
+					extents.getOffset(i) + extents.getLength(i));
+			ByteBuffer buffer = ByteBuffer.wrap(window, off, (int) (next - at));
+			long from = extents.getPosition(i) + at - extents.getOffset(i);
+			while (buffer.hasRemaining()) {
+				if (file.read(buffer, from + buffer.position() - off) < 0) {
+					throw new IOException("Truncated sparse object " 
+							+ blob.getPath());
+				}
+			}
+			at = next;
+		}
+		windowLength = (int) (end - position);
+	}
+
+	/**
+	 * Moves the stream of a ZLIB object to a position, inflating again
+	 * from the start if the position is behind.
+	 * @param target the position
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void seekStream(final long target) throws IOException {
+		if (stream == null || streamPosition > target) {
+			if (stream != null) {
+				stream.close();
+			}
+			stream = new InflaterInputStream(new BufferedInputStream(
+					Files.newInputStream(blob.getPath()), BUFFERSIZE));
+			streamPosition = 0;
+		}
+		// the window is the scratch buffer, it is filled again anyway
+		windowLength = 0;
+		while (streamPosition < target) {
+			int count = stream.read(window, 0,
+					(int) Math.min(window.length, target - streamPosition));
+			if (count < 0) {
+				size = streamPosition;
+				return;
+			}
+			streamPosition += count;
+		}
+	}
+
+	@Override
+	public int write(final ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(final long newPosition)
+			throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position");
+		}
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		ensureOpen();
+		if (size < 0) {
+			seekStream(Long.MAX_VALUE);
+		}
+		return size;
+	}
+
+	@Override
+	public SeekableByteChannel truncate(final long newSize) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		window = null;
+		if (file != null) {
+			file.close();
+		}
+		if (stream != null) {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Throws if closed.
+	 * @throws ClosedChannelException if closed
+	 */
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+}
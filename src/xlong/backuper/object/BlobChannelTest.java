@@ -0,0 +1,307 @@
+package xlong.backuper.object;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xlong.backuper.manager.BackupManager;
+import xlong.backuper.util.CompressionUtil;
+import xlong.backuper.util.SHA1Util;
+import xlong.backuper.util.SparseUtil;
+
+/**
+ * JUnit test class for BlobChannel class, and the backup file system
+ * reading through it.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public class BlobChannelTest {
+
+	/** a size over two windows of the channel. */
+	private static final int SIZE = 300000;
+
+	/** the temporary directory. */
+	private Path dir;
+
+	/** the object directories before the test. */
+	private String[] objectDirs;
+
+	/**
+	 * Stores the objects in a temporary directory.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Before
+	public final void setUp() throws IOException {
+		dir = Files.createTempDirectory("blobchannel");
+		objectDirs = BackupObject.getObjectDirs();
+		BackupObject.setObjectDir(dir.resolve("object").toString());
+	}
+
+	/**
+	 * Restores the object directories and deletes the temporary directory.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@After
+	public final void tearDown() throws IOException {
+		BackupObject.setObjectDirs(objectDirs);
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file,
+					final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path d,
+					final IOException e) throws IOException {
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Makes lines of text, compressible but not all alike.
+	 * @param seed the seed
+	 * @param size the size
+	 * @return the content
+	 */
+	private static byte[] text(final long seed, final int size) {
+		Random random = new Random(seed);
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (i % 64 == 63) ? (byte) '\n'
+					: (byte) ('a' + random.nextInt(8));
+		}
+		return content;
+	}
+
+	/**
+	 * Writes a file.
+	 * @param name the name of the file
+	 * @param content the content
+	 * @return the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Path write(final String name, final byte[] content)
+			throws IOException {
+		Path file = dir.resolve(name);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content);
+		return file;
+	}
+
+	/**
+	 * Reads a range of the channel and compares it to the content.
+	 * @param channel the channel
+	 * @param content the content
+	 * @param position the position to read at
+	 * @param length the length to read
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void check(final BlobChannel channel,
+			final byte[] content, final int position, final int length)
+					throws IOException {
+		channel.position(position);
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			continue;
+		}
+		int expected = Math.max(0, Math.min(length,
+				content.length - position));
+		assertEquals(expected, buffer.position());
+		assertArrayEquals(Arrays.copyOfRange(content, position,
+				position + expected),
+				Arrays.copyOf(buffer.array(), expected));
+		assertEquals(position + expected, channel.position());
+	}
+
+	/**
+	 * Reads a blob forward, backward and past its end.
+	 * @param blob the blob
+	 * @param content the content of the blob
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void check(final Blob blob, final byte[] content)
+			throws IOException {
+		try (BlobChannel channel = new BlobChannel(blob)) {
+			assertEquals(content.length, channel.size());
+			check(channel, content, 0, 1000);
+			check(channel, content, 140000, 5000);
+			check(channel, content, content.length - 100, 1000);
+			check(channel, content, 270000, 40000);
+			check(channel, content, 131000, 2000);
+			check(channel, content, 10, 10);
+			check(channel, content, 0, content.length);
+			assertEquals(content.length, channel.size());
+			channel.position(content.length + 10);
+			assertEquals(-1, channel.read(ByteBuffer.allocate(4)));
+		}
+	}
+
+	/**
+	 * Test method for {@link BlobChannel} on a raw object.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Test
+	public final void testRaw() throws IOException {
+		byte[] content = text(1, SIZE);
+		Blob blob = new Blob(SHA1Util.sha1Checksum(content), false);
+		Files.createDirectories(blob.getPath().getParent());
+		Files.write(blob.getPath(), content);
+		check(blob, content);
+	}
+
+	/**
+	 * Test method for {@link BlobChannel} on a ZLIB object.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Test
+	public final void testZlib() throws IOException {
+		byte[] content = text(2, SIZE);
+		Blob blob = Blob.create(write("zlib", content), content.length);
+		assertTrue(blob.isPlainZlib());
+		check(blob, content);
+	}
+
+	/**
+	 * Test method for {@link BlobChannel} on a delta object,
+	 * read into memory.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Test
+	public final void testDelta() throws IOException {
+		byte[] base = text(3, SIZE);
+		byte[] content = base.clone();
+		content[100] = 'x';
+		content[200000] = 'y';
+		Blob baseBlob = Blob.create(write("base", base), base.length);
+		Blob blob = Blob.create(write("delta", content), content.length,
+				baseBlob, 1);
+		assertEquals(baseBlob.getChecksum(),
+				Blob.deltaBase(blob.getChecksum()));
+		check(blob, content);
+	}
+
+	/**
+	 * Test method for {@link BlobChannel} on an object compressed with
+	 * a preset dictionary, read into memory.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Test
+	public final void testDictionary() throws IOException {
+		byte[] dictionary = text(4, 4096);
+		byte[] content = text(5, SIZE);
+		Path dictionaryFile = CompressionUtil.dictionaryPath(
+				CompressionUtil.dictionaryId(dictionary));
+		Files.createDirectories(dictionaryFile.getParent());
+		Files.write(dictionaryFile, dictionary);
+		Blob blob = new Blob(SHA1Util.sha1Checksum(content), true);
+		Files.createDirectories(blob.getPath().getParent());
+		Files.write(blob.getPath(),
+				CompressionUtil.deflate(content, dictionary));
+		assertFalse(blob.isPlainZlib());
+		check(blob, content);
+	}
+
+	/**
+	 * Test method for {@link BlobChannel} on a sparse object, with a hole
+	 * across the end of the first window.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Test
+	public final void testSparse() throws IOException {
+		byte[] content = new byte[600000];
+		byte[] data = text(6, content.length);
+		System.arraycopy(data, 0, content, 0, SparseUtil.BLOCK);
+		System.arraycopy(data, 6 * SparseUtil.BLOCK, content,
+				6 * SparseUtil.BLOCK, SparseUtil.BLOCK);
+		Path file = write("sparse", content);
+		List<long[]> extents = new ArrayList<>();
+		String checksum;
+		try (InputStream in = Files.newInputStream(file)) {
+			checksum = SparseUtil.scan(in, extents);
+		}
+		assertEquals(2, extents.size());
+		Blob blob = new Blob(checksum, true);
+		Files.createDirectories(blob.getPath().getParent());
+		Blob.writeSparse(file, content.length, extents, blob.getPath());
+		assertTrue(blob.isSparse());
+		check(blob, content);
+		try (BlobChannel channel = new BlobChannel(blob)) {
+			check(channel, content, SparseUtil.BLOCK - 10, 300000);
+			check(channel, content, 131000, 1000);
+			check(channel, content, 65000, 2000);
+		}
+	}
+
+	/**
+	 * Test method for {@link xlong.backuper.fs.BackupFileSystemProvider},
+	 * lists a backup and reads one file.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Test
+	public final void testFileSystem() throws IOException {
+		byte[] content = text(7, SIZE);
+		write("source/a.txt", content);
+		write("source/sub/b.txt", text(8, 100));
+		String backupDir = BackupManager.getBackupDir();
+		BackupManager.setBackupDir(dir.resolve("backup").toString());
+		try {
+			BackupManager manager = BackupManager.getManager();
+			manager.addBackupMap(dir.resolve("source").toString(), "nick");
+			assertTrue(manager.newBackup("test"));
+			String name = manager.getBackupList().get(0);
+			try (FileSystem fs = FileSystems.newFileSystem(
+					URI.create("backup:/"),
+					Collections.<String, Object>emptyMap())) {
+				List<String> backups = new ArrayList<>();
+				try (DirectoryStream<Path> stream =
+						Files.newDirectoryStream(fs.getPath("/"))) {
+					for (Path p:stream) {
+						backups.add(p.getFileName().toString());
+					}
+				}
+				assertEquals(Collections.singletonList(name), backups);
+				List<String> files = new ArrayList<>();
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+						fs.getPath("/" + name + "/nick"))) {
+					for (Path p:stream) {
+						files.add(p.getFileName().toString());
+					}
+				}
+				Collections.sort(files);
+				assertEquals(Arrays.asList("a.txt", "sub"), files);
+				Path a = fs.getPath("/" + name + "/nick/a.txt");
+				assertEquals(content.length, Files.size(a));
+				assertArrayEquals(content, Files.readAllBytes(a));
+			}
+		} finally {
+			BackupManager.setBackupDir(backupDir);
+		}
+	}
+}
@@ -0,0 +1,716 @@
+package xlong.backuper.object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import xlong.backuper.util.CompressionUtil;
+import xlong.backuper.util.GroupCommit;
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.ProgressReporter;
+import xlong.backuper.util.SHA1Util;
+import xlong.backuper.util.SparseUtil;
+import xlong.backuper.util.Throttle;
+
+/**
+ * Runs the ingest of files into blobs as a pipeline of stages.
+ * <p>
+ * The scan submits files. The hash stage reads and hashes them and drops
+ * the ones already stored. The compress stage deflates small files in
+ * memory, with the dictionary of their extension at a level chosen
+ * while the backup runs, or encodes them as a delta to their previous
+ * version.
+ * The write stage writes the objects and commits them, a big file
+ * with many blocks of zeros without them.
+ * Each stage has its own threads and is fed by a bounded queue,
+ * so a full queue blocks the stage before it, and the scan at last.
+ * The bytes of the files in flight are bounded by a semaphore too,
+ * a file larger than the bound runs alone.
+ * The reads, writes and workers of the stages are bounded by
+ * {@link Throttle}, in mode SERIAL only the bytes read are.
+ * <p>
+ * In mode SERIAL every file is ingested in the calling thread.
+ * In mode CPU every stage has as many threads as processors,
+ * which suits local disks, where hashing and compressing are the cost.
+ * In mode IO the hash and write stages have many small-stack threads,
+ * so the latency of a repository or source on NFS or similar storage is
+ * hidden behind many blocked requests, while deflate stays CPU sized.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class BlobIngester {
+
+	/**
+	 * How files are ingested.
+	 */
+	public enum Mode {
+		/** in the calling thread. */
+		SERIAL,
+		/** every stage as large as the number of processors. */
+		CPU,
+		/** large I/O stages for high-latency storage. */
+		IO
+	}
+
+	/**
+	 * A file in the pipeline, and the future of its blob.
+	 * A job cannot be cancelled, it is done when the pipeline is.
+	 */
+	private final class Job implements Future<Blob> {
+		/** the file. */
+		private final Path file;
+		/** the size of the file. */
+		private final long size;
+		/** the modification time of the file, -1 if unknown. */
+		private final long time;
+		/** the blob of the previous version, may be null. */
+		private final Blob base;
+		/** the permits held. */
+		private final int permits;
+		/** when the ingest started. */
+		private final long start;
+		/** the content of a small file, then its compressed form. */
+		private byte[] data;
+		/** the extents of a big file stored sparse, otherwise null. */
+		private List<long[]> extents;
+		/** the checksum. */
+		private String checksum;
+		/** this job writes the object or not. */
+		private boolean claimed;
+		/** counted down when done or failed. */
+		private final CountDownLatch finished = new CountDownLatch(1);
+		/** the blob, when done. */
+		private Blob result;
+		/** the error, when failed. */
+		private Throwable failure;
+
+		/**
+		 * Constructor.
+		 * @param filePath the file
+		 * @param fileSize the size of the file
+		 * @param millis the modification time of the file, -1 if unknown
+		 * @param previous the blob of the previous version, may be null
+		 * @param held the permits held
+		 */
+		Job(final Path filePath, final long fileSize, final long millis,
+				final Blob previous, final int held) {
+			file = filePath;
+			size = fileSize;
+			time = millis;
+			base = previous;
+			permits = held;
+			start = System.nanoTime();
+		}
+
+		/**
+		 * Finishes the job with a blob.
+		 * @param compressed the blob is compressed or not
+		 */
+		void done(final boolean compressed) {
+			data = null;
+			if (claimed) {
+				writing.remove(checksum);
+			}
+			metrics.latency(size, System.nanoTime() - start);
+			inFlight.release(permits);
+			Blob blob = new Blob(checksum, compressed);
+			// recorded before the caller sees it done and checkpoints
+			record(file, size, time, blob);
+			result = blob;
+			finished.countDown();
+		}
+
+		/**
+		 * Finishes a job run outside the pipeline, which holds no
+		 * permits and is recorded by the caller.
+		 * @param blob the blob, null if failed
+		 * @param e the error, null if done
+		 */
+		void complete(final Blob blob, final Throwable e) {
+			result = blob;
+			failure = e;
+			finished.countDown();
+		}
+
+		/**
+		 * Finishes the job with an error.
+		 * @param e the error
+		 */
+		void fail(final Throwable e) {
+			data = null;
+			if (claimed) {
+				writing.remove(checksum);
+			}
+			inFlight.release(permits);
+			failure = e;
+			finished.countDown();
+		}
+
+		/**
+		 * Gets the blob of a finished job.
+		 * @return the blob
+		 * @throws ExecutionException if the job failed
+		 */
+		private Blob report() throws ExecutionException {
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return result;
+		}
+
+		@Override
+		public boolean cancel(final boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return finished.getCount() == 0;
+		}
+
+		@Override
+		public Blob get() throws InterruptedException, ExecutionException {
+			finished.await();
+			return report();
+		}
+
+		@Override
+		public Blob get(final long timeout, final TimeUnit unit)
+				throws InterruptedException, ExecutionException,
+				TimeoutException {
+			if (!finished.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return report();
+		}
+	}
+
+	/**
+	 * A stage of the pipeline: a bounded queue and its threads.
+	 */
+	private abstract class Stage {
+		/** the queue. */
+		private final BlockingQueue<Job> queue;
+		/** the threads. */
+		private final List<Thread> threads = new ArrayList<>();
+
+		/**
+		 * Constructor. Starts the threads.
+		 * @param name the name of the stage
+		 * @param count the number of threads
+		 * @param stackSize the stack size, 0 for the default
+		 */
+		Stage(final String name, final int count, final long stackSize) {
+			queue = new ArrayBlockingQueue<>(queueSize);
+			for (int i = 0; i < count; i++) {
+				Thread t = new Thread(null, new Runnable() {
+					@Override
+					public void run() {
+						work();
+					}
+				}, name + "-" + (i + 1), stackSize);
+				t.setDaemon(true);
+				threads.add(t);
+				t.start();
+			}
+		}
+
+		/**
+		 * Takes jobs until interrupted.
+		 */
+		private void work() {
+			while (true) {
+				Job job;
+				try {
+					job = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					Stage next;
+					throttle.enter();
+					try {
+						next = process(job);
+					} finally {
+						throttle.exit();
+					}
+					// pass on without the slot, a full queue must not hold it
+					if (next != null) {
+						next.put(job);
+					}
+				} catch (IOException | RuntimeException e) {
+					job.fail(e);
+				} catch (InterruptedException e) {
+					job.fail(e);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Queues a job, waits while the queue is full.
+		 * @param job the job
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		void put(final Job job) throws InterruptedException {
+			queue.put(job);
+		}
+
+		/**
+		 * Processes a job.
+		 * @param job the job
+		 * @return the stage to pass the job on to, null if done
+		 * @throws IOException if an I/O error occurs
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		abstract Stage process(Job job)
+				throws IOException, InterruptedException;
+
+		/**
+		 * Gets how full the queue is.
+		 * @return 0 for empty to 1 for full
+		 */
+		double load() {
+			return (double) queue.size() / queueSize;
+		}
+
+		/**
+		 * Stops the threads.
+		 */
+		void stop() {
+			for (Thread t:threads) {
+				t.interrupt();
+			}
+		}
+	}
+
+	/** the bytes of a permit of the semaphore. */
+	private static final int PERMITBYTES = 1024;
+
+	/** the stack size of threads of the I/O stages in mode IO. */
+	private static final long IOSTACK = 256 * 1024;
+
+	/** the capacity of each queue. */
+	private final int queueSize;
+
+	/** bounds the bytes in flight, in permits. */
+	private final Semaphore inFlight;
+
+	/** the number of permits of the semaphore. */
+	private final int maxPermits;
+
+	/** the checksums being written, so equal files are written once. */
+	private final ConcurrentMap<String, Boolean> writing =
+			new ConcurrentHashMap<>();
+
+	/** the longest chain of deltas, 0 for no deltas. */
+	private volatile int maxChain = 0;
+
+	/** chooses the deflate level. */
+	private volatile LevelController levels = new LevelController();
+
+	/** the metrics of the run. */
+	private final Metrics metrics = Metrics.getCurrent();
+
+	/** bounds the reads, writes and workers. */
+	private final Throttle throttle = Throttle.getThrottle();
+
+	/** records the files done, null for none. */
+	private volatile Checkpoint checkpoint = null;
+
+	/** the hash stage, null in mode SERIAL. */
+	private final Stage hashStage;
+
+	/** the compress stage, null in mode SERIAL. */
+	private final Stage compressStage;
+
+	/** the write stage, null in mode SERIAL. */
+	private final Stage writeStage;
+
+	/**
+	 * Constructor.
+	 * @param mode the mode
+	 * @param threads the number of threads of the I/O stages in mode IO
+	 * @param maxInFlightBytes the bound of the bytes in flight
+	 */
+	public BlobIngester(final Mode mode, final int threads,
+			final long maxInFlightBytes) {
+		this(mode, stageThreads(mode, threads, false),
+				stageThreads(mode, 0, true),
+				stageThreads(mode, threads, false),
+				Runtime.getRuntime().availableProcessors() * 2 + threads,
+				maxInFlightBytes);
+	}
+
+	/**
+	 * Constructor.
+	 * @param mode the mode, IO gives the hash and write threads small stacks
+	 * @param hashThreads the number of threads reading and hashing
+	 * @param compressThreads the number of threads deflating
+	 * @param writeThreads the number of threads writing
+	 * @param queue the capacity of the queue of each stage
+	 * @param maxInFlightBytes the bound of the bytes in flight
+	 */
+	public BlobIngester(final Mode mode, final int hashThreads,
+			final int compressThreads, final int writeThreads,
+			final int queue, final long maxInFlightBytes) {
+		queueSize = Math.max(1, queue);
+		maxPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+				maxInFlightBytes / PERMITBYTES));
+		inFlight = new Semaphore(maxPermits);
+		if (mode == Mode.SERIAL) {
+			hashStage = null;
+			compressStage = null;
+			writeStage = null;
+			return;
+		}
+		long ioStack = mode == Mode.IO ? IOSTACK : 0;
+		writeStage = new Stage("ingest-write", writeThreads, ioStack) {
+			@Override
+			Stage process(final Job job) throws IOException {
+				write(job);
+				return null;
+			}
+		};
+		compressStage = new Stage("ingest-deflate", compressThreads, 0) {
+			@Override
+			Stage process(final Job job) {
+				byte[] delta = null;
+				if (job.base != null && maxChain > 0
+						&& job.size >= Blob.DELTAMIN) {
+					delta = Blob.delta(job.data, job.base, maxChain);
+				}
+				if (delta != null) {
+					job.data = delta;
+				} else {
+					LevelController lc = levels;
+					lc.sample(compressStage.load(), writeStage.load());
+					int level = lc.getLevel();
+					job.data = CompressionUtil.deflate(job.data,
+							Dictionaries.forFile(job.file, job.size), level);
+					metrics.level(level, job.size);
+					metrics.add(Metrics.Counter.FILES_COMPRESSED, 1);
+					metrics.add(Metrics.Counter.BYTES_COMPRESSED, job.size);
+				}
+				return writeStage;
+			}
+		};
+		hashStage = new Stage("ingest-hash", hashThreads, ioStack) {
+			@Override
+			Stage process(final Job job) throws IOException {
+				return hash(job);
+			}
+		};
+	}
+
+	/**
+	 * Gets the default number of threads of a stage.
+	 * @param mode the mode
+	 * @param threads the number of threads of the I/O stages in mode IO
+	 * @param cpu the stage is bound by the CPU or not
+	 * @return the number of threads
+	 */
+	private static int stageThreads(final Mode mode, final int threads,
+			final boolean cpu) {
+		if (mode == Mode.IO && !cpu) {
+			return Math.max(1, threads);
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Stores changed small files as deltas to their previous version,
+	 * see {@link #submit(Path, long, Blob)}.
+	 * @param chain the longest chain of deltas down to a full object,
+	 *        0 for no deltas
+	 */
+	public void setDeltaChain(final int chain) {
+		maxChain = chain;
+	}
+
+	/**
+	 * Sets the deflate level of small files. An adaptive level steps
+	 * down while deflate is the bottleneck and up while writing is,
+	 * see {@link LevelController}. In mode SERIAL the default level
+	 * is always used.
+	 * @param level the level to start with, 0 only stores
+	 * @param adaptive step the level or keep it
+	 * @param windowMillis the time the backup should take at most,
+	 *        0 for no limit
+	 * @param expectedBytes the bytes expected to be scanned,
+	 *        e.g. by the last backup
+	 */
+	public void setLevel(final int level, final boolean adaptive,
+			final long windowMillis, final long expectedBytes) {
+		levels = new LevelController(level, adaptive,
+				windowMillis * 1000000L, expectedBytes);
+	}
+
+	/**
+	 * Records the files done in a checkpoint, and gives files done by
+	 * an earlier run their recorded blob instead of reading them,
+	 * see {@link #submit(Path, long, long, Blob)}.
+	 * @param files the checkpoint, null for none
+	 */
+	public void setCheckpoint(final Checkpoint files) {
+		checkpoint = files;
+	}
+
+	/**
+	 * Records a file done in the checkpoint, if any.
+	 * A checkpoint which cannot be written does not fail the file.
+	 * @param filePath the file
+	 * @param size the size of the file when it was scanned
+	 * @param millis the modification time of the file, -1 if unknown
+	 * @param blob the blob
+	 */
+	private void record(final Path filePath, final long size,
+			final long millis, final Blob blob) {
+		Checkpoint c = checkpoint;
+		if (c == null || millis < 0) {
+			return;
+		}
+		try {
+			c.record(filePath, size, millis, blob);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Starts the ingest of a file.
+	 * Waits while the pipeline is full.
+	 * @param filePath the file
+	 * @return the blob, when done
+	 * @throws IOException if the file cannot be read or interrupted
+	 */
+	public Future<Blob> submit(final Path filePath) throws IOException {
+		long t0 = System.nanoTime();
+		long size = Files.size(filePath);
+		metrics.time(Metrics.Phase.SCAN, System.nanoTime() - t0);
+		return submit(filePath, size);
+	}
+
+	/**
+	 * Starts the ingest of a file whose size is known from a listing.
+	 * Waits while the pipeline is full.
+	 * @param filePath the file
+	 * @param size the size of the file
+	 * @return the blob, when done
+	 * @throws IOException if the file cannot be read or interrupted
+	 */
+	public Future<Blob> submit(final Path filePath, final long size)
+			throws IOException {
+		return submit(filePath, size, null);
+	}
+
+	/**
+	 * Starts the ingest of a file whose size is known from a listing
+	 * and whose previous version may be a base of a delta.
+	 * Waits while the pipeline is full.
+	 * @param filePath the file
+	 * @param size the size of the file
+	 * @param base the blob of the previous version, may be null
+	 * @return the blob, when done
+	 * @throws IOException if the file cannot be read or interrupted
+	 */
+	public Future<Blob> submit(final Path filePath, final long size,
+			final Blob base) throws IOException {
+		return submit(filePath, size, -1, base);
+	}
+
+	/**
+	 * Starts the ingest of a file whose size and modification time are
+	 * known from a listing and whose previous version may be a base of
+	 * a delta. A file the checkpoint has with the same size and time is
+	 * given its recorded blob at once. Waits while the pipeline is full.
+	 * @param filePath the file
+	 * @param size the size of the file
+	 * @param millis the modification time of the file, -1 if unknown
+	 * @param base the blob of the previous version, may be null
+	 * @return the blob, when done
+	 * @throws IOException if the file cannot be read or interrupted
+	 */
+	public Future<Blob> submit(final Path filePath, final long size,
+			final long millis, final Blob base) throws IOException {
+		Checkpoint c = checkpoint;
+		final Blob resumed = c == null || millis < 0 ? null
+				: c.lookup(filePath, size, millis);
+		if (resumed != null) {
+			metrics.add(Metrics.Counter.FILES_SCANNED, 1);
+			metrics.add(Metrics.Counter.BYTES_SCANNED, size);
+			metrics.add(Metrics.Counter.FILES_RESUMED, 1);
+			metrics.add(Metrics.Counter.BYTES_RESUMED, size);
+			Job job = new Job(filePath, size, millis, base, 0);
+			job.complete(resumed, null);
+			return job;
+		}
+		if (hashStage == null) {
+			Job job = new Job(filePath, size, millis, base, 0);
+			try {
+				throttle.read(size);
+				Blob blob = Blob.create(filePath, size, base, maxChain);
+				record(filePath, size, millis, blob);
+				job.complete(blob, null);
+			} catch (IOException | RuntimeException e) {
+				job.complete(null, e);
+			}
+			return job;
+		}
+		int permits = (int) Math.max(1, Math.min(maxPermits,
+				(size + PERMITBYTES - 1) / PERMITBYTES));
+		try {
+			inFlight.acquire(permits);
+			Job job = new Job(filePath, size, millis, base, permits);
+			try {
+				hashStage.put(job);
+			} catch (InterruptedException e) {
+				inFlight.release(permits);
+				throw e;
+			}
+			return job;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Reads and hashes a file, then passes it on unless already stored.
+	 * @param job the job
+	 * @return the stage to pass the job on to, null if done
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Stage hash(final Job job) throws IOException {
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		if (reporter.isEnabled(ProgressReporter.Level.DEBUG)) {
+			reporter.debug("Create Blob for " + job.file);
+		}
+		boolean small = job.size < Blob.COMPRESSLIM;
+		String checksum;
+		if (small) {
+			throttle.read(job.size);
+			long t0 = System.nanoTime();
+			job.data = Files.readAllBytes(job.file);
+			metrics.time(Metrics.Phase.READ, System.nanoTime() - t0);
+			checksum = SHA1Util.sha1Checksum(job.data);
+		} else {
+			List<long[]> extents = new ArrayList<>();
+			try (InputStream in = throttle.read(
+					Files.newInputStream(job.file))) {
+				checksum = SparseUtil.scan(in, extents);
+			}
+			if (Blob.isWorthSparse(job.size, extents)) {
+				job.extents = extents;
+			}
+		}
+		metrics.add(Metrics.Counter.FILES_SCANNED, 1);
+		metrics.add(Metrics.Counter.BYTES_SCANNED, job.size);
+		metrics.add(Metrics.Counter.FILES_HASHED, 1);
+		metrics.add(Metrics.Counter.BYTES_HASHED, job.size);
+
+		long t1 = System.nanoTime();
+		Path outFilePath = BackupObject.checksumToPath(checksum);
+		Files.createDirectories(outFilePath.getParent());
+		job.checksum = checksum;
+		boolean exists = GroupCommit.exists(outFilePath)
+				|| writing.putIfAbsent(checksum, Boolean.TRUE) != null;
+		metrics.time(Metrics.Phase.SCAN, System.nanoTime() - t1);
+		if (exists) {
+			metrics.add(Metrics.Counter.FILES_DEDUPLICATED, 1);
+			metrics.add(Metrics.Counter.OBJECTS_REUSED, 1);
+			metrics.add(Metrics.Counter.BYTES_DEDUPLICATED, job.size);
+			job.done(small 
+					|| Blob.isSparse(outFilePath, job.size, job.extents));
+			return null;
+		}
+		job.claimed = true;
+		return small ? compressStage : writeStage;
+	}
+
+	/**
+	 * Writes the object of a file and commits it.
+	 * @param job the job
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void write(final Job job) throws IOException {
+		Path outFilePath = BackupObject.checksumToPath(job.checksum);
+		boolean small = job.size < Blob.COMPRESSLIM;
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		if (reporter.isEnabled(ProgressReporter.Level.DEBUG)) {
+			reporter.debug((small ? "Compress " : "Copy ") 
+					+ job.file + " to " + outFilePath);
+		}
+		if (small) {
+			throttle.write(job.data.length);
+			CompressionUtil.writeCompressed(job.data, outFilePath);
+		} else if (job.extents != null) {
+			long bytes = SparseUtil.dataBytes(job.extents);
+			throttle.read(bytes);
+			throttle.write(bytes);
+			Blob.writeSparse(job.file, job.size, job.extents, outFilePath);
+		} else {
+			long t0 = System.nanoTime();
+			Path tempFile = GroupCommit.createTemp(outFilePath);
+			try (InputStream in = throttle.copy(
+					Files.newInputStream(job.file))) {
+				Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			metrics.time(Metrics.Phase.WRITE, System.nanoTime() - t0);
+			GroupCommit.commit(tempFile, outFilePath, job.size);
+			metrics.add(Metrics.Counter.BYTES_WRITTEN, job.size);
+		}
+		metrics.add(Metrics.Counter.OBJECTS_WRITTEN, 1);
+		job.done(small || job.extents != null);
+	}
+
+	/**
+	 * Waits for the ingest of a file.
+	 * @param future the future from {@link #submit(Path)}
+	 * @return the blob
+	 * @throws IOException if the ingest failed or was interrupted
+	 */
+	public static Blob get(final Future<Blob> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Stops the threads. Files not yet ingested are dropped.
+	 */
+	public void shutdown() {
+		if (hashStage != null) {
+			hashStage.stop();
+			compressStage.stop();
+			writeStage.stop();
+		}
+	}
+}
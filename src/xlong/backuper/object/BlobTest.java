@@ -0,0 +1,119 @@
+package xlong.backuper.object;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xlong.backuper.util.SHA1Util;
+
+/**
+ * JUnit test class for Blob class.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public class BlobTest {
+
+	/** the temporary directory. */
+	private Path dir;
+
+	/** the object directories before the test. */
+	private String[] objectDirs;
+
+	/**
+	 * Stores the objects in a temporary directory.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Before
+	public final void setUp() throws IOException {
+		dir = Files.createTempDirectory("blob");
+		objectDirs = BackupObject.getObjectDirs();
+		BackupObject.setObjectDir(dir.resolve("object").toString());
+	}
+
+	/**
+	 * Restores the object directories and deletes the temporary directory.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@After
+	public final void tearDown() throws IOException {
+		BackupObject.setObjectDirs(objectDirs);
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file,
+					final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path d,
+					final IOException e) throws IOException {
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Test method for {@link Blob#isSparse(Path, long, java.util.List)},
+	 * a big file which starts like a sparse object is copied, and stays
+	 * a copy when a later backup finds its object.
+	 * @throws IOException if an I/O error occurs
+	 * @throws InterruptedException if interrupted
+	 * @throws ExecutionException if the file cannot be ingested
+	 */
+	@Test
+	public final void testCopyLikeSparse() throws IOException,
+			InterruptedException, ExecutionException {
+		Path source = dir.resolve("source");
+		Files.createDirectories(source);
+		Path file = source.resolve("repository.img");
+		byte[] block = new byte[65536];
+		Arrays.fill(block, (byte) 'x');
+		try (OutputStream out = Files.newOutputStream(file)) {
+			out.write(new byte[] {'X', 'L', 'S', 1});
+			for (long n = 0; n < Blob.COMPRESSLIM; n += block.length) {
+				out.write(block);
+			}
+		}
+		long size = Files.size(file);
+		TreeBuilder tb = new TreeBuilder();
+		tb.add(source, Paths.get("nick"));
+
+		Tree first = Tree.create(tb);
+		Blob blob = Blob.create(file, size);
+		assertFalse(blob.isCompressed());
+		BlobIngester ingester = new BlobIngester(
+				BlobIngester.Mode.CPU, 2, 1 << 20);
+		Tree second;
+		try {
+			assertFalse(ingester.submit(file, size).get().isCompressed());
+			second = Tree.create(tb, ingester);
+		} finally {
+			ingester.shutdown();
+		}
+		assertEquals(first.getChecksum(), second.getChecksum());
+
+		Path out = dir.resolve("restore");
+		assertTrue(second.restore(out));
+		Path restored = out.resolve("nick").resolve("repository.img");
+		assertEquals(size, Files.size(restored));
+		assertEquals(SHA1Util.sha1Checksum(file),
+				SHA1Util.sha1Checksum(restored));
+	}
+}
@@ -0,0 +1,316 @@
+package xlong.backuper.object;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import xlong.backuper.util.GroupCommit;
+import xlong.backuper.util.ProcessLock;
+
+/**
+ * The files a backup has already ingested, so a backup which died
+ * can resume without reading them again.
+ * <p>
+ * Every file done is recorded with its size, modification time and
+ * blob. Now and then the objects pending in the batch of
+ * {@link GroupCommit} are flushed and the records since the last time
+ * are appended to the checkpoint file and forced to disk, so
+ * a record never refers to an object which may be lost.
+ * A file whose size and time are unchanged and whose object exists
+ * is given its recorded blob, so the trees assembled, and the tree of
+ * the backup, are the same as if the backup had not been interrupted.
+ * <p>
+ * A resumed checkpoint is rewritten first, dropping a record torn by
+ * the crash and records whose object is gone.
+ * <p>
+ * Each run has a checkpoint file of its own, named by a prefix, such as
+ * the checksum of the tree builder, and a UUID. A run holds the lock
+ * file of its checkpoint, the checkpoint file with ".lock" added, until
+ * it ends, so a checkpoint whose lock is free was left by a run which
+ * died, and the next run with the same prefix claims it.
+ * The checkpoint file is deleted when the backup is saved.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class Checkpoint {
+
+	/**
+	 * The record of a file.
+	 */
+	private static final class Entry {
+		/** the size. */
+		private final long size;
+		/** the modification time in milliseconds. */
+		private final long time;
+		/** the checksum of the blob. */
+		private final String checksum;
+		/** the blob is compressed or not. */
+		private final boolean compressed;
+
+		/**
+		 * Constructor.
+		 * @param fileSize the size
+		 * @param millis the modification time in milliseconds
+		 * @param id the checksum of the blob
+		 * @param isCompressed the blob is compressed or not
+		 */
+		Entry(final long fileSize, final long millis, final String id,
+				final boolean isCompressed) {
+			size = fileSize;
+			time = millis;
+			checksum = id;
+			compressed = isCompressed;
+		}
+	}
+
+	/** the suffix of the lock file of a checkpoint. */
+	private static final String LOCKSUFFIX = ".lock";
+
+	/** the checkpoint file. */
+	private final Path file;
+
+	/** the lock of the checkpoint, held by this run. */
+	private final ProcessLock claim;
+
+	/** the time between two checkpoints in nanoseconds. */
+	private final long interval;
+
+	/** the files done by an earlier run by path. */
+	private final Map<String, Entry> done = new HashMap<>();
+
+	/** the records not yet written. */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+	/** writes the records not yet written. */
+	private final DataOutputStream records = new DataOutputStream(pending);
+
+	/** when the last checkpoint was written. */
+	private long last = System.nanoTime();
+
+	/**
+	 * Claims the checkpoint a dead run left with a prefix, or a new one.
+	 * The caller holds a lock of the directory, so no run deletes
+	 * a checkpoint while it is claimed.
+	 * @param dir the directory of the checkpoints
+	 * @param prefix the prefix of the name
+	 * @param seconds the time between two checkpoints
+	 * @param resume continue from the checkpoint or start over
+	 * @return the checkpoint, {@link #close()} it at the end of the run
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static Checkpoint claim(final Path dir, final String prefix,
+			final long seconds, final boolean resume) throws IOException {
+		Files.createDirectories(dir);
+		try (DirectoryStream<Path> stream = 
+				Files.newDirectoryStream(dir, prefix + "-*")) {
+			for (Path p:stream) {
+				String name = p.getFileName().toString();
+				if (name.endsWith(LOCKSUFFIX) 
+						|| name.endsWith(GroupCommit.TEMPSUFFIX)) {
+					continue;
+				}
+				ProcessLock lock = ProcessLock.tryLock(lockPath(p));
+				if (lock != null) {
+					return open(p, lock, seconds, resume);
+				}
+			}
+		}
+		Path p = dir.resolve(prefix + "-" + UUID.randomUUID());
+		return open(p, ProcessLock.lock(lockPath(p)), seconds, false);
+	}
+
+	/**
+	 * Opens a checkpoint claimed, releasing the claim if it fails.
+	 * @param checkpointPath the checkpoint file
+	 * @param lock the lock of the checkpoint
+	 * @param seconds the time between two checkpoints
+	 * @param resume continue from the checkpoint or start over
+	 * @return the checkpoint
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static Checkpoint open(final Path checkpointPath,
+			final ProcessLock lock, final long seconds, 
+			final boolean resume) throws IOException {
+		try {
+			return new Checkpoint(checkpointPath, lock, seconds, resume);
+		} catch (IOException e) {
+			lock.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the lock file of a checkpoint.
+	 * @param checkpointPath the checkpoint file
+	 * @return the lock file
+	 */
+	private static Path lockPath(final Path checkpointPath) {
+		return checkpointPath.resolveSibling(
+				checkpointPath.getFileName() + LOCKSUFFIX);
+	}
+
+	/**
+	 * Constructor. Reads the checkpoint of an earlier run, if any,
+	 * and rewrites it.
+	 * @param checkpointPath the checkpoint file
+	 * @param lock the lock of the checkpoint, held
+	 * @param seconds the time between two checkpoints
+	 * @param resume continue from the checkpoint or start over
+	 * @throws IOException if an I/O error occurs
+	 */
+	private Checkpoint(final Path checkpointPath, final ProcessLock lock,
+			final long seconds, final boolean resume) throws IOException {
+		file = checkpointPath;
+		claim = lock;
+		interval = seconds * 1000000000L;
+		if (resume && Files.exists(file)) {
+			read();
+		}
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path temp = GroupCommit.createTemp(file);
+		try (DataOutputStream out = new DataOutputStream(
+				Files.newOutputStream(temp))) {
+			for (Map.Entry<String, Entry> en:done.entrySet()) {
+				write(out, en.getKey(), en.getValue());
+			}
+		}
+		GroupCommit.commitNow(temp, file);
+	}
+
+	/**
+	 * Reads the records of an earlier run, up to a torn one.
+	 * Records whose object is gone are dropped.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void read() throws IOException {
+		try (InputStream is = Files.newInputStream(file);
+				DataInputStream in = new DataInputStream(
+						new BufferedInputStream(is))) {
+			while (true) {
+				String path = in.readUTF();
+				Entry entry = new Entry(in.readLong(), in.readLong(),
+						in.readUTF(), in.readBoolean());
+				if (Files.exists(
+						BackupObject.checksumToPath(entry.checksum))) {
+					done.put(path, entry);
+				}
+			}
+		} catch (EOFException e) {
+			// the end, or a record torn by the crash
+		}
+	}
+
+	/**
+	 * Writes a record.
+	 * @param out the output
+	 * @param path the path of the file
+	 * @param entry the record
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void write(final DataOutputStream out, final String path,
+			final Entry entry) throws IOException {
+		out.writeUTF(path);
+		out.writeLong(entry.size);
+		out.writeLong(entry.time);
+		out.writeUTF(entry.checksum);
+		out.writeBoolean(entry.compressed);
+	}
+
+	/**
+	 * Gets the number of files done by an earlier run.
+	 * @return the number of files
+	 */
+	public int getResumed() {
+		return done.size();
+	}
+
+	/**
+	 * Gets the blob of a file done by an earlier run.
+	 * @param filePath the file
+	 * @param size the size of the file now
+	 * @param millis the modification time of the file now
+	 * @return the blob, null if the file was not done or changed since
+	 */
+	synchronized Blob lookup(final Path filePath, final long size,
+			final long millis) {
+		Entry entry = done.get(filePath.toString());
+		if (entry == null || entry.size != size || entry.time != millis) {
+			return null;
+		}
+		return new Blob(entry.checksum, entry.compressed);
+	}
+
+	/**
+	 * Records a file done, and writes a checkpoint if it is time.
+	 * @param filePath the file
+	 * @param size the size of the file when it was scanned
+	 * @param millis the modification time of the file when it was scanned
+	 * @param blob the blob
+	 * @throws IOException if the checkpoint cannot be written
+	 */
+	synchronized void record(final Path filePath, final long size,
+			final long millis, final Blob blob) throws IOException {
+		write(records, filePath.toString(), new Entry(size, millis,
+				blob.getChecksum(), blob.isCompressed()));
+		if (System.nanoTime() - last >= interval) {
+			flush();
+		}
+	}
+
+	/**
+	 * Writes a checkpoint: flushes the objects pending, then appends the
+	 * records not yet written and forces them to disk.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public synchronized void flush() throws IOException {
+		last = System.nanoTime();
+		if (pending.size() == 0) {
+			return;
+		}
+		GroupCommit.flush();
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(false);
+		}
+		pending.reset();
+	}
+
+	/**
+	 * Deletes the checkpoint file and its lock file, once the backup is
+	 * saved, and releases the checkpoint. The caller holds the lock of
+	 * the directory, see {@link #claim(Path, String, long, boolean)}.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public synchronized void delete() throws IOException {
+		pending.reset();
+		Files.deleteIfExists(file);
+		close();
+		Files.deleteIfExists(lockPath(file));
+	}
+
+	/**
+	 * Releases the checkpoint, so the next run may claim it.
+	 * Releasing it again does nothing.
+	 * @throws IOException if the lock cannot be released
+	 */
+	public synchronized void close() throws IOException {
+		claim.close();
+	}
+}
@@ -0,0 +1,157 @@
+package xlong.backuper.object;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import xlong.backuper.util.Metrics;
+
+/**
+ * JUnit test class for Checkpoint class, resuming a backup through
+ * BlobIngester.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public class CheckpointTest {
+
+	/** the number of files backed up. */
+	private static final int FILES = 40;
+
+	/** the temporary directory. */
+	private Path dir;
+
+	/** the object directories before the test. */
+	private String[] objectDirs;
+
+	/**
+	 * Stores the objects in a temporary directory.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Before
+	public final void setUp() throws IOException {
+		dir = Files.createTempDirectory("checkpoint");
+		objectDirs = BackupObject.getObjectDirs();
+		BackupObject.setObjectDir(dir.resolve("object").toString());
+	}
+
+	/**
+	 * Restores the object directories and deletes the temporary directory.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@After
+	public final void tearDown() throws IOException {
+		BackupObject.setObjectDirs(objectDirs);
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(final Path file,
+					final BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(final Path d,
+					final IOException e) throws IOException {
+				Files.delete(d);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Lists the checkpoint files and their lock files.
+	 * @param backupDir the directory of the checkpoints
+	 * @return the names
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static List<String> checkpoints(final Path backupDir)
+			throws IOException {
+		List<String> names = new ArrayList<>();
+		try (DirectoryStream<Path> stream =
+				Files.newDirectoryStream(backupDir, "checkpoint-*")) {
+			for (Path p:stream) {
+				names.add(p.getFileName().toString());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Test method for {@link Checkpoint}, a backup which dies after a
+	 * checkpoint resumes into the same tree as a backup never interrupted.
+	 * @throws IOException if an I/O error occurs
+	 * @throws InterruptedException if interrupted
+	 * @throws ExecutionException if a file cannot be ingested
+	 */
+	@Test
+	public final void testResume() throws IOException,
+			InterruptedException, ExecutionException {
+		Path source = dir.resolve("source");
+		Random random = new Random(1);
+		List<Path> files = new ArrayList<>();
+		for (int i = 0; i < FILES; i++) {
+			Path file = source.resolve("d" + (i % 4)).resolve("f" + i);
+			Files.createDirectories(file.getParent());
+			byte[] content = new byte[1000 + random.nextInt(20000)];
+			random.nextBytes(content);
+			Files.write(file, content);
+			files.add(file);
+		}
+		TreeBuilder tb = new TreeBuilder();
+		tb.add(source, Paths.get("nick"));
+		Path backupDir = dir.resolve("backup");
+		String prefix = "checkpoint-" + tb.getChecksum();
+
+		// the first run ingests half the files, writes a checkpoint, dies
+		Checkpoint first = Checkpoint.claim(backupDir, prefix, 0, true);
+		BlobIngester ingester = new BlobIngester(
+				BlobIngester.Mode.CPU, 2, 1 << 20);
+		ingester.setCheckpoint(first);
+		for (Path file:files.subList(0, FILES / 2)) {
+			ingester.submit(file, Files.size(file),
+					Files.getLastModifiedTime(file).toMillis(), null).get();
+		}
+		ingester.shutdown();
+		first.flush();
+		first.close();
+		assertEquals(2, checkpoints(backupDir).size());
+
+		// the next run resumes from the checkpoint of the dead one
+		Metrics metrics = Metrics.start("backup");
+		Checkpoint next = Checkpoint.claim(backupDir, prefix, 0, true);
+		assertEquals(FILES / 2, next.getResumed());
+		ingester = new BlobIngester(BlobIngester.Mode.CPU, 2, 1 << 20);
+		ingester.setCheckpoint(next);
+		Tree resumed;
+		try {
+			resumed = Tree.create(tb, ingester);
+		} finally {
+			ingester.shutdown();
+		}
+		metrics.finish();
+		assertEquals(FILES / 2, metrics.get(Metrics.Counter.FILES_RESUMED));
+		next.delete();
+		assertTrue(checkpoints(backupDir).isEmpty());
+
+		// a run never interrupted, into an empty repository
+		BackupObject.setObjectDir(dir.resolve("object2").toString());
+		Tree expected = Tree.create(tb);
+		assertEquals(expected.getChecksum(), resumed.getChecksum());
+	}
+}
@@ -0,0 +1,273 @@
+package xlong.backuper.object;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import xlong.backuper.util.CompressionUtil;
+import xlong.backuper.util.DictionaryUtil;
+import xlong.backuper.util.GroupCommit;
+import xlong.backuper.util.ProgressReporter;
+
+/**
+ * The preset dictionaries of the repository, one for each file extension.
+ * <p>
+ * Dictionaries live in the dictionary directory of {@link CompressionUtil},
+ * named by their identifier. The file "index" there says which dictionary
+ * is current for each extension, one "extension identifier" per line.
+ * Training a new dictionary only changes the index, older ones are kept,
+ * so every object can still be inflated with the dictionary it names.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class Dictionaries {
+
+	/** the name of the index file. */
+	private static final String INDEX = "index";
+
+	/** files from this size on are compressed without a dictionary. */
+	static final int DICTLIMIT = 65536;
+
+	/** the fewest samples to train a dictionary from. */
+	private static final int MINSAMPLES = 8;
+
+	/** a dictionary must save this percentage of the compressed size. */
+	private static final int MINGAIN = 5;
+
+	/** percent. */
+	private static final int PERCENT = 100;
+
+	/** the directory the index was loaded from. */
+	private static Path loadedDir = null;
+
+	/** the current dictionary by extension. */
+	private static Map<String, Integer> current = new HashMap<>();
+
+	/**
+	 * Private constructor to make sure no instance of this class will be
+	 * created.
+	 */
+	private Dictionaries() {
+		// will not be called
+	}
+
+	/**
+	 * Gets the extension of a file name, in lower case.
+	 * @param name the file name
+	 * @return the extension, empty if there is none
+	 */
+	public static String extension(final String name) {
+		int dot = name.lastIndexOf('.');
+		if (dot <= 0 || dot == name.length() - 1) {
+			return "";
+		}
+		return name.substring(dot + 1).toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Gets the current dictionaries by extension, loading the index
+	 * when the dictionary directory changed.
+	 * @return the identifiers by extension
+	 */
+	private static synchronized Map<String, Integer> index() {
+		Path dir = CompressionUtil.getDictionaryDir();
+		if (!dir.equals(loadedDir)) {
+			current = new HashMap<>();
+			loadedDir = dir;
+			Path file = dir.resolve(INDEX);
+			if (Files.exists(file)) {
+				try {
+					for (String line:Files.readAllLines(file,
+							StandardCharsets.UTF_8)) {
+						// the extension may be empty
+						int space = line.lastIndexOf(' ');
+						if (space >= 0) {
+							String id = line.substring(space + 1);
+							current.put(line.substring(0, space),
+									(int) Long.parseLong(id, 16));
+						}
+					}
+				} catch (IOException | NumberFormatException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * Gets the dictionary to compress a file with.
+	 * @param file the file
+	 * @param size the size of the file
+	 * @return the dictionary, null for none
+	 */
+	static byte[] forFile(final Path file, final long size) {
+		if (size >= DICTLIMIT) {
+			return null;
+		}
+		Integer id = index().get(
+				extension(file.getFileName().toString()));
+		if (id == null) {
+			return null;
+		}
+		try {
+			return CompressionUtil.getDictionary(id);
+		} catch (IOException e) {
+			ProgressReporter.getReporter().warn("No dictionary: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Trains a dictionary for each extension from the small files of a
+	 * tree, keeping the ones which make the samples much smaller.
+	 * @param tree the tree, e.g. of the last backup
+	 * @param samples the most files sampled for each extension
+	 * @param size the size of each dictionary
+	 * @return the number of dictionaries made current
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static int train(final Tree tree, final int samples,
+			final int size) throws IOException {
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		final Map<String, List<Blob>> byType = new TreeMap<>();
+		final Map<String, Integer> seen = new HashMap<>();
+		final Random random = new Random(0);
+		// reservoir sampling keeps a fair choice of each extension
+		tree.walk(new TreeVisitor() {
+			@Override
+			public boolean preVisitTree(final Path path, final Tree t,
+					final int depth) {
+				return true;
+			}
+
+			@Override
+			public void visitBlob(final Path path, final Blob blob,
+					final int depth) {
+				if (!blob.isCompressed()) {
+					return;
+				}
+				String ext = extension(path.getFileName().toString());
+				List<Blob> list = byType.get(ext);
+				if (list == null) {
+					list = new ArrayList<>();
+					byType.put(ext, list);
+				}
+				int n = seen.containsKey(ext) ? seen.get(ext) + 1 : 1;
+				seen.put(ext, n);
+				if (list.size() < samples) {
+					list.add(blob);
+				} else {
+					int i = random.nextInt(n);
+					if (i < samples) {
+						list.set(i, blob);
+					}
+				}
+			}
+
+			@Override
+			public void postVisitTree(final Path path, final Tree t,
+					final int depth) {
+				// nothing to do
+			}
+		});
+		Map<String, Integer> index = new TreeMap<>(index());
+		int trained = 0;
+		for (Entry<String, List<Blob>> en:byType.entrySet()) {
+			List<byte[]> contents = new ArrayList<>();
+			for (Blob blob:en.getValue()) {
+				// big files are neither read nor inflated in full
+				byte[] content = Blob.readContent(blob.getChecksum(),
+						DICTLIMIT);
+				if (content != null && content.length > 0) {
+					contents.add(content);
+				}
+			}
+			if (contents.size() < MINSAMPLES) {
+				continue;
+			}
+			byte[] dictionary = DictionaryUtil.train(contents, size);
+			if (dictionary.length == 0) {
+				continue;
+			}
+			long plain = 0;
+			long preset = 0;
+			for (byte[] content:contents) {
+				plain += CompressionUtil.deflate(content).length;
+				preset += CompressionUtil.deflate(content, dictionary).length;
+			}
+			long gain = (plain - preset) * PERCENT / plain;
+			String name = en.getKey().isEmpty() ? "(none)" : en.getKey();
+			if (gain < MINGAIN) {
+				reporter.info(String.format(
+						"No dictionary for %s: %d%% smaller only", name, gain));
+				continue;
+			}
+			int id = CompressionUtil.dictionaryId(dictionary);
+			if (!save(id, dictionary)) {
+				reporter.warn(String.format(
+						"Dictionary %08x for %s clashes with another one",
+						id, name));
+				continue;
+			}
+			index.put(en.getKey(), id);
+			trained++;
+			reporter.info(String.format(
+					"Dictionary %08x for %s: %d samples, %d%% smaller",
+					id, name, contents.size(), gain));
+		}
+		saveIndex(index);
+		return trained;
+	}
+
+	/**
+	 * Saves a dictionary, unless it is already saved.
+	 * @param id the identifier
+	 * @param dictionary the dictionary
+	 * @return saved or not, false if another one has the identifier
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static boolean save(final int id, final byte[] dictionary)
+			throws IOException {
+		Path file = CompressionUtil.dictionaryPath(id);
+		if (Files.exists(file)) {
+			return Arrays.equals(dictionary, Files.readAllBytes(file));
+		}
+		Files.createDirectories(file.getParent());
+		Path temp = GroupCommit.createTemp(file);
+		Files.write(temp, dictionary);
+		GroupCommit.commitNow(temp, file);
+		return true;
+	}
+
+	/**
+	 * Saves the index and makes it current.
+	 * @param index the identifiers by extension
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static synchronized void saveIndex(
+			final Map<String, Integer> index) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (Entry<String, Integer> en:index.entrySet()) {
+			sb.append(en.getKey()).append(' ')
+				.append(String.format("%08x", en.getValue())).append('\n');
+		}
+		Path file = CompressionUtil.getDictionaryDir().resolve(INDEX);
+		Files.createDirectories(file.getParent());
+		Path temp = GroupCommit.createTemp(file);
+		Files.write(temp, sb.toString().getBytes(StandardCharsets.UTF_8));
+		GroupCommit.commitNow(temp, file);
+		current = new HashMap<>(index);
+		loadedDir = CompressionUtil.getDictionaryDir();
+	}
+}
@@ -0,0 +1,160 @@
+package xlong.backuper.object;
+
+import xlong.backuper.util.CompressionUtil;
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.ProgressReporter;
+
+/**
+ * Chooses the deflate level of the ingest while it runs.
+ * <p>
+ * The compress stage samples how full the queues of the compress and
+ * write stages are before each file. Every half second the averages
+ * decide: a full compress queue and an empty write queue mean the CPU is
+ * the bottleneck, so the level steps down; the other way round the disk
+ * is, so the level steps up and spends the idle CPU on fewer bytes.
+ * <p>
+ * With a backup window, the bytes of the last backup are expected.
+ * While the rate so far cannot finish them in time and the CPU is the
+ * bottleneck, the level steps down, at last to 0, which only stores.
+ * It only steps up while the backup is ahead of time.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+final class LevelController {
+
+	/** the time between decisions in nanoseconds. */
+	private static final long INTERVAL = 500000000L;
+
+	/** the best level. */
+	private static final int MAXLEVEL = 9;
+
+	/** the fastest level which still compresses. */
+	private static final int MINLEVEL = 1;
+
+	/** a queue fuller than this on average is busy. */
+	private static final double BUSY = 0.5;
+
+	/** a queue emptier than this on average is idle. */
+	private static final double IDLE = 0.1;
+
+	/** the level. */
+	private volatile int level;
+
+	/** step the level or keep it. */
+	private final boolean adaptive;
+
+	/** the end of the backup window in nanoseconds, 0 for none. */
+	private final long deadline;
+
+	/** the bytes expected to be scanned. */
+	private final long expected;
+
+	/** the metrics of the run. */
+	private final Metrics metrics = Metrics.getCurrent();
+
+	/** the start of the run. */
+	private final long start = System.nanoTime();
+
+	/** the time of the last decision. */
+	private long last = start;
+
+	/** the sum of the samples of the compress queue. */
+	private double compressLoad;
+
+	/** the sum of the samples of the write queue. */
+	private double writeLoad;
+
+	/** the number of samples. */
+	private int samples;
+
+	/**
+	 * Constructor.
+	 * @param initial the level to start with
+	 * @param adapt step the level or keep it
+	 * @param windowNanos the backup window in nanoseconds, 0 for none
+	 * @param expectedBytes the bytes expected to be scanned
+	 */
+	LevelController(final int initial, final boolean adapt,
+			final long windowNanos, final long expectedBytes) {
+		level = initial;
+		adaptive = adapt;
+		deadline = windowNanos > 0 ? start + windowNanos : 0;
+		expected = expectedBytes;
+	}
+
+	/**
+	 * Constructor. Keeps the default level.
+	 */
+	LevelController() {
+		this(CompressionUtil.DEFAULTLEVEL, false, 0, 0);
+	}
+
+	/**
+	 * Gets the level.
+	 * @return the level, 0 only stores
+	 */
+	int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Tests whether the rate so far misses the end of the backup window.
+	 * @param now the time
+	 * @return behind or not
+	 */
+	private boolean isBehind(final long now) {
+		long done = metrics.get(Metrics.Counter.BYTES_SCANNED);
+		if (done >= expected) {
+			return false;
+		}
+		if (now >= deadline) {
+			return true;
+		}
+		double rate = (double) done / (now - start);
+		return expected - done > rate * (deadline - now);
+	}
+
+	/**
+	 * Samples how full the queues are, and steps the level when it is
+	 * time to decide.
+	 * @param compress how full the compress queue is, 0 to 1
+	 * @param write how full the write queue is, 0 to 1
+	 */
+	synchronized void sample(final double compress, final double write) {
+		if (!adaptive) {
+			return;
+		}
+		compressLoad += compress;
+		writeLoad += write;
+		samples++;
+		long now = System.nanoTime();
+		if (now - last < INTERVAL) {
+			return;
+		}
+		double cpu = compressLoad / samples;
+		double disk = writeLoad / samples;
+		int next = level;
+		if (cpu >= BUSY && disk < IDLE) {
+			next = Math.max(Math.min(level, MINLEVEL), level - 1);
+		} else if (disk >= BUSY && cpu < IDLE) {
+			next = Math.min(MAXLEVEL, level + 1);
+		}
+		if (deadline != 0) {
+			boolean behind = isBehind(now);
+			if (behind && cpu >= BUSY) {
+				next = Math.max(0, level - 1);
+			} else if (behind && next > level) {
+				next = level;
+			}
+		}
+		if (next != level) {
+			ProgressReporter.getReporter().debug(
+					"Deflate level " + level + " to " + next);
+			level = next;
+		}
+		last = now;
+		compressLoad = 0;
+		writeLoad = 0;
+		samples = 0;
+	}
+}
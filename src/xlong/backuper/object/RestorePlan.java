@@ -0,0 +1,284 @@
+package xlong.backuper.object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.ProgressReporter;
+
+/**
+ * Restores blobs in the order their objects are stored, instead of the
+ * order of their nicknames, so a restore from a disk reads the
+ * repository mostly sequentially.
+ * <p>
+ * All files to restore are gathered first and the directories are
+ * made. The objects are then stat'ed and the files sorted by the
+ * object directory, then the inode of the object, which follows where
+ * the file system put it, then the path of the object. Equal blobs are
+ * restored one after another, the second reads the page cache.
+ * <p>
+ * While a file is written, a thread reads the next objects ahead, up
+ * to a window of bytes, so the reads of the disk overlap the writes
+ * and the restore finds its objects in the page cache. Objects larger
+ * than the window are not read ahead, they are read sequentially
+ * anyway. Where inodes are unknown the objects are in path order.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class RestorePlan {
+
+	/** the bytes of a permit of the window. */
+	private static final int PERMITBYTES = 1024;
+
+	/** the buffer to read ahead into. */
+	private static final int READBUFFER = 65536;
+
+	/** a file not read ahead nor restored. */
+	private static final int WAITING = 0;
+
+	/** a file read ahead, holding permits of the window. */
+	private static final int PREFETCHED = 1;
+
+	/** a file restored. */
+	private static final int RESTORED = 2;
+
+	/** the bytes read ahead at most, 0 for none. */
+	private static volatile long prefetchBytes = 64L << 20;
+
+	/**
+	 * A file to restore.
+	 */
+	private static final class Item {
+		/** the blob. */
+		private final Blob blob;
+		/** the file to restore to. */
+		private final Path out;
+		/** the object. */
+		private final Path object;
+		/** the directory of objects holding the object. */
+		private String root = "";
+		/** the inode of the object, 0 if unknown. */
+		private long inode = 0;
+		/** the size of the object. */
+		private long size = 0;
+
+		/**
+		 * Constructor.
+		 * @param b the blob
+		 * @param outPath the file to restore to
+		 */
+		Item(final Blob b, final Path outPath) {
+			blob = b;
+			out = outPath;
+			object = b.getPath();
+		}
+	}
+
+	/** the files to restore. */
+	private final List<Item> items = new ArrayList<>();
+
+	/** the directories to make, parents first. */
+	private final List<Path> dirs = new ArrayList<>();
+
+	/**
+	 * Sets the bytes read ahead of the files being restored.
+	 * @param bytes the bytes, 0 for no read ahead
+	 */
+	public static void setPrefetch(final long bytes) {
+		prefetchBytes = bytes;
+	}
+
+	/**
+	 * Adds a tree or blob to restore.
+	 * @param o the tree or blob
+	 * @param outPath the directory or file to restore to
+	 * @throws IOException if an I/O error occurs
+	 */
+	void add(final BackupObject o, final Path outPath) throws IOException {
+		if (o instanceof Blob) {
+			items.add(new Item((Blob) o, outPath));
+			return;
+		}
+		((Tree) o).walk(new TreeVisitor() {
+			@Override
+			public boolean preVisitTree(final Path path, final Tree tree,
+					final int depth) {
+				dirs.add(outPath.resolve(path));
+				return true;
+			}
+
+			@Override
+			public void visitBlob(final Path path, final Blob blob,
+					final int depth) {
+				items.add(new Item(blob, outPath.resolve(path)));
+			}
+
+			@Override
+			public void postVisitTree(final Path path, final Tree tree,
+					final int depth) {
+				// nothing to do
+			}
+		});
+	}
+
+	/**
+	 * Stats the objects and sorts the files by where their objects are.
+	 */
+	private void sort() {
+		long t0 = System.nanoTime();
+		for (Item item:items) {
+			Path parent = item.object.toAbsolutePath().getParent();
+			if (parent != null && parent.getParent() != null) {
+				item.root = parent.getParent().toString();
+			}
+			try {
+				Map<String, Object> attrs = Files.readAttributes(
+						item.object, "unix:ino,size");
+				item.inode = (Long) attrs.get("ino");
+				item.size = (Long) attrs.get("size");
+			} catch (UnsupportedOperationException
+					| IllegalArgumentException e) {
+				try {
+					item.size = Files.readAttributes(item.object,
+							BasicFileAttributes.class).size();
+				} catch (IOException e1) {
+					// the restore reports it
+				}
+			} catch (IOException e) {
+				// the restore reports it
+			}
+		}
+		Collections.sort(items, new Comparator<Item>() {
+			@Override
+			public int compare(final Item a, final Item b) {
+				int c = a.root.compareTo(b.root);
+				if (c == 0) {
+					c = Long.compare(a.inode, b.inode);
+				}
+				if (c == 0) {
+					c = a.object.compareTo(b.object);
+				}
+				return c;
+			}
+		});
+		Metrics.getCurrent().time(Metrics.Phase.SCAN, System.nanoTime() - t0);
+	}
+
+	/**
+	 * Gets the permits of the window a file holds when read ahead.
+	 * @param item the file
+	 * @param window the bytes of the window
+	 * @return the permits, 0 if it is not read ahead
+	 */
+	private static int permits(final Item item, final long window) {
+		if (item.size > window) {
+			return 0;
+		}
+		return (int) Math.max(1, (item.size + PERMITBYTES - 1) / PERMITBYTES);
+	}
+
+	/**
+	 * Restores the files.
+	 * @return all files restored and verified or not
+	 * @throws IOException if an I/O error occurs
+	 */
+	boolean run() throws IOException {
+		if (!Blob.isDryRun()) {
+			for (Path dir:dirs) {
+				Files.createDirectories(dir);
+			}
+		}
+		sort();
+		final long window = prefetchBytes;
+		final AtomicIntegerArray states = new AtomicIntegerArray(items.size());
+		final Semaphore free = new Semaphore((int) Math.min(Integer.MAX_VALUE,
+				Math.max(1, (window + PERMITBYTES - 1) / PERMITBYTES)));
+		Thread prefetcher = null;
+		if (window > 0) {
+			prefetcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					prefetch(states, free, window);
+				}
+			}, "restore-prefetch");
+			prefetcher.setDaemon(true);
+			prefetcher.start();
+		}
+		boolean flag = true;
+		try {
+			for (int i = 0; i < items.size(); i++) {
+				Item item = items.get(i);
+				try {
+					if (!item.blob.restore(item.out)) {
+						flag = false;
+					}
+				} finally {
+					if (!states.compareAndSet(i, WAITING, RESTORED)) {
+						states.set(i, RESTORED);
+						free.release(permits(item, window));
+					}
+				}
+			}
+		} finally {
+			if (prefetcher != null) {
+				prefetcher.interrupt();
+			}
+		}
+		return flag;
+	}
+
+	/**
+	 * Reads the objects ahead of the restore, in the order of the plan,
+	 * while the window has room.
+	 * @param states the state of every file
+	 * @param free the free permits of the window
+	 * @param window the bytes of the window
+	 */
+	private void prefetch(final AtomicIntegerArray states,
+			final Semaphore free, final long window) {
+		Metrics metrics = Metrics.getCurrent();
+		byte[] buffer = new byte[READBUFFER];
+		Path last = null;
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+			int permits = permits(item, window);
+			if (permits == 0 || states.get(i) != WAITING
+					|| item.object.equals(last)) {
+				continue;
+			}
+			try {
+				free.acquire(permits);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (!states.compareAndSet(i, WAITING, PREFETCHED)) {
+				// restored meanwhile
+				free.release(permits);
+				continue;
+			}
+			last = item.object;
+			long t0 = System.nanoTime();
+			try (InputStream in = Files.newInputStream(item.object)) {
+				while (in.read(buffer) > 0) {
+					if (Thread.currentThread().isInterrupted()) {
+						return;
+					}
+				}
+			} catch (IOException e) {
+				ProgressReporter.getReporter().debug(
+						"Cannot read ahead " + item.object + ": " + e);
+			}
+			metrics.time(Metrics.Phase.READ, System.nanoTime() - t0);
+		}
+	}
+}
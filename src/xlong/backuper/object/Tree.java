@@ -1,14 +1,29 @@
 package xlong.backuper.object;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.Future;
 import java.util.zip.DataFormatException;
 
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.PathRules;
+import xlong.backuper.util.ProgressReporter;
+
 /**
  * A tree object contains a map of blob nicknames to blob objects
  *  and a map of tree nicknames to other tree objects.
@@ -89,29 +104,197 @@ public final class Tree extends BackupObject {
 	}
 	
 	/**
-	 * Create a tree contains given directory.
+	 * A directory scanned, whose files may still be in the pipeline.
+	 */
+	private static final class Scan {
+		/** the directory. */
+		private final Path dir;
+		/** the parent, null for the root. */
+		private final Scan parent;
+		/** the nickname in the parent. */
+		private final String nick;
+		/** the path relative to the root, with "/", empty for the root. */
+		private final String rel;
+		/** identifies the directory on its file system, may be null. */
+		private final Object fileKey;
+		/** the tree of the directory in the previous backup, may be null. */
+		private final Tree previous;
+		/** the blobs by nickname, when done. */
+		private final TreeMap<String, Future<Blob>> files = new TreeMap<>();
+		/** the trees of the subdirectories by nickname, once assembled. */
+		private final TreeMap<String, Tree> trees = new TreeMap<>();
+		
+		/**
+		 * Constructor.
+		 * @param dirPath the directory
+		 * @param parentScan the parent, null for the root
+		 * @param name the nickname in the parent
+		 * @param key the file key of the directory
+		 * @param last the tree of the directory in the previous backup,
+		 *        may be null
+		 */
+		Scan(final Path dirPath, final Scan parentScan, final String name,
+				final Object key, final Tree last) {
+			dir = dirPath;
+			parent = parentScan;
+			nick = name;
+			fileKey = key;
+			previous = last;
+			if (parentScan == null) {
+				rel = "";
+			} else if (parentScan.rel.isEmpty()) {
+				rel = name;
+			} else {
+				rel = parentScan.rel + "/" + name;
+			}
+		}
+		
+		/**
+		 * Tests whether this directory or an ancestor is the given one.
+		 * @param key the file key of a directory
+		 * @return in the chain or not
+		 */
+		boolean isAncestor(final Object key) {
+			for (Scan s = this; s != null; s = s.parent) {
+				if (key.equals(s.fileKey)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Scans a directory and submits its files to the ingester.
+	 * <p>
+	 * The scan uses a work stack instead of recursion, so deep trees
+	 * cannot overflow the Java stack, and reads each directory to the
+	 * end and closes it before descending, so only one directory is open.
+	 * Each entry is stat'ed once, without following links. Only symbolic
+	 * links are stat'ed again to follow them. A link to a directory that
+	 * is already being scanned (a loop) and a broken link are skipped
+	 * with a warning, and so are special files like pipes.
+	 * Excluded files are skipped, excluded directories are never opened.
+	 * Files are submitted with their size and modification time, so
+	 * the files an interrupted backup has done are not read again,
+	 * see {@link BlobIngester#setCheckpoint(Checkpoint)}.
 	 * 
-	 * @param dirPath the directory to contain
-	 * @return the tree. If fail, return null.
+	 * @param dirPath the directory to scan
+	 * @param ingester the ingester of files
+	 * @param rules the include and exclude rules, null for none
+	 * @param last the tree of the directory in the previous backup,
+	 *        whose blobs are the bases of deltas, may be null
+	 * @return the scans in preorder, the root first. 
+	 *         If not a directory, return null.
 	 * @throws IOException if an I/O error occurs
 	 */
-	private static Tree create(final Path dirPath) 
-			throws IOException {
-		System.out.println("Create Tree for " + dirPath);
+	private static List<Scan> scan(final Path dirPath, 
+			final BlobIngester ingester, final PathRules rules,
+			final Tree last) throws IOException {
+		Metrics metrics = Metrics.getCurrent();
+		ProgressReporter reporter = ProgressReporter.getReporter();
+		boolean debug = reporter.isEnabled(ProgressReporter.Level.DEBUG);
+		BasicFileAttributes rootAttrs;
+		try {
+			rootAttrs = Files.readAttributes(dirPath, 
+					BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+		if (!rootAttrs.isDirectory()) {
+			return null;
+		}
+		List<Scan> scans = new ArrayList<>();
+		Deque<Scan> stack = new ArrayDeque<>();
+		stack.push(new Scan(dirPath, null, null, rootAttrs.fileKey(), last));
+		while (!stack.isEmpty()) {
+			Scan scan = stack.pop();
+			scans.add(scan);
+			if (debug) {
+				reporter.debug("Create Tree for " + scan.dir);
+			}
+			metrics.add(Metrics.Counter.DIRECTORIES_SCANNED, 1);
+			List<Scan> subdirs = new ArrayList<>();
+			try (DirectoryStream<Path> paths = 
+					Files.newDirectoryStream(scan.dir)) {
+				for (Path p:paths) {
+					long t0 = System.nanoTime();
+					BasicFileAttributes attrs = Files.readAttributes(p, 
+							BasicFileAttributes.class, 
+							LinkOption.NOFOLLOW_LINKS);
+					if (attrs.isSymbolicLink()) {
+						try {
+							attrs = Files.readAttributes(p, 
+									BasicFileAttributes.class);
+						} catch (IOException e) {
+							reporter.warn("Skip broken link " + p);
+							continue;
+						}
+					}
+					metrics.time(Metrics.Phase.SCAN, System.nanoTime() - t0);
+					String nick = p.getFileName().toString();
+					if (attrs.isOther()) {
+						reporter.warn("Skip special file " + p);
+						continue;
+					}
+					if (rules != null && rules.excludes(scan.rel.isEmpty() 
+							? nick : scan.rel + "/" + nick, 
+							attrs.isDirectory())) {
+						if (debug) {
+							reporter.debug("Exclude " + p);
+						}
+						continue;
+					}
+					if (attrs.isDirectory()) {
+						Object key = attrs.fileKey();
+						if (key != null && scan.isAncestor(key)) {
+							reporter.warn("Skip link loop " + p);
+							continue;
+						}
+						subdirs.add(new Scan(p, scan, nick, key, 
+								scan.previous == null ? null 
+										: scan.previous.trees.get(nick)));
+					} else {
+						scan.files.put(nick, ingester.submit(p, attrs.size(),
+								attrs.lastModifiedTime().toMillis(),
+								scan.previous == null ? null 
+										: scan.previous.blobs.get(nick)));
+					}
+				}
+			}
+			// push in reverse, so subdirectories are popped in order
+			for (int i = subdirs.size() - 1; i >= 0; i--) {
+				stack.push(subdirs.get(i));
+			}
+		}
+		return scans;
+	}
+	
+	/**
+	 * Builds the tree of a scan, waiting for its files.
+	 * The scans are assembled in reverse preorder, so children are done
+	 * before their parents, without recursion.
+	 * The checksum of each tree is calculated once from the sorted
+	 * entries, so the same directory always gives the same tree.
+	 * 
+	 * @param scans the scans in preorder, the root first
+	 * @return the tree of the root
+	 * @throws IOException if a file failed
+	 */
+	private static Tree assemble(final List<Scan> scans) throws IOException {
 		Tree tree = null;
-		if (Files.isDirectory(dirPath)) {
+		for (int i = scans.size() - 1; i >= 0; i--) {
+			Scan scan = scans.get(i);
 			tree = new Tree();
-			DirectoryStream<Path> paths = Files.newDirectoryStream(dirPath);
-			for (Path p:paths) {
-				if (Files.isDirectory(p)) {
-					Tree subtree = Tree.create(p);
-					tree.add(subtree, dirPath.relativize(p));
-				} else {
-					Blob blob = Blob.create(p);
-					tree.add(blob, dirPath.relativize(p));
-				}
-            }
+			for (Entry<String, Future<Blob>> en:scan.files.entrySet()) {
+				tree.blobs.put(en.getKey(), BlobIngester.get(en.getValue()));
+			}
+			tree.trees.putAll(scan.trees);
 			tree.calChecksum();
+			if (scan.parent != null) {
+				scan.parent.trees.put(scan.nick, tree);
+			}
+			scans.set(i, null);
 		}
 		return tree;
 	}
@@ -124,17 +307,62 @@ public final class Tree extends BackupObject {
 	 */
 	public static Tree create(final TreeBuilder tb) 
 			throws IOException {
+		return create(tb, new BlobIngester(BlobIngester.Mode.SERIAL, 1, 1));
+	}
+	
+	/**
+	 * Create a tree using treeBuilder.
+	 * @param tb the treeBuilder
+	 * @param ingester the ingester of files
+	 * @return the tree
+	 * @throws IOException IOException
+	 */
+	public static Tree create(final TreeBuilder tb, 
+			final BlobIngester ingester) throws IOException {
+		return create(tb, ingester, null);
+	}
+	
+	/**
+	 * Create a tree using treeBuilder.
+	 * Files are given their blob in the previous tree at the same
+	 * nickname path, as the base of a delta.
+	 * @param tb the treeBuilder
+	 * @param ingester the ingester of files
+	 * @param previous the tree of the previous backup, may be null
+	 * @return the tree
+	 * @throws IOException IOException
+	 */
+	public static Tree create(final TreeBuilder tb, 
+			final BlobIngester ingester, final Tree previous) 
+					throws IOException {
 		Tree tree = new Tree();
-		if (tb.getMap().size() > 0) {
-			for (Entry<String, String> en:tb.getMap().entrySet()) {
-				Path dirPath = Paths.get(en.getKey());
-				if (Files.isDirectory(dirPath)) {
-					Tree subtree = Tree.create(dirPath);
-					tree.add(subtree, Paths.get(en.getValue()));
-				} else {
-					Blob blob = Blob.create(dirPath);
-					tree.add(blob, Paths.get(en.getValue()));
-				}
+		// scan everything first, so the pipeline never runs dry
+		Map<String, Object> scans = new LinkedHashMap<>();
+		for (Entry<String, String> en:tb.getMap().entrySet()) {
+			Path dirPath = Paths.get(en.getKey());
+			BackupObject last = previous == null ? null 
+					: previous.get(Paths.get(en.getValue()));
+			List<Scan> dirScans = scan(dirPath, ingester, 
+					tb.getRules(en.getKey()), 
+					last instanceof Tree ? (Tree) last : null);
+			if (dirScans != null) {
+				scans.put(en.getValue(), dirScans);
+			} else {
+				scans.put(en.getValue(), ingester.submit(dirPath, 
+						Files.size(dirPath), 
+						last instanceof Blob ? (Blob) last : null));
+			}
+		}
+		for (Entry<String, Object> en:scans.entrySet()) {
+			Path nick = Paths.get(en.getKey());
+			if (en.getValue() instanceof List) {
+				@SuppressWarnings("unchecked")
+				List<Scan> dirScans = (List<Scan>) en.getValue();
+				tree.add(assemble(dirScans), nick);
+			} else {
+				@SuppressWarnings("unchecked")
+				Future<Blob> f = (Future<Blob>) en.getValue();
+				tree.add(BlobIngester.get(f), nick);
 			}
 		}
 		return tree;
@@ -202,6 +430,8 @@ public final class Tree extends BackupObject {
 	 * Restore the tree to the given directory.
 	 * If a file in the tree already exist,
 	 * this method will rewrite the file.
+	 * The files are restored in the order of their objects,
+	 * see {@link RestorePlan}.
 	 *  
 	 * @param outFileDir the directory to restore this tree
 	 * @return totally success or not.
@@ -210,24 +440,10 @@ public final class Tree extends BackupObject {
 	@Override
 	public boolean restore(final Path outFileDir) 
 			throws IOException {
-		System.out.println("Restore Tree to " + outFileDir);
-		boolean flag = true;
-		Files.createDirectories(outFileDir);
-		for (Entry<String, Blob> en:blobs.entrySet()) {
-			Blob blob = en.getValue();
-			Path nick = Paths.get(en.getKey());
-			if (!blob.restore(outFileDir.resolve(nick))) {
-				flag = false;
-			}
-		}
-		for (Entry<String, Tree> en:trees.entrySet()) {
-			Tree tree = en.getValue();
-			Path nick = Paths.get(en.getKey());
-			if (!tree.restore(outFileDir.resolve(nick))) {
-				flag = false;
-			}
-		}
-		return flag;
+		ProgressReporter.getReporter().debug("Restore Tree to " + outFileDir);
+		RestorePlan plan = new RestorePlan();
+		plan.add(this, outFileDir);
+		return plan.run();
 	}
 	
 	/**
@@ -236,6 +452,8 @@ public final class Tree extends BackupObject {
 	 * this method will not delete the file.
 	 * If a file in the tree already exist,
 	 * this method will rewrite the file.
+	 * The files of all paths are restored together in the order of 
+	 * their objects, see {@link RestorePlan}.
 	 *  
 	 * @param tr the treeRestorer
 	 * @return totally success or not.
@@ -244,17 +462,18 @@ public final class Tree extends BackupObject {
 	 */
 	public boolean restore(final TreeRestorer tr) 
 			throws IOException, DataFormatException {
-		boolean flag = true;
+		RestorePlan plan = new RestorePlan();
 		for (Entry<String, String> en:tr.getMap().entrySet()) {
 			Path nick = Paths.get(en.getKey());
 			Path path = Paths.get(en.getValue());
 			BackupObject o = get(nick);
-			if (!o.restore(path)) {
-				flag = false;
+			if (o == null) {
+				throw new DataFormatException("No " + nick + " in the tree");
 			}
+			plan.add(o, path);
 		}
-		return flag;
-	}
+		return plan.run();
+	}	
 	
 	/**
 	 * Converts tree to string.
@@ -265,23 +484,90 @@ public final class Tree extends BackupObject {
 		return "Tree " + getChecksum() + "\n";
 	}	
 	
+	/**
+	 * Walks this tree depth-first, without recursion.
+	 * The blobs of a tree are visited before its subtrees.
+	 * @param visitor the visitor
+	 * @throws IOException if the visitor fails
+	 */
+	public void walk(final TreeVisitor visitor) throws IOException {
+		/** a tree whose subtrees are being walked. */
+		final class Frame {
+			/** the tree. */
+			private final Tree tree;
+			/** the nickname path. */
+			private final Path path;
+			/** the depth. */
+			private final int depth;
+			/** the subtrees not walked yet. */
+			private final Iterator<Entry<String, Tree>> next;
+			
+			/**
+			 * Constructor.
+			 * @param t the tree
+			 * @param p the nickname path
+			 * @param d the depth
+			 */
+			Frame(final Tree t, final Path p, final int d) {
+				tree = t;
+				path = p;
+				depth = d;
+				next = t.trees.entrySet().iterator();
+			}
+		}
+		
+		Deque<Frame> stack = new ArrayDeque<>();
+		Path root = Paths.get("");
+		if (visitor.preVisitTree(root, this, 0)) {
+			visitBlobs(visitor, root, 0);
+			stack.push(new Frame(this, root, 0));
+		}
+		while (!stack.isEmpty()) {
+			Frame f = stack.peek();
+			if (f.next.hasNext()) {
+				Entry<String, Tree> en = f.next.next();
+				Path path = f.path.resolve(en.getKey());
+				Tree tree = en.getValue();
+				if (visitor.preVisitTree(path, tree, f.depth + 1)) {
+					tree.visitBlobs(visitor, path, f.depth + 1);
+					stack.push(new Frame(tree, path, f.depth + 1));
+				}
+			} else {
+				stack.pop();
+				visitor.postVisitTree(f.path, f.tree, f.depth);
+			}
+		}
+	}
+	
+	/**
+	 * Visits the blobs of this tree.
+	 * @param visitor the visitor
+	 * @param path the nickname path of this tree
+	 * @param depth the depth of this tree
+	 * @throws IOException if the visitor fails
+	 */
+	private void visitBlobs(final TreeVisitor visitor, final Path path, 
+			final int depth) throws IOException {
+		for (Entry<String, Blob> en:blobs.entrySet()) {
+			visitor.visitBlob(path.resolve(en.getKey()), en.getValue(), depth);
+		}
+	}
+	
 	/**
 	 * Get the string representation of blobs and their names.
 	 * @param depth the depth of the blob
 	 * @return the string contains blobs and their names
 	 */
 	public String listBlobs(final int depth) {
-		String s = "";
-		String dp = "";
-		for (int i = 0; i < depth; i++) {
-			dp += INDENT;
-		}
+		StringBuilder s = new StringBuilder();
 		for (Entry<String, Blob> en:blobs.entrySet()) {
-			Blob blob = en.getValue();
-			Path nick = Paths.get(en.getKey());
-			s += dp + nick + ": " + blob.toString();
+			for (int i = 0; i < depth; i++) {
+				s.append(INDENT);
+			}
+			s.append(en.getKey()).append(": ")
+				.append(en.getValue().toString());
 		}
-		return s;
+		return s.toString();
 	}
 	
 	/**
@@ -298,17 +584,15 @@ public final class Tree extends BackupObject {
 	 * @return the string contains trees and their names
 	 */
 	public String listTrees(final int depth) {
-		String s = "";
-		String dp = "";
-		for (int i = 0; i < depth; i++) {
-			dp += INDENT;
-		}
+		StringBuilder s = new StringBuilder();
 		for (Entry<String, Tree> en:trees.entrySet()) {
-			Tree tree = en.getValue();
-			Path nick = Paths.get(en.getKey());
-			s += dp + nick + ": " + tree.toString();
+			for (int i = 0; i < depth; i++) {
+				s.append(INDENT);
+			}
+			s.append(en.getKey()).append(": ")
+				.append(en.getValue().toString());
 		}
-		return s;
+		return s.toString();
 	}
 
 	/**
@@ -338,24 +622,20 @@ public final class Tree extends BackupObject {
 	
 	/**
 	 * Get the String contains blobs and blobs in subtrees and their names.
+	 * For large trees use {@link #walk(TreeVisitor)} with a 
+	 * {@link TreeLister} to stream the listing instead.
 	 * @param depth the depth of the tree
 	 * @return the String contains blobs and blobs in subtrees and their names
 	 */	
 	public String listAll(final int depth) {
-		String s = listBlobs(depth);
-		String dp = "";
-		for (int i = 0; i < depth; i++) {
-			dp += INDENT;
+		StringWriter s = new StringWriter();
+		try {
+			walk(new TreeLister(s, -1, null, depth - 1, false));
+		} catch (IOException e) {
+			// a StringWriter does not throw
+			e.printStackTrace();
 		}
-		for (Entry<String, Tree> en:trees.entrySet()) {
-			Tree tree = en.getValue();
-			Path nick = Paths.get(en.getKey());
-			s += dp + nick + ": " + tree.toString();
-			s += dp + "{\n";
-			s += tree.listAll(depth + 1);
-			s += dp + "}\n";
-		}		
-		return s;
+		return s.toString();
 	}
 	
 	/**
@@ -363,10 +643,13 @@ public final class Tree extends BackupObject {
 	 * @return the String contains blobs and blobs in subtrees and their names
 	 */	
 	public String listAll() {
-		String s = toString();
-		s += "{\n";
-		s += listAll(1);
-		s += "}\n";
-		return s;
+		StringWriter s = new StringWriter();
+		try {
+			walk(new TreeLister(s));
+		} catch (IOException e) {
+			// a StringWriter does not throw
+			e.printStackTrace();
+		}
+		return s.toString();
 	}
 }
@@ -10,14 +10,27 @@ import java.io.OutputStreamWriter;
 import java.io.Serializable;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import xlong.backuper.util.PathRules;
+
 /**
  * A treeBuilder contains a map from directories and files to nicknames.
  * <p>
  * TreeBuilder is a help classes the method
  * {@link Tree#create()} use to build new tree.
+ * <p>
+ * Each mapping may have include and exclude rules, see {@link PathRules}.
+ * In the setting file the rules follow the line of their mapping,
+ * one per line, starting with "-" to exclude or "+" to include again:
+ * <pre>
+ * /home/me/project,>>>>,project
+ * - node_modules/
+ * - *.tmp
+ * - /build/
+ * </pre>
  * 
  * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
  *
@@ -32,6 +45,9 @@ public final class TreeBuilder extends BackupObject implements Serializable {
 	/** the map. */
 	private TreeMap<String, String> map;
 	
+	/** the rules of the mappings by path, null if there are none. */
+	private TreeMap<String, ArrayList<String>> rules;
+	
 	/**
 	 * Default constructor. Initialize map.
 	 */
@@ -65,6 +81,39 @@ public final class TreeBuilder extends BackupObject implements Serializable {
 		return true;
 	}
 	
+	/**
+	 * Add an include or exclude rule to the mapping of a path.
+	 * @param path the path
+	 * @param rule the rule, like "- node_modules/"
+	 * @return success or not
+	 */
+	public boolean addRule(final Path path, final String rule) {
+		if (!map.containsKey(path.toString())) {
+			return false;
+		}
+		if (rules == null) {
+			rules = new TreeMap<>();
+		}
+		if (!rules.containsKey(path.toString())) {
+			rules.put(path.toString(), new ArrayList<String>());
+		}
+		rules.get(path.toString()).add(rule.trim());
+		calChecksum();
+		return true;
+	}
+	
+	/**
+	 * Gets the compiled rules of the mapping of a path.
+	 * @param path the path
+	 * @return the rules, null if there are none
+	 */
+	public PathRules getRules(final String path) {
+		if (rules == null || !rules.containsKey(path)) {
+			return null;
+		}
+		return new PathRules(rules.get(path));
+	}
+	
 	/**
 	 * Remove a path, return its nick. If not exist return null.
 	 * @param path file path
@@ -74,6 +123,9 @@ public final class TreeBuilder extends BackupObject implements Serializable {
 		if (map.containsKey(path.toString())) {
 			String nick = map.get(path.toString());
 			map.remove(path.toString());
+			if (rules != null) {
+				rules.remove(path.toString());
+			}
 			return nick;
 		} else {
 			return null;
@@ -94,10 +146,15 @@ public final class TreeBuilder extends BackupObject implements Serializable {
                 new InputStreamReader(
                 new FileInputStream(path.toString()), "GB2312"));
         String line = null;
+        Path last = null;
         while ((line = in.readLine()) != null) {
             String[] ss = line.split(SEPARATOR);
             if (ss.length == 2) {
-                tb.add(Paths.get(ss[0]), Paths.get(ss[1]));
+                last = Paths.get(ss[0]);
+                tb.add(last, Paths.get(ss[1]));
+            } else if (last != null && (line.startsWith("-") 
+            		|| line.startsWith("+"))) {
+            	tb.addRule(last, line);
             }
         }
         in.close();
@@ -123,6 +180,11 @@ public final class TreeBuilder extends BackupObject implements Serializable {
                 new FileOutputStream(outFilePath.toString()), "GB2312"));
 		for (Entry<String, String> en:map.entrySet()) {
 			out.write(en.getKey() + SEPARATOR + en.getValue() + "\n");
+			if (rules != null && rules.containsKey(en.getKey())) {
+				for (String rule:rules.get(en.getKey())) {
+					out.write(rule + "\n");
+				}
+			}
 		}
 		out.close();
 		return true;
@@ -153,10 +215,16 @@ public final class TreeBuilder extends BackupObject implements Serializable {
 	 * @return string
 	 */
 	public String list() {
-		String s = toString();
+		StringBuilder s = new StringBuilder(toString());
 		for (Entry<String, String> en:map.entrySet()) {
-			s += en.getKey() + " -> " + en.getValue() + "\n";
+			s.append(en.getKey()).append(" -> ")
+				.append(en.getValue()).append("\n");
+			if (rules != null && rules.containsKey(en.getKey())) {
+				for (String rule:rules.get(en.getKey())) {
+					s.append("    ").append(rule).append("\n");
+				}
+			}
 		}
-		return s;
+		return s.toString();
 	}
 }
@@ -0,0 +1,193 @@
+package xlong.backuper.object;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+
+import xlong.backuper.util.ArchiveWriter;
+import xlong.backuper.util.CompressionUtil;
+import xlong.backuper.util.Metrics;
+import xlong.backuper.util.ProgressReporter;
+
+/**
+ * Writes a tree into an archive while it is walked, without restoring
+ * any file to disk.
+ * <p>
+ * The content of each blob is streamed from its object. A size, and
+ * a CRC-32 for zip, is needed before the content, so a ZLIB object is
+ * inflated twice, first only to count. For zip the deflate data of a
+ * ZLIB object is copied as it is, saving the deflate of the export.
+ * A sparse object is read through a {@link BlobChannel}, its holes
+ * cost no read.
+ * Objects of deltas or with a preset dictionary are small, they are
+ * inflated in memory, and deflated again for zip.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class TreeExporter implements TreeVisitor {
+
+	/** the size of the buffer. */
+	private static final int BUFFERSIZE = 65536;
+
+	/** the archive. */
+	private final ArchiveWriter writer;
+
+	/** the buffer to count and check contents. */
+	private final byte[] buffer = new byte[BUFFERSIZE];
+
+	/** the metrics of the run. */
+	private final Metrics metrics = Metrics.getCurrent();
+
+	/**
+	 * Constructor.
+	 * @param archive the archive
+	 */
+	public TreeExporter(final ArchiveWriter archive) {
+		writer = archive;
+	}
+
+	/**
+	 * Gets the name of a nickname path in the archive.
+	 * @param path the nickname path
+	 * @return the name, separated by '/'
+	 */
+	private static String name(final Path path) {
+		StringBuilder sb = new StringBuilder();
+		for (Path p:path) {
+			if (sb.length() > 0) {
+				sb.append('/');
+			}
+			sb.append(p.toString());
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public boolean preVisitTree(final Path path, final Tree tree,
+			final int depth) throws IOException {
+		if (depth > 0) {
+			writer.putDirectory(name(path));
+		}
+		return true;
+	}
+
+	@Override
+	public void visitBlob(final Path path, final Blob blob, final int depth)
+			throws IOException {
+		String name = name(path);
+		Path file = blob.getPath();
+		long start = System.nanoTime();
+		if (ProgressReporter.getReporter().isEnabled(
+				ProgressReporter.Level.DEBUG)) {
+			ProgressReporter.getReporter().debug("Export " + name);
+		}
+		long size;
+		byte[] head = blob.head();
+		if (!blob.isCompressed()) {
+			size = Files.size(file);
+			CRC32 crc = new CRC32();
+			if (writer.takesDeflate()) {
+				try (InputStream in = Files.newInputStream(file)) {
+					count(in, crc);
+				}
+			}
+			try (InputStream in = Files.newInputStream(file)) {
+				writer.putFile(name, size, crc.getValue(), in);
+			}
+		} else if (Blob.isSparse(head)) {
+			CRC32 crc = new CRC32();
+			try (BlobChannel channel = new BlobChannel(blob, head)) {
+				size = channel.size();
+				if (writer.takesDeflate()) {
+					count(Channels.newInputStream(channel), crc);
+					channel.position(0);
+				}
+				writer.putFile(name, size, crc.getValue(),
+						Channels.newInputStream(channel));
+			}
+		} else if (Blob.isPlainZlib(head)) {
+			CRC32 crc = new CRC32();
+			try (InputStream in = new InflaterInputStream(
+					Files.newInputStream(file))) {
+				size = count(in, crc);
+			}
+			if (writer.takesDeflate()) {
+				long deflated = Files.size(file) - Blob.ZLIBHEADER
+						- Blob.ZLIBTRAILER;
+				try (InputStream in = Files.newInputStream(file)) {
+					skip(in, Blob.ZLIBHEADER);
+					writer.putDeflated(name, size, crc.getValue(),
+							deflated, in);
+				}
+			} else {
+				try (InputStream in = new InflaterInputStream(
+						Files.newInputStream(file))) {
+					writer.putFile(name, size, 0, in);
+				}
+			}
+		} else {
+			byte[] content = Blob.readContent(blob.getChecksum());
+			size = content.length;
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			if (writer.takesDeflate()) {
+				byte[] zlib = CompressionUtil.deflate(content);
+				writer.putDeflated(name, size, crc.getValue(),
+						zlib.length - Blob.ZLIBHEADER - Blob.ZLIBTRAILER,
+						new ByteArrayInputStream(zlib, Blob.ZLIBHEADER,
+								zlib.length - Blob.ZLIBHEADER));
+			} else {
+				writer.putFile(name, size, 0,
+						new ByteArrayInputStream(content));
+			}
+		}
+		metrics.add(Metrics.Counter.FILES_RESTORED, 1);
+		metrics.add(Metrics.Counter.BYTES_RESTORED, size);
+		metrics.latency(size, System.nanoTime() - start);
+	}
+
+	@Override
+	public void postVisitTree(final Path path, final Tree tree,
+			final int depth) {
+		// nothing to do
+	}
+
+	/**
+	 * Reads a stream to its end.
+	 * @param in the stream
+	 * @param crc the CRC-32 to update
+	 * @return the number of bytes
+	 * @throws IOException if an I/O error occurs
+	 */
+	private long count(final InputStream in, final CRC32 crc)
+			throws IOException {
+		long n = 0;
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			crc.update(buffer, 0, count);
+			n += count;
+		}
+		return n;
+	}
+
+	/**
+	 * Skips bytes of a stream.
+	 * @param in the stream
+	 * @param len the number of bytes
+	 * @throws IOException if an I/O error occurs or the stream ends
+	 */
+	private static void skip(final InputStream in, final int len)
+			throws IOException {
+		for (int i = 0; i < len; i++) {
+			if (in.read() < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+}
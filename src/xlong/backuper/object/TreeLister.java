@@ -0,0 +1,126 @@
+package xlong.backuper.object;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+
+/**
+ * Writes a tree as text while it is walked, in the format of
+ * {@link Tree#listAll()}.
+ * <p>
+ * Nothing is buffered, so the listing of a large backup starts at once.
+ * The depth can be limited, deeper subtrees are listed without content.
+ * Blobs can be filtered by their nickname path,
+ * e.g. with a "glob:**.java" matcher.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class TreeLister implements TreeVisitor {
+
+	/** for INDENT. */
+	private static final String INDENT = "    ";
+
+	/** the output. */
+	private final Writer out;
+
+	/** the deepest tree to list the content of, negative for no limit. */
+	private final int maxDepth;
+
+	/** the filter of blobs, null for all. */
+	private final PathMatcher filter;
+
+	/** the indent added to every line. */
+	private final int base;
+
+	/** list the line and braces of the tree walked or only its content. */
+	private final boolean withRoot;
+
+	/**
+	 * Constructor.
+	 * @param writer the output
+	 * @param depth the deepest tree to list the content of,
+	 *        negative for no limit
+	 * @param matcher the filter of blobs, null for all
+	 */
+	public TreeLister(final Writer writer, final int depth,
+			final PathMatcher matcher) {
+		this(writer, depth, matcher, 0, true);
+	}
+
+	/**
+	 * Constructor.
+	 * @param writer the output
+	 * @param depth the deepest tree to list the content of,
+	 *        negative for no limit
+	 * @param matcher the filter of blobs, null for all
+	 * @param indent the indent added to every line
+	 * @param root list the line and braces of the tree walked or not
+	 */
+	TreeLister(final Writer writer, final int depth,
+			final PathMatcher matcher, final int indent, final boolean root) {
+		out = writer;
+		maxDepth = depth;
+		filter = matcher;
+		base = indent;
+		withRoot = root;
+	}
+
+	/**
+	 * Constructor. Lists everything.
+	 * @param writer the output
+	 */
+	public TreeLister(final Writer writer) {
+		this(writer, -1, null);
+	}
+
+	/**
+	 * Writes the indent of a depth.
+	 * @param depth the depth
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void indent(final int depth) throws IOException {
+		for (int i = 0; i < base + depth; i++) {
+			out.write(INDENT);
+		}
+	}
+
+	@Override
+	public boolean preVisitTree(final Path path, final Tree tree,
+			final int depth) throws IOException {
+		if (depth == 0 && !withRoot) {
+			return true;
+		}
+		indent(depth);
+		if (depth > 0) {
+			out.write(path.getFileName() + ": ");
+		}
+		out.write(tree.toString());
+		if (maxDepth >= 0 && depth >= maxDepth) {
+			return false;
+		}
+		indent(depth);
+		out.write("{\n");
+		return true;
+	}
+
+	@Override
+	public void visitBlob(final Path path, final Blob blob,
+			final int depth) throws IOException {
+		if (filter != null && !filter.matches(path)) {
+			return;
+		}
+		indent(depth + 1);
+		out.write(path.getFileName() + ": " + blob.toString());
+	}
+
+	@Override
+	public void postVisitTree(final Path path, final Tree tree,
+			final int depth) throws IOException {
+		if (depth == 0 && !withRoot) {
+			return;
+		}
+		indent(depth);
+		out.write("}\n");
+	}
+}
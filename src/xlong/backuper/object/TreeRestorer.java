@@ -137,11 +137,12 @@ public final class TreeRestorer extends BackupObject {
 	 * @return string
 	 */
 	public String list() {
-		String s = toString();
+		StringBuilder s = new StringBuilder(toString());
 		for (Entry<String, String> en:map.entrySet()) {
-			s += en.getKey() + " -> " + en.getValue() + "\n";
+			s.append(en.getKey()).append(" -> ")
+				.append(en.getValue()).append("\n");
 		}
-		return s;
+		return s.toString();
 	}
 	
 }
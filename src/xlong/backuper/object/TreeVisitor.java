@@ -0,0 +1,47 @@
+package xlong.backuper.object;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A visitor of the blobs and subtrees of a tree,
+ * see {@link Tree#walk(TreeVisitor)}.
+ * <p>
+ * The walk is depth-first. The blobs of a tree are visited before
+ * its subtrees, both in the order of their nicknames.
+ * Paths are made of nicknames, relative to the tree walked,
+ * which itself has the empty path and depth 0.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public interface TreeVisitor {
+
+	/**
+	 * Called for a tree before its blobs and subtrees.
+	 * @param path the nickname path of the tree
+	 * @param tree the tree
+	 * @param depth the depth of the tree
+	 * @return visit the blobs and subtrees of the tree or skip them
+	 * @throws IOException if an I/O error occurs
+	 */
+	boolean preVisitTree(Path path, Tree tree, int depth) throws IOException;
+
+	/**
+	 * Called for a blob.
+	 * @param path the nickname path of the blob
+	 * @param blob the blob
+	 * @param depth the depth of the tree containing the blob
+	 * @throws IOException if an I/O error occurs
+	 */
+	void visitBlob(Path path, Blob blob, int depth) throws IOException;
+
+	/**
+	 * Called for a tree after its blobs and subtrees,
+	 * unless {@link #preVisitTree(Path, Tree, int)} skipped them.
+	 * @param path the nickname path of the tree
+	 * @param tree the tree
+	 * @param depth the depth of the tree
+	 * @throws IOException if an I/O error occurs
+	 */
+	void postVisitTree(Path path, Tree tree, int depth) throws IOException;
+}
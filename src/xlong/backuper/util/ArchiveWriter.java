@@ -0,0 +1,143 @@
+package xlong.backuper.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes entries of an archive to a stream one after the other,
+ * see {@link TarWriter} and {@link ZipWriter}.
+ * <p>
+ * Names are relative, separated by '/'. The content of an entry is
+ * copied from its input stream with a small buffer, so an archive
+ * of any size is written with bounded memory.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public abstract class ArchiveWriter {
+
+	/** the size of the copy buffer. */
+	private static final int BUFFERSIZE = 65536;
+
+	/** the output. */
+	private final OutputStream out;
+
+	/** the bytes written so far. */
+	private long written = 0;
+
+	/** the copy buffer. */
+	private final byte[] buffer = new byte[BUFFERSIZE];
+
+	/**
+	 * Constructor.
+	 * @param output the output, left open
+	 */
+	protected ArchiveWriter(final OutputStream output) {
+		out = output;
+	}
+
+	/**
+	 * Tests whether entries carry a CRC-32 and may take raw deflate data,
+	 * like the entries of a zip archive.
+	 * @return takes deflate data or not
+	 */
+	public abstract boolean takesDeflate();
+
+	/**
+	 * Writes a directory entry.
+	 * @param name the name of the directory
+	 * @throws IOException if an I/O error occurs
+	 */
+	public abstract void putDirectory(String name) throws IOException;
+
+	/**
+	 * Writes a file entry.
+	 * @param name the name of the file
+	 * @param size the size of the content
+	 * @param crc the CRC-32 of the content, ignored unless
+	 *        {@link #takesDeflate()}
+	 * @param content the content, exactly size bytes are read
+	 * @throws IOException if an I/O error occurs
+	 */
+	public abstract void putFile(String name, long size, long crc,
+			InputStream content) throws IOException;
+
+	/**
+	 * Writes a file entry of raw deflate data, without ZLIB header and
+	 * trailer. Only if {@link #takesDeflate()}.
+	 * @param name the name of the file
+	 * @param size the size of the content
+	 * @param crc the CRC-32 of the content
+	 * @param compressedSize the size of the deflate data
+	 * @param deflated the deflate data, exactly compressedSize bytes
+	 *        are read
+	 * @throws IOException if an I/O error occurs
+	 */
+	public abstract void putDeflated(String name, long size, long crc,
+			long compressedSize, InputStream deflated) throws IOException;
+
+	/**
+	 * Writes the end of the archive and flushes the stream,
+	 * which is left open.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public abstract void finish() throws IOException;
+
+	/**
+	 * Gets the bytes written so far.
+	 * @return the bytes written
+	 */
+	protected final long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Writes bytes.
+	 * @param b the bytes
+	 * @param off the start
+	 * @param len the number of bytes
+	 * @throws IOException if an I/O error occurs
+	 */
+	protected final void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+
+	/**
+	 * Writes bytes.
+	 * @param b the bytes
+	 * @throws IOException if an I/O error occurs
+	 */
+	protected final void write(final byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	/**
+	 * Copies bytes from a stream.
+	 * @param in the input
+	 * @param len the number of bytes
+	 * @throws IOException if an I/O error occurs or the input ends early
+	 */
+	protected final void copy(final InputStream in, final long len)
+			throws IOException {
+		long left = len;
+		while (left > 0) {
+			int count = in.read(buffer, 0, (int) Math.min(left, BUFFERSIZE));
+			if (count < 0) {
+				throw new EOFException((len - left) + " of " + len + " bytes");
+			}
+			write(buffer, 0, count);
+			left -= count;
+		}
+	}
+
+	/**
+	 * Flushes the output.
+	 * @throws IOException if an I/O error occurs
+	 */
+	protected final void flush() throws IOException {
+		out.flush();
+	}
+}
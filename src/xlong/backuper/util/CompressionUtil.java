@@ -1,23 +1,35 @@
 package xlong.backuper.util;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.Adler32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 /**
  * This class wrap ZLIB compression for convenience.
  * <p>
  * This class can just deal with small files (smaller than around 1.3G).
  * If the outFile is exist, methods in this class will replace the exist one.
+ * <p>
+ * Small files may be compressed with a preset dictionary. The zlib header
+ * of such a stream records the Adler-32 of the dictionary, which is its
+ * identifier. Dictionaries are files in the dictionary directory named by
+ * their identifier, loaded when a stream first asks for them.
  * 
  * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
  */
@@ -31,10 +43,109 @@ public final class CompressionUtil {
 		// will not be called
 	}
 
+	/** the default level of deflate. */
+	public static final int DEFAULTLEVEL = 6;
+	
+	/** the directory of the dictionaries. */
+	private static volatile Path dictionaryDir = Paths.get("object", "dict");
+	
+	/** the dictionaries loaded, by identifier. */
+	private static final ConcurrentMap<Integer, byte[]> DICTIONARIES =
+			new ConcurrentHashMap<>();
+	
+	/**
+	 * Sets the directory of the dictionaries.
+	 * @param dir the directory
+	 */
+	public static void setDictionaryDir(final Path dir) {
+		dictionaryDir = dir;
+		DICTIONARIES.clear();
+	}
+	
+	/**
+	 * Gets the directory of the dictionaries.
+	 * @return the directory
+	 */
+	public static Path getDictionaryDir() {
+		return dictionaryDir;
+	}
+	
+	/**
+	 * Gets the identifier of a dictionary, its Adler-32.
+	 * @param dictionary the dictionary
+	 * @return the identifier
+	 */
+	public static int dictionaryId(final byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		return (int) adler.getValue();
+	}
+	
+	/**
+	 * Gets the file of a dictionary.
+	 * @param id the identifier
+	 * @return the file
+	 */
+	public static Path dictionaryPath(final int id) {
+		return dictionaryDir.resolve(String.format("%08x", id));
+	}
+	
+	/**
+	 * Gets a dictionary, loading it from its file the first time.
+	 * @param id the identifier
+	 * @return the dictionary, null if there is none
+	 * @throws IOException if the file cannot be read
+	 */
+	public static byte[] getDictionary(final int id) throws IOException {
+		byte[] dictionary = DICTIONARIES.get(id);
+		if (dictionary == null) {
+			Path file = dictionaryPath(id);
+			if (!Files.exists(file)) {
+				return null;
+			}
+			dictionary = Files.readAllBytes(file);
+			if (dictionaryId(dictionary) != id) {
+				throw new IOException("Corrupt dictionary " + file);
+			}
+			DICTIONARIES.put(id, dictionary);
+		}
+		return dictionary;
+	}
+	
+	/**
+	 * Inflates into a buffer, setting the dictionary the stream asks for.
+	 * @param inflater the inflater
+	 * @param buffer the buffer
+	 * @return the number of bytes inflated
+	 * @throws DataFormatException if the stream is corrupt
+	 *         or its dictionary is missing
+	 */
+	private static int inflate(final Inflater inflater, final byte[] buffer)
+			throws DataFormatException {
+		int count = inflater.inflate(buffer);
+		if (count == 0 && inflater.needsDictionary()) {
+			byte[] dictionary;
+			try {
+				dictionary = getDictionary(inflater.getAdler());
+			} catch (IOException e) {
+				throw new DataFormatException(e.toString());
+			}
+			if (dictionary == null) {
+				throw new DataFormatException(String.format(
+						"Missing dictionary %08x", inflater.getAdler()));
+			}
+			inflater.setDictionary(dictionary);
+			count = inflater.inflate(buffer);
+		}
+		return count;
+	}
+	
 	/**
 	 * Compress given byte array and output to the given path.
 	 * The output directory must exist.
 	 * If the outFile already exist, this method will do nothing.
+	 * The output is written to a temporary file and committed by
+	 * {@link GroupCommit}, so a crash never leaves a truncated outFile.
 	 * 
 	 * @param byteArray the input string
 	 * @param outFile the output file path
@@ -44,30 +155,149 @@ public final class CompressionUtil {
 			final byte[] byteArray, 
 			final Path outFile) 
 					throws IOException {
-		if (Files.exists(outFile)) {
+		if (GroupCommit.exists(outFile)) {
+			Metrics.getCurrent().add(Metrics.Counter.OBJECTS_REUSED, 1);
 			return;
 		}
-		
-		Deflater deflater = new Deflater();
+		writeCompressed(deflate(byteArray), outFile);
+		Metrics.getCurrent().add(Metrics.Counter.OBJECTS_WRITTEN, 1);
+	}
+	
+	/**
+	 * Compress given byte array in memory.
+	 * 
+	 * @param byteArray the input
+	 * @return the ZLIB compressed bytes
+	 */
+	public static byte[] deflate(final byte[] byteArray) {
+		return deflate(byteArray, null);
+	}
+	
+	/**
+	 * Compress given byte array in memory with a preset dictionary.
+	 * 
+	 * @param byteArray the input
+	 * @param dictionary the dictionary, null for none
+	 * @return the ZLIB compressed bytes
+	 */
+	public static byte[] deflate(final byte[] byteArray, 
+			final byte[] dictionary) {
+		return deflate(byteArray, dictionary, DEFAULTLEVEL);
+	}
+	
+	/**
+	 * Compress given byte array in memory with a preset dictionary
+	 * at a level.
+	 * 
+	 * @param byteArray the input
+	 * @param dictionary the dictionary, null for none
+	 * @param level the level, 0 only stores, 9 compresses best
+	 * @return the ZLIB compressed bytes
+	 */
+	public static byte[] deflate(final byte[] byteArray, 
+			final byte[] dictionary, final int level) {
+		long t0 = System.nanoTime();
+		Deflater deflater = new Deflater(level);
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
 		deflater.setInput(byteArray);
-
-		BufferedOutputStream out = 
-				new BufferedOutputStream(
-						new FileOutputStream(outFile.toString()));
-		
 		deflater.finish();
-		byte[] buffer = new byte[MAXBYTE];
+		ByteArrayOutputStream out = 
+				new ByteArrayOutputStream(byteArray.length / 2 + MAXBYTE);
+		byte[] buffer = new byte[BUFFERSIZE];
 		while (!deflater.finished()) {
 			int count = deflater.deflate(buffer);
 			out.write(buffer, 0, count);
 		}
 		deflater.end();
-		out.close();
+		Metrics.getCurrent().time(Metrics.Phase.DEFLATE, 
+				System.nanoTime() - t0);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Decompress given byte array in memory.
+	 * 
+	 * @param compressed the ZLIB compressed bytes
+	 * @return the output byte array
+	 * @throws IOException if the bytes are not ZLIB compressed
+	 */
+	public static byte[] inflate(final byte[] compressed) throws IOException {
+		return inflate(compressed, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Decompress given byte array in memory, unless its content is too
+	 * long. No more than the limit is inflated.
+	 * 
+	 * @param compressed the ZLIB compressed bytes
+	 * @param limit the content must be shorter
+	 * @return the output byte array, null if it is not shorter than limit
+	 * @throws IOException if the bytes are not ZLIB compressed
+	 */
+	public static byte[] inflate(final byte[] compressed, final int limit)
+			throws IOException {
+		long t0 = System.nanoTime();
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		ByteArrayOutputStream out = 
+				new ByteArrayOutputStream(compressed.length * 2 + MAXBYTE);
+		byte[] buffer = new byte[BUFFERSIZE];
+		try {
+			while (!inflater.finished()) {
+				int count = inflate(inflater, buffer);
+				if (count == 0 && inflater.needsInput() 
+						&& !inflater.finished()) {
+					throw new IOException("Truncated ZLIB stream");
+				}
+				out.write(buffer, 0, count);
+				if (out.size() >= limit) {
+					break;
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inflater.end();
+		}
+		Metrics.getCurrent().time(Metrics.Phase.INFLATE, 
+				System.nanoTime() - t0);
+		return out.size() < limit ? out.toByteArray() : null;
+	}
+	
+	/**
+	 * Writes compressed bytes to the given path.
+	 * The output directory must exist.
+	 * The output is written to a temporary file and committed by
+	 * {@link GroupCommit}, so a crash never leaves a truncated outFile.
+	 * 
+	 * @param compressed the ZLIB compressed bytes
+	 * @param outFile the output file path
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void writeCompressed(
+			final byte[] compressed, 
+			final Path outFile) 
+					throws IOException {
+		long t0 = System.nanoTime();
+		Path tempFile = GroupCommit.createTemp(outFile);
+		try (FileOutputStream out = 
+				new FileOutputStream(tempFile.toString())) {
+			out.write(compressed);
+		}
+		Metrics metrics = Metrics.getCurrent();
+		metrics.time(Metrics.Phase.WRITE, System.nanoTime() - t0);
+		metrics.add(Metrics.Counter.BYTES_WRITTEN, compressed.length);
+		GroupCommit.commit(tempFile, outFile, compressed.length);
 	}
 	
 	/** Maximum number of byte to read in each loop.*/
 	private static final int MAXBYTE = 1024;
 	
+	/** size of the buffer to deflate into. */
+	private static final int BUFFERSIZE = 65536;
+	
 	/**
 	 * Compress given input file and output to given output file.
 	 * The inFile must exist.
@@ -82,12 +312,32 @@ public final class CompressionUtil {
 			final Path inFile, 
 			final Path outFile) 
 					throws IOException {
-		if (Files.exists(outFile)) {
+		compressFile(inFile, outFile, null);
+	}
+	
+	/**
+	 * Compress given input file with a preset dictionary
+	 * and output to given output file.
+	 * The inFile must exist.
+	 * The output directory must exist.
+	 * If the outFile already exist, this method will do nothing.
+	 * 
+	 * @param inFile the input file path
+	 * @param outFile the output file path
+	 * @param dictionary the dictionary, null for none
+	 * @throws IOException if the file is not found or the cannot be read.
+	 */
+	public static void compressFile(
+			final Path inFile, 
+			final Path outFile,
+			final byte[] dictionary) 
+					throws IOException {
+		if (GroupCommit.exists(outFile)) {
 			return;
 		}
 		
 		byte[] data = toByteArray(inFile);
-		compressByteArray(data, outFile);
+		writeCompressed(deflate(data, dictionary), outFile);
 	}
 	
 	/**
@@ -103,7 +353,7 @@ public final class CompressionUtil {
 			final String string, 
 			final Path outFile) 
 					throws IOException {
-		if (Files.exists(outFile)) {
+		if (GroupCommit.exists(outFile)) {
 			return;
 		}
 		
@@ -137,20 +387,80 @@ public final class CompressionUtil {
 				new BufferedOutputStream(
 						new FileOutputStream(outFile.toString()));
 		
-		byte[] buffer = new byte[MAXBYTE];
+		byte[] buffer = new byte[BUFFERSIZE];
+		long inflateTime = 0;
+		long writeTime = 0;
+		long written = 0;
+		long t0 = System.nanoTime();
 		while (!inflater.finished()) {
 			int count;
 			try {
-				count = inflater.inflate(buffer);
+				count = inflate(inflater, buffer);
 			} catch (DataFormatException e) {
 				e.printStackTrace();
 				out.close();
 				return;
 			}
+			long t1 = System.nanoTime();
 			out.write(buffer, 0, count);
+			long t2 = System.nanoTime();
+			inflateTime += t1 - t0;
+			writeTime += t2 - t1;
+			written += count;
+			t0 = t2;
 		}
 		inflater.end();
 		out.close();
+		Metrics metrics = Metrics.getCurrent();
+		metrics.time(Metrics.Phase.INFLATE, inflateTime);
+		metrics.time(Metrics.Phase.WRITE, 
+				writeTime + System.nanoTime() - t0);
+		metrics.add(Metrics.Counter.BYTES_WRITTEN, written);
+	}
+	
+	/**
+	 * Decompress given input file and write to a stream.
+	 * The stream is not closed.
+	 * 
+	 * @param inFile the input file name
+	 * @param out the stream
+	 * @throws IOException if the inFile can not decompress or 
+	 *         an I/O error occurs
+	 */	
+	public static void decompress(
+			final Path inFile, 
+			final OutputStream out) 
+					throws IOException {
+		byte[] data = toByteArray(inFile);
+		Inflater inflater = new Inflater();
+		inflater.setInput(data);
+		
+		byte[] buffer = new byte[BUFFERSIZE];
+		long inflateTime = 0;
+		long writeTime = 0;
+		long t0 = System.nanoTime();
+		try {
+			while (!inflater.finished()) {
+				int count = inflate(inflater, buffer);
+				if (count == 0 && inflater.needsInput() 
+						&& !inflater.finished()) {
+					throw new ZipException("Truncated ZLIB stream " + inFile);
+				}
+				long t1 = System.nanoTime();
+				out.write(buffer, 0, count);
+				long t2 = System.nanoTime();
+				inflateTime += t1 - t0;
+				writeTime += t2 - t1;
+				t0 = t2;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage() + " in " + inFile);
+		} finally {
+			inflater.end();
+			Metrics metrics = Metrics.getCurrent();
+			metrics.time(Metrics.Phase.INFLATE, inflateTime);
+			metrics.time(Metrics.Phase.WRITE, writeTime);
+		}
 	}
 	
 	/**
@@ -166,6 +476,7 @@ public final class CompressionUtil {
 					throws IOException {
 		
 		byte[] data = toByteArray(inFile);
+		long t0 = System.nanoTime();
 		Inflater inflater = new Inflater();
 		inflater.setInput(data);
 		
@@ -175,7 +486,7 @@ public final class CompressionUtil {
 		while (!inflater.finished()) {
 			int count;
 			try {
-				count = inflater.inflate(buffer);
+				count = inflate(inflater, buffer);
 			} catch (DataFormatException e) {
 				e.printStackTrace();
 				return null;
@@ -183,6 +494,8 @@ public final class CompressionUtil {
 			outString.append(new String(buffer, 0, count, "ISO-8859-1"));
 		}
 		inflater.end();
+		Metrics.getCurrent().time(Metrics.Phase.INFLATE, 
+				System.nanoTime() - t0);
 		return outString.toString().getBytes("ISO-8859-1");
 	}
 	
@@ -208,7 +521,7 @@ public final class CompressionUtil {
 		while (!inflater.finished()) {
 			int count;
 			try {
-				count = inflater.inflate(buffer);
+				count = inflate(inflater, buffer);
 			} catch (DataFormatException e) {
 				e.printStackTrace();
 				return null;
@@ -232,6 +545,7 @@ public final class CompressionUtil {
 		
 		RandomAccessFile raf = null;
 		FileChannel fc = null;
+		long t0 = System.nanoTime();
 		try {
 			raf = new RandomAccessFile(filePath.toString(), "r");
 			fc = raf.getChannel();
@@ -252,6 +566,8 @@ public final class CompressionUtil {
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
+			Metrics.getCurrent().time(Metrics.Phase.READ, 
+					System.nanoTime() - t0);
 		}
 	}
 	
@@ -0,0 +1,253 @@
+package xlong.backuper.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Encodes a byte array as a delta against another one, in the spirit
+ * of xdelta and VCDIFF, and decodes it again.
+ * <p>
+ * A delta is the length of the target, then a list of instructions:
+ * ADD copies the bytes that follow it, COPY copies a range of the base.
+ * Every number is a variable length integer, 7 bits per byte.
+ * The base is indexed by the hashes of its aligned blocks, the target
+ * is searched with a rolling hash at every offset, and each match is
+ * extended in both directions as far as the bytes are equal.
+ * <p>
+ * This class can just deal with arrays smaller than 1G, like
+ * {@link CompressionUtil}.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class DeltaUtil {
+
+	/** the length of the blocks matched. */
+	private static final int BLOCK = 16;
+
+	/** the multiplier of the rolling hash. */
+	private static final int PRIME = 31;
+
+	/** PRIME to the power BLOCK - 1, to roll the oldest byte out. */
+	private static final int POWER = power(PRIME, BLOCK - 1);
+
+	/** spreads hashes over the index. */
+	private static final int MIX = 0x9E3779B1;
+
+	/** the low 7 bits of a variable length integer byte. */
+	private static final int LOW = 0x7f;
+
+	/** the bit of a variable length integer byte saying more follow. */
+	private static final int MORE = 0x80;
+
+	/**
+	 * Private constructor to make sure no instance of this class will be
+	 * created.
+	 */
+	private DeltaUtil() {
+		// will not be called
+	}
+
+	/**
+	 * Computes a power without overflow checks.
+	 * @param base the base
+	 * @param exp the exponent
+	 * @return the power, modulo 2^32
+	 */
+	private static int power(final int base, final int exp) {
+		int r = 1;
+		for (int i = 0; i < exp; i++) {
+			r *= base;
+		}
+		return r;
+	}
+
+	/**
+	 * Hashes a block.
+	 * @param data the array
+	 * @param off the start of the block
+	 * @return the hash
+	 */
+	private static int hash(final byte[] data, final int off) {
+		int h = 0;
+		for (int i = off; i < off + BLOCK; i++) {
+			h = h * PRIME + (data[i] & 0xff);
+		}
+		return h;
+	}
+
+	/**
+	 * Encodes a target as a delta against a base.
+	 * @param base the base
+	 * @param target the target
+	 * @return the delta
+	 */
+	public static byte[] encode(final byte[] base, final byte[] target) {
+		ByteArrayOutputStream out =
+				new ByteArrayOutputStream(target.length / 8 + BLOCK);
+		writeInt(out, target.length);
+		int literal = 0;
+		if (base.length >= BLOCK && target.length >= BLOCK) {
+			int bits = 32 - Integer.numberOfLeadingZeros(
+					Math.max(1, base.length / BLOCK * 2 - 1));
+			int shift = 32 - bits;
+			int[] index = new int[1 << bits];
+			Arrays.fill(index, -1);
+			for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+				index[(hash(base, i) * MIX) >>> shift] = i;
+			}
+			int pos = 0;
+			int h = hash(target, 0);
+			while (pos + BLOCK <= target.length) {
+				int cand = index[(h * MIX) >>> shift];
+				if (cand >= 0 && equal(base, cand, target, pos)) {
+					int start = pos;
+					int from = cand;
+					while (start > literal && from > 0
+							&& base[from - 1] == target[start - 1]) {
+						start--;
+						from--;
+					}
+					int end = pos + BLOCK;
+					int to = cand + BLOCK;
+					while (end < target.length && to < base.length
+							&& base[to] == target[end]) {
+						end++;
+						to++;
+					}
+					writeAdd(out, target, literal, start);
+					writeInt(out, (end - start) << 1 | 1);
+					writeInt(out, from);
+					pos = end;
+					literal = end;
+					if (pos + BLOCK <= target.length) {
+						h = hash(target, pos);
+					}
+					continue;
+				}
+				if (pos + BLOCK < target.length) {
+					h = (h - (target[pos] & 0xff) * POWER) * PRIME
+							+ (target[pos + BLOCK] & 0xff);
+				}
+				pos++;
+			}
+		}
+		writeAdd(out, target, literal, target.length);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a delta.
+	 * @param base the base the delta was encoded against
+	 * @param delta the delta
+	 * @return the target
+	 * @throws IOException if the delta is corrupt or of another base
+	 */
+	public static byte[] decode(final byte[] base, final byte[] delta)
+			throws IOException {
+		int[] pos = {0};
+		byte[] target = new byte[readInt(delta, pos)];
+		int off = 0;
+		try {
+			while (pos[0] < delta.length) {
+				int op = readInt(delta, pos);
+				int len = op >>> 1;
+				if ((op & 1) == 0) {
+					System.arraycopy(delta, pos[0], target, off, len);
+					pos[0] += len;
+				} else {
+					System.arraycopy(base, readInt(delta, pos),
+							target, off, len);
+				}
+				off += len;
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt delta", e);
+		}
+		if (off != target.length) {
+			throw new IOException("Corrupt delta");
+		}
+		return target;
+	}
+
+	/**
+	 * Gets the length of the target of a delta, without decoding it.
+	 * @param delta the delta
+	 * @return the length of the target
+	 * @throws IOException if the delta is corrupt
+	 */
+	public static int targetLength(final byte[] delta) throws IOException {
+		return readInt(delta, new int[] {0});
+	}
+
+	/**
+	 * Compares a block of the base with a block of the target.
+	 * @param base the base
+	 * @param from the start in the base
+	 * @param target the target
+	 * @param pos the start in the target
+	 * @return equal or not
+	 */
+	private static boolean equal(final byte[] base, final int from,
+			final byte[] target, final int pos) {
+		for (int i = 0; i < BLOCK; i++) {
+			if (base[from + i] != target[pos + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes an ADD instruction, unless the range is empty.
+	 * @param out the output
+	 * @param data the array
+	 * @param from the start of the range
+	 * @param to the end of the range
+	 */
+	private static void writeAdd(final ByteArrayOutputStream out,
+			final byte[] data, final int from, final int to) {
+		if (to > from) {
+			writeInt(out, (to - from) << 1);
+			out.write(data, from, to - from);
+		}
+	}
+
+	/**
+	 * Writes a variable length integer.
+	 * @param out the output
+	 * @param value the value, not negative
+	 */
+	private static void writeInt(final ByteArrayOutputStream out,
+			final int value) {
+		int v = value;
+		while ((v & ~LOW) != 0) {
+			out.write(v & LOW | MORE);
+			v >>>= 7;
+		}
+		out.write(v);
+	}
+
+	/**
+	 * Reads a variable length integer.
+	 * @param in the input
+	 * @param pos the position, advanced
+	 * @return the value
+	 * @throws IOException if the integer is truncated
+	 */
+	private static int readInt(final byte[] in, final int[] pos)
+			throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (pos[0] >= in.length) {
+				throw new IOException("Corrupt delta");
+			}
+			int b = in[pos[0]++];
+			v |= (b & LOW) << shift;
+			if ((b & MORE) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Corrupt delta");
+	}
+}
@@ -0,0 +1,77 @@
+package xlong.backuper.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * JUnit test class for DeltaUtil class.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public class DeltaUtilTest {
+
+	/**
+	 * Test method for {@link DeltaUtil#encode(byte[], byte[])}.
+	 * @throws IOException if the delta cannot be decoded
+	 */
+	@Test
+	public final void testEncode() throws IOException {
+		Random random = new Random(1);
+		byte[] base = new byte[100000];
+		random.nextBytes(base);
+		// insert, change and delete a few bytes
+		byte[] target = new byte[base.length + 50];
+		System.arraycopy(base, 0, target, 0, 30000);
+		for (int i = 30000; i < 30100; i++) {
+			target[i] = (byte) i;
+		}
+		System.arraycopy(base, 30000, target, 30100, 50000);
+		System.arraycopy(base, 80050, target, 80100, base.length - 80050);
+		byte[] delta = DeltaUtil.encode(base, target);
+		assertTrue(delta.length < 1000);
+		assertArrayEquals(target, DeltaUtil.decode(base, delta));
+	}
+
+	/**
+	 * Test method for {@link DeltaUtil#decode(byte[], byte[])}.
+	 * @throws IOException if the delta cannot be decoded
+	 */
+	@Test
+	public final void testDecode() throws IOException {
+		byte[] empty = new byte[0];
+		byte[] small = "abc".getBytes("US-ASCII");
+		assertArrayEquals(small,
+				DeltaUtil.decode(empty, DeltaUtil.encode(empty, small)));
+		assertArrayEquals(empty,
+				DeltaUtil.decode(small, DeltaUtil.encode(small, empty)));
+		Random random = new Random(2);
+		byte[] target = new byte[5000];
+		random.nextBytes(target);
+		byte[] base = new byte[3000];
+		random.nextBytes(base);
+		assertArrayEquals(target,
+				DeltaUtil.decode(base, DeltaUtil.encode(base, target)));
+	}
+
+	/**
+	 * Test method for {@link DeltaUtil#targetLength(byte[])}.
+	 * @throws IOException if the delta is corrupt
+	 */
+	@Test
+	public final void testTargetLength() throws IOException {
+		byte[] base = new byte[100000];
+		new Random(3).nextBytes(base);
+		byte[] target = base.clone();
+		target[500] ^= 1;
+		assertEquals(target.length,
+				DeltaUtil.targetLength(DeltaUtil.encode(base, target)));
+		assertEquals(0, DeltaUtil.targetLength(
+				DeltaUtil.encode(base, new byte[0])));
+	}
+}
@@ -0,0 +1,174 @@
+package xlong.backuper.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Trains preset dictionaries for ZLIB from samples, for small files
+ * which share a format, like JSON, XML or source files.
+ * <p>
+ * Like the cover algorithm of zstd, the samples are cut into segments
+ * and each segment is scored by the number of samples its 8-byte strings
+ * appear in. The best segments are taken greedily, a string counts only
+ * in the first segment taken which has it. The best segment is put at
+ * the end of the dictionary, where deflate reaches it with the shortest
+ * distances. String counts are kept in a hashed table, so collisions
+ * only make some scores a little too high.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class DictionaryUtil {
+
+	/** the length of the strings counted. */
+	private static final int K = 8;
+
+	/** the length of a segment. */
+	private static final int SEGMENT = 32;
+
+	/** the bits of the table of string counts. */
+	private static final int TABLEBITS = 20;
+
+	/** spreads hashes over the table. */
+	private static final long MIX = 0x9E3779B97F4A7C15L;
+
+	/** the largest dictionary deflate can use, its window. */
+	public static final int MAXSIZE = 32768;
+
+	/**
+	 * A segment of a sample and its score when last computed.
+	 */
+	private static final class Segment implements Comparable<Segment> {
+		/** the sample. */
+		private final byte[] sample;
+		/** the start in the sample. */
+		private final int start;
+		/** the score. */
+		private long score;
+
+		/**
+		 * Constructor.
+		 * @param data the sample
+		 * @param off the start in the sample
+		 */
+		Segment(final byte[] data, final int off) {
+			sample = data;
+			start = off;
+		}
+
+		@Override
+		public int compareTo(final Segment o) {
+			return Long.compare(o.score, score);
+		}
+	}
+
+	/**
+	 * Private constructor to make sure no instance of this class will be
+	 * created.
+	 */
+	private DictionaryUtil() {
+		// will not be called
+	}
+
+	/**
+	 * Gets the slot of the string at an offset.
+	 * @param data the sample
+	 * @param off the offset
+	 * @return the slot in the table of string counts
+	 */
+	private static int slot(final byte[] data, final int off) {
+		long v = 0;
+		for (int i = off; i < off + K; i++) {
+			v = v << 8 | (data[i] & 0xff);
+		}
+		return (int) ((v * MIX) >>> (64 - TABLEBITS));
+	}
+
+	/**
+	 * Scores a segment by the counts of its strings
+	 * found in more than one sample.
+	 * @param seg the segment
+	 * @param counts the string counts
+	 * @return the score
+	 */
+	private static long score(final Segment seg, final int[] counts) {
+		long score = 0;
+		int end = Math.min(seg.start + SEGMENT, seg.sample.length) - K;
+		for (int i = seg.start; i <= end; i++) {
+			int c = counts[slot(seg.sample, i)];
+			if (c > 1) {
+				score += c;
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Trains a dictionary.
+	 * @param samples the samples
+	 * @param size the size of the dictionary, at most {@link #MAXSIZE}
+	 * @return the dictionary, empty if the samples share nothing
+	 */
+	public static byte[] train(final List<byte[]> samples, final int size) {
+		int[] counts = new int[1 << TABLEBITS];
+		int[] seen = new int[1 << TABLEBITS];
+		for (int n = 0; n < samples.size(); n++) {
+			byte[] sample = samples.get(n);
+			for (int i = 0; i + K <= sample.length; i++) {
+				int s = slot(sample, i);
+				// count each string once per sample
+				if (seen[s] != n + 1) {
+					seen[s] = n + 1;
+					counts[s]++;
+				}
+			}
+		}
+		PriorityQueue<Segment> queue = new PriorityQueue<>();
+		for (byte[] sample:samples) {
+			for (int i = 0; i + K <= sample.length; i += SEGMENT) {
+				Segment seg = new Segment(sample, i);
+				seg.score = score(seg, counts);
+				if (seg.score > 0) {
+					queue.add(seg);
+				}
+			}
+		}
+		List<Segment> chosen = new ArrayList<>();
+		int limit = Math.min(size, MAXSIZE);
+		int total = 0;
+		while (total < limit && !queue.isEmpty()) {
+			Segment seg = queue.poll();
+			// scores only fall, so a fresh score still on top wins
+			long fresh = score(seg, counts);
+			if (fresh == 0) {
+				continue;
+			}
+			if (!queue.isEmpty() && fresh < queue.peek().score) {
+				seg.score = fresh;
+				queue.add(seg);
+				continue;
+			}
+			chosen.add(seg);
+			int end = Math.min(seg.start + SEGMENT, seg.sample.length);
+			total += end - seg.start;
+			for (int i = seg.start; i + K <= end; i++) {
+				counts[slot(seg.sample, i)] = 0;
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(total);
+		for (int i = chosen.size() - 1; i >= 0; i--) {
+			Segment seg = chosen.get(i);
+			int end = Math.min(seg.start + SEGMENT, seg.sample.length);
+			out.write(seg.sample, seg.start, end - seg.start);
+		}
+		byte[] dictionary = out.toByteArray();
+		if (dictionary.length > limit) {
+			byte[] cut = new byte[limit];
+			System.arraycopy(dictionary, dictionary.length - limit,
+					cut, 0, limit);
+			return cut;
+		}
+		return dictionary;
+	}
+}
@@ -0,0 +1,45 @@
+package xlong.backuper.util;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * JUnit test class for DictionaryUtil class.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public class DictionaryUtilTest {
+
+	/**
+	 * Test method for {@link DictionaryUtil#train(List, int)}.
+	 * @throws UnsupportedEncodingException never
+	 */
+	@Test
+	public final void testTrain() throws UnsupportedEncodingException {
+		Random random = new Random(1);
+		List<byte[]> samples = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			samples.add(("{\n  \"id\": " + random.nextInt()
+					+ ",\n  \"name\": \"user" + random.nextInt()
+					+ "\",\n  \"active\": " + random.nextBoolean()
+					+ ",\n  \"address\": {\n    \"city\": \"Beijing\"\n  }\n}")
+					.getBytes("UTF-8"));
+		}
+		byte[] dictionary = DictionaryUtil.train(samples, 1024);
+		assertTrue(dictionary.length > 0);
+		assertTrue(dictionary.length <= 1024);
+		long plain = 0;
+		long preset = 0;
+		for (byte[] sample:samples) {
+			plain += CompressionUtil.deflate(sample).length;
+			preset += CompressionUtil.deflate(sample, dictionary).length;
+		}
+		assertTrue(preset * 2 < plain);
+	}
+}
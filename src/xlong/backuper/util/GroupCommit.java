@@ -0,0 +1,426 @@
+package xlong.backuper.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Makes file writes atomic and durable.
+ * <p>
+ * A file is first written to a temporary file next to its target.
+ * Committing the temporary file flushes it to disk, renames it to
+ * the target atomically and flushes the directory, so after a crash
+ * the target is either missing or complete, never truncated.
+ * <p>
+ * Flushing every file is slow. While a batch is open, commits are only
+ * recorded. When the batch holds enough files or bytes it is handed to
+ * a syncer thread, which flushes all its temporary files, renames them,
+ * then flushes their directories once each. Writers go on committing
+ * into the next batch meanwhile, several batches are synced at once,
+ * and writers only wait when too many are. {@link #flush()} syncs the
+ * open batch and waits for all, and throws the error of any batch
+ * which failed in the background.
+ * Until then the targets do not exist, but {@link #exists(Path)}
+ * already returns true for them, so no object is written twice.
+ * <p>
+ * Temporary files end with ".tmp".
+ * <p>
+ * Commits are safe with several writer processes, and with the threads
+ * of one run. The batch settings are global to the JVM, so two runs
+ * in one JVM would change each other's batching.
+ * Objects are content addressed, so {@link #commit(Path, Path, long)}
+ * never replaces a target: it renames under a lock of the target
+ * directory, and if another writer published the target first the
+ * temporary file is just deleted.
+ * The lock file of a directory is named ".lock".
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class GroupCommit {
+
+	/**
+	 * Private constructor to make sure no instance of this class will be
+	 * created.
+	 */
+	private GroupCommit() {
+		// will not be called
+	}
+
+	/** the suffix of temporary files. */
+	public static final String TEMPSUFFIX = ".tmp";
+
+	/** the name of the lock file in each directory. */
+	public static final String LOCKFILE = ".lock";
+
+	/** the maximum number of files in a batch, 1 commits at once. */
+	private static int maxFiles = 1;
+
+	/** the maximum number of bytes in a batch. */
+	private static long maxBytes = 0;
+
+	/** the pending commits, from target to temporary file. */
+	private static final Map<Path, Path> PENDING = new LinkedHashMap<>();
+
+	/** the bytes of the pending commits. */
+	private static long pendingBytes = 0;
+
+	/** the threads syncing batches. */
+	private static final int SYNCERS = 4;
+
+	/** the batches handed to the syncers at most, more wait. */
+	private static final int MAXBATCHES = 2 * SYNCERS;
+
+	/** the commits of the batches being synced. */
+	private static final Map<Path, Path> SYNCING = new HashMap<>();
+
+	/** the batches being synced. */
+	private static int batches = 0;
+
+	/** the first error of a batch synced in the background. */
+	private static IOException error;
+
+	/** the syncers, created when first needed. */
+	private static ExecutorService syncers;
+
+	/**
+	 * Opens a batch. Commits are delayed until the batch is full.
+	 * @param files the maximum number of files in a batch
+	 * @param bytes the maximum number of bytes in a batch
+	 */
+	public static synchronized void begin(final int files, final long bytes) {
+		maxFiles = files;
+		maxBytes = bytes;
+	}
+
+	/**
+	 * Flushes the open batch and commits every file at once from now on.
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void end() throws IOException {
+		synchronized (GroupCommit.class) {
+			maxFiles = 1;
+			maxBytes = 0;
+		}
+		flush();
+	}
+
+	/**
+	 * Creates a temporary file for a target.
+	 * @param target the target
+	 * @return the temporary file
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static Path createTemp(final Path target) throws IOException {
+		Path dir = target.toAbsolutePath().getParent();
+		return Files.createTempFile(dir,
+				target.getFileName().toString() + ".", TEMPSUFFIX);
+	}
+
+	/**
+	 * Tests whether a target exists or is pending in the batch.
+	 * @param target the target
+	 * @return exists or not
+	 */
+	public static boolean exists(final Path target) {
+		synchronized (GroupCommit.class) {
+			if (PENDING.containsKey(target) || SYNCING.containsKey(target)) {
+				return true;
+			}
+		}
+		return Files.exists(target);
+	}
+
+	/**
+	 * Commits a temporary file to its target.
+	 * If a batch is open the commit may be delayed.
+	 * If the target already exists it is kept.
+	 * @param temp the temporary file, already closed
+	 * @param target the target
+	 * @param size the size of the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void commit(final Path temp, final Path target,
+			final long size) throws IOException {
+		Map<Path, Path> batch;
+		synchronized (GroupCommit.class) {
+			if (maxFiles > 1) {
+				if (PENDING.containsKey(target) 
+						|| SYNCING.containsKey(target)) {
+					Files.delete(temp);
+					return;
+				}
+				PENDING.put(target, temp);
+				pendingBytes += size;
+				if (PENDING.size() < maxFiles && pendingBytes < maxBytes) {
+					return;
+				}
+				batch = take();
+			} else {
+				batch = null;
+			}
+		}
+		if (batch != null) {
+			submit(batch);
+			return;
+		}
+		long t0 = System.nanoTime();
+		force(temp);
+		Path dir = target.toAbsolutePath().getParent();
+		ProcessLock lock = ProcessLock.lock(dir.resolve(LOCKFILE));
+		try {
+			publish(temp, target);
+		} finally {
+			lock.close();
+		}
+		forceDirectory(dir);
+		Metrics.getCurrent().time(Metrics.Phase.SYNC, System.nanoTime() - t0);
+	}
+
+	/**
+	 * Commits a temporary file to its target at once.
+	 * Existing targets are replaced.
+	 * @param temp the temporary file, already closed
+	 * @param target the target
+	 * @throws IOException if an I/O error occurs
+	 */
+	public static void commitNow(final Path temp, final Path target)
+			throws IOException {
+		long t0 = System.nanoTime();
+		force(temp);
+		replace(temp, target);
+		forceDirectory(target.toAbsolutePath().getParent());
+		Metrics.getCurrent().time(Metrics.Phase.SYNC, System.nanoTime() - t0);
+	}
+
+	/**
+	 * Commits all pending files, and waits for the batches being synced.
+	 * @throws IOException if an I/O error occurs, also in a batch
+	 *         synced in the background since the last flush
+	 */
+	public static void flush() throws IOException {
+		Map<Path, Path> batch;
+		synchronized (GroupCommit.class) {
+			batch = PENDING.isEmpty() ? null : take();
+		}
+		if (batch != null) {
+			run(batch);
+		}
+		synchronized (GroupCommit.class) {
+			while (batches > 0) {
+				try {
+					GroupCommit.class.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			IOException e = error;
+			error = null;
+			if (e != null) {
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Takes the pending commits as a batch to sync.
+	 * The caller holds the monitor of this class.
+	 * @return the batch, from target to temporary file
+	 */
+	private static Map<Path, Path> take() {
+		Map<Path, Path> batch = new LinkedHashMap<>(PENDING);
+		SYNCING.putAll(batch);
+		PENDING.clear();
+		pendingBytes = 0;
+		batches++;
+		return batch;
+	}
+
+	/**
+	 * Hands a batch to the syncers, waiting while too many are synced.
+	 * @param batch the batch
+	 * @throws IOException if interrupted while waiting
+	 */
+	private static void submit(final Map<Path, Path> batch)
+			throws IOException {
+		synchronized (GroupCommit.class) {
+			while (batches > MAXBATCHES) {
+				try {
+					GroupCommit.class.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					done(batch, new InterruptedIOException());
+					throw new InterruptedIOException();
+				}
+			}
+			if (syncers == null) {
+				syncers = Executors.newFixedThreadPool(SYNCERS, 
+						new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread t = new Thread(r, "group-commit");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+		}
+		syncers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					GroupCommit.run(batch);
+				} catch (IOException e) {
+					// kept for the next flush
+					return;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Syncs a batch and marks it done.
+	 * @param batch the batch
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void run(final Map<Path, Path> batch)
+			throws IOException {
+		IOException failure = null;
+		try {
+			sync(batch);
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} finally {
+			done(batch, failure);
+		}
+	}
+
+	/**
+	 * Marks a batch done, so its targets are no longer pending.
+	 * @param batch the batch
+	 * @param e the error of the batch, null if none
+	 */
+	private static synchronized void done(final Map<Path, Path> batch,
+			final IOException e) {
+		SYNCING.keySet().removeAll(batch.keySet());
+		batches--;
+		if (e != null && error == null) {
+			error = e;
+		}
+		GroupCommit.class.notifyAll();
+	}
+
+	/**
+	 * Flushes the temporary files of a batch, renames them, then flushes
+	 * their directories. Runs without the monitor of this class.
+	 * @param batch the batch
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void sync(final Map<Path, Path> batch) 
+			throws IOException {
+		long t0 = System.nanoTime();
+		for (Path temp:batch.values()) {
+			force(temp);
+		}
+		Map<Path, List<Path>> dirs = new TreeMap<>();
+		for (Path target:batch.keySet()) {
+			Path dir = target.toAbsolutePath().getParent();
+			if (!dirs.containsKey(dir)) {
+				dirs.put(dir, new ArrayList<Path>());
+			}
+			dirs.get(dir).add(target);
+		}
+		for (Entry<Path, List<Path>> en:dirs.entrySet()) {
+			Path dir = en.getKey();
+			ProcessLock lock = ProcessLock.lock(dir.resolve(LOCKFILE));
+			try {
+				for (Path target:en.getValue()) {
+					publish(batch.get(target), target);
+				}
+			} finally {
+				lock.close();
+			}
+		}
+		for (Path dir:dirs.keySet()) {
+			forceDirectory(dir);
+		}
+		Metrics.getCurrent().time(Metrics.Phase.SYNC, System.nanoTime() - t0);
+	}
+
+	/**
+	 * Flushes a file to disk.
+	 * @param file the file
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void force(final Path file) throws IOException {
+		try (FileChannel fc = FileChannel.open(file,
+				StandardOpenOption.WRITE)) {
+			fc.force(true);
+		}
+	}
+
+	/**
+	 * Flushes a directory to disk, so renames in it are durable.
+	 * Some platforms cannot open directories, there this does nothing.
+	 * @param dir the directory
+	 */
+	public static void forceDirectory(final Path dir) {
+		try (FileChannel fc = FileChannel.open(dir,
+				StandardOpenOption.READ)) {
+			fc.force(true);
+		} catch (IOException e) {
+			// not supported on this platform
+			return;
+		}
+	}
+
+	/**
+	 * Renames a temporary file to its target atomically,
+	 * unless the target exists. The caller holds the directory lock.
+	 * @param temp the temporary file
+	 * @param target the target
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void publish(final Path temp, final Path target)
+			throws IOException {
+		if (Files.exists(target)) {
+			Files.delete(temp);
+		} else {
+			replace(temp, target);
+		}
+	}
+
+	/**
+	 * Renames a temporary file to its target atomically.
+	 * @param temp the temporary file
+	 * @param target the target
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static void replace(final Path temp, final Path target)
+			throws IOException {
+		try {
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
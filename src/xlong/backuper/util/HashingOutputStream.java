@@ -0,0 +1,88 @@
+package xlong.backuper.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An output stream computing the SHA-1 checksum and the number of the
+ * bytes written through it, so what is written can be verified with no
+ * second pass. With no underlying stream the bytes are dropped, which
+ * checks the content without writing it.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class HashingOutputStream extends OutputStream {
+
+	/** the underlying stream, null to drop the bytes. */
+	private final OutputStream out;
+
+	/** the digest. */
+	private final MessageDigest sha1;
+
+	/** the bytes written. */
+	private long count = 0;
+
+	/**
+	 * Constructor.
+	 * @param underlying the underlying stream, null to drop the bytes
+	 */
+	public HashingOutputStream(final OutputStream underlying) {
+		out = underlying;
+		try {
+			sha1 = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		sha1.update((byte) b);
+		count++;
+		if (out != null) {
+			out.write(b);
+		}
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		sha1.update(b, off, len);
+		count += len;
+		if (out != null) {
+			out.write(b, off, len);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (out != null) {
+			out.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (out != null) {
+			out.close();
+		}
+	}
+
+	/**
+	 * Gets the bytes written.
+	 * @return the number of bytes
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Gets the checksum of the bytes written, and resets it.
+	 * @return the hexadecimal representation of the checksum
+	 */
+	public String getChecksum() {
+		return SHA1Util.toHex(sha1.digest());
+	}
+}
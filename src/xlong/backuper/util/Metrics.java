@@ -0,0 +1,456 @@
+package xlong.backuper.util;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Performance metrics of a backup or restore run.
+ * <p>
+ * A metrics object counts files and bytes passing each step,
+ * sums the time spent in each phase,
+ * and keeps a latency histogram of each object size class.
+ * All methods are thread safe.
+ * <p>
+ * Code on the backup and restore paths records to the current metrics,
+ * see {@link #getCurrent()}. The summary is written as JSON by
+ * {@link #toJson()}. The current metrics are global to the JVM,
+ * a run started replaces the one running.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class Metrics {
+
+	/** Things counted. */
+	public enum Counter {
+		/** files found by scanning. */
+		FILES_SCANNED,
+		/** bytes of files found by scanning. */
+		BYTES_SCANNED,
+		/** directories found by scanning. */
+		DIRECTORIES_SCANNED,
+		/** files hashed. */
+		FILES_HASHED,
+		/** bytes hashed. */
+		BYTES_HASHED,
+		/** files already in the repository. */
+		FILES_DEDUPLICATED,
+		/** bytes of files already in the repository. */
+		BYTES_DEDUPLICATED,
+		/** files done by an interrupted run, not read again. */
+		FILES_RESUMED,
+		/** bytes of files done by an interrupted run. */
+		BYTES_RESUMED,
+		/** files compressed. */
+		FILES_COMPRESSED,
+		/** bytes given to the compressor. */
+		BYTES_COMPRESSED,
+		/** files stored as a delta to their previous version. */
+		FILES_DELTA,
+		/** bytes of files stored as a delta. */
+		BYTES_DELTA,
+		/** files stored or restored without their blocks of zeros. */
+		FILES_SPARSE,
+		/** bytes of zeros not stored or not written, left as holes. */
+		BYTES_SPARSE,
+		/** objects already in the repository, reused. */
+		OBJECTS_REUSED,
+		/** objects written to the repository. */
+		OBJECTS_WRITTEN,
+		/** bytes written. */
+		BYTES_WRITTEN,
+		/** files restored. */
+		FILES_RESTORED,
+		/** bytes of files restored. */
+		BYTES_RESTORED,
+		/** files restored whose checksum does not match their blob. */
+		FILES_MISMATCHED
+	}
+
+	/** Phases timed. */
+	public enum Phase {
+		/** listing directories and reading attributes. */
+		SCAN,
+		/** computing checksums. */
+		HASH,
+		/** reading files and objects. */
+		READ,
+		/** compressing. */
+		DEFLATE,
+		/** decompressing. */
+		INFLATE,
+		/** writing files and objects. */
+		WRITE,
+		/** flushing files and directories to disk. */
+		SYNC
+	}
+
+	/** The upper bounds of object size classes, the last is unbounded. */
+	private static final long[] SIZECLASSES = {
+		1L << 12, 1L << 16, 1L << 20, 1L << 24, 100000000L, Long.MAX_VALUE};
+
+	/** The number of deflate levels, 0 stores. */
+	private static final int LEVELS = 10;
+
+	/** The number of latency buckets, bucket i holds up to 2^i us. */
+	private static final int BUCKETS = 40;
+
+	/** Nanoseconds per microsecond. */
+	private static final long MICRO = 1000L;
+
+	/** Nanoseconds per millisecond. */
+	private static final long MILLI = 1000000L;
+
+	/** Percent. */
+	private static final double PERCENT = 100.0;
+
+	/** Percentiles reported. */
+	private static final int[] PERCENTILES = {50, 90, 99};
+
+	/** The metrics being recorded now. */
+	private static volatile Metrics current = new Metrics("none");
+
+	/**
+	 * Gets the metrics being recorded now.
+	 * @return the current metrics
+	 */
+	public static Metrics getCurrent() {
+		return current;
+	}
+
+	/**
+	 * Sets the metrics being recorded now.
+	 * @param metrics the metrics
+	 */
+	public static void setCurrent(final Metrics metrics) {
+		current = metrics;
+	}
+
+	/**
+	 * Starts recording a new run.
+	 * The new metrics become the current metrics.
+	 * @param operation the name of the run, such as "backup"
+	 * @return the new metrics
+	 */
+	public static Metrics start(final String operation) {
+		Metrics metrics = new Metrics(operation);
+		setCurrent(metrics);
+		return metrics;
+	}
+
+	/**
+	 * Gets a counter from a summary written by {@link #toJson()}.
+	 * @param json the summary, may be null
+	 * @param counter the counter
+	 * @return the value, 0 if not found
+	 */
+	public static long parse(final String json, final Counter counter) {
+		if (json == null) {
+			return 0;
+		}
+		String key = "\"" + camel(counter.name()) + "\":";
+		int i = json.indexOf(key);
+		if (i < 0) {
+			return 0;
+		}
+		i += key.length();
+		int j = i;
+		while (j < json.length() && Character.isDigit(json.charAt(j))) {
+			j++;
+		}
+		if (j == i) {
+			return 0;
+		}
+		return Long.parseLong(json.substring(i, j));
+	}
+
+	/** the name of the run. */
+	private final String operation;
+
+	/** the start time. */
+	private final Date startDate;
+
+	/** the start time in nanoseconds. */
+	private final long startNanos;
+
+	/** the end time in nanoseconds, 0 if not finished. */
+	private volatile long endNanos;
+
+	/** the counters. */
+	private final AtomicLongArray counters =
+			new AtomicLongArray(Counter.values().length);
+
+	/** the time of the phases in nanoseconds. */
+	private final AtomicLongArray phases =
+			new AtomicLongArray(Phase.values().length);
+
+	/** the number of objects of each size class. */
+	private final AtomicLongArray classCount =
+			new AtomicLongArray(SIZECLASSES.length);
+
+	/** the bytes of objects of each size class. */
+	private final AtomicLongArray classBytes =
+			new AtomicLongArray(SIZECLASSES.length);
+
+	/** the total latency of each size class in nanoseconds. */
+	private final AtomicLongArray classNanos =
+			new AtomicLongArray(SIZECLASSES.length);
+
+	/** the maximum latency of each size class in nanoseconds. */
+	private final AtomicLongArray classMax =
+			new AtomicLongArray(SIZECLASSES.length);
+
+	/** the number of files deflated at each level. */
+	private final AtomicLongArray levelFiles = new AtomicLongArray(LEVELS);
+
+	/** the bytes of files deflated at each level. */
+	private final AtomicLongArray levelBytes = new AtomicLongArray(LEVELS);
+
+	/** the latency histograms, BUCKETS entries per size class. */
+	private final AtomicLongArray histograms =
+			new AtomicLongArray(SIZECLASSES.length * BUCKETS);
+
+	/**
+	 * Constructor.
+	 * @param name the name of the run
+	 */
+	public Metrics(final String name) {
+		operation = name;
+		startDate = new Date();
+		startNanos = System.nanoTime();
+	}
+
+	/**
+	 * Marks the end of the run.
+	 */
+	public void finish() {
+		endNanos = System.nanoTime();
+	}
+
+	/**
+	 * Adds to a counter.
+	 * @param counter the counter
+	 * @param n the amount
+	 */
+	public void add(final Counter counter, final long n) {
+		counters.addAndGet(counter.ordinal(), n);
+	}
+
+	/**
+	 * Gets a counter.
+	 * @param counter the counter
+	 * @return the value
+	 */
+	public long get(final Counter counter) {
+		return counters.get(counter.ordinal());
+	}
+
+	/**
+	 * Adds time to a phase.
+	 * @param phase the phase
+	 * @param nanos the time in nanoseconds
+	 */
+	public void time(final Phase phase, final long nanos) {
+		phases.addAndGet(phase.ordinal(), nanos);
+	}
+
+	/**
+	 * Gets the time of a phase.
+	 * @param phase the phase
+	 * @return the time in nanoseconds
+	 */
+	public long getTime(final Phase phase) {
+		return phases.get(phase.ordinal());
+	}
+
+	/**
+	 * Gets the time from the start to the end of the run,
+	 * or to now if the run is not finished.
+	 * @return the time in nanoseconds
+	 */
+	public long getElapsed() {
+		long end = endNanos;
+		if (end == 0) {
+			end = System.nanoTime();
+		}
+		return end - startNanos;
+	}
+
+	/**
+	 * Records the deflate level a file was compressed at.
+	 * @param level the level, 0 to 9
+	 * @param bytes the size of the file
+	 */
+	public void level(final int level, final long bytes) {
+		levelFiles.incrementAndGet(level);
+		levelBytes.addAndGet(level, bytes);
+	}
+
+	/**
+	 * Records the time one object took end to end.
+	 * @param size the size of the object
+	 * @param nanos the time in nanoseconds
+	 */
+	public void latency(final long size, final long nanos) {
+		int c = 0;
+		while (size > SIZECLASSES[c]) {
+			c++;
+		}
+		int b = Math.min(BUCKETS - 1,
+				Long.SIZE - Long.numberOfLeadingZeros(nanos / MICRO));
+		classCount.incrementAndGet(c);
+		classBytes.addAndGet(c, size);
+		classNanos.addAndGet(c, nanos);
+		histograms.incrementAndGet(c * BUCKETS + b);
+		long max;
+		do {
+			max = classMax.get(c);
+		} while (nanos > max && !classMax.compareAndSet(c, max, nanos));
+	}
+
+	/**
+	 * Gets a percentile of the latency of a size class.
+	 * The result is the upper bound of the histogram bucket.
+	 * @param c the size class
+	 * @param percentile the percentile
+	 * @return the latency in microseconds
+	 */
+	private long percentile(final int c, final int percentile) {
+		long count = classCount.get(c);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += histograms.get(c * BUCKETS + b);
+			if (seen * PERCENT >= count * (double) percentile) {
+				return 1L << b;
+			}
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	/**
+	 * Converts a constant name such as FILES_SCANNED to filesScanned.
+	 * @param name the constant name
+	 * @return the camel case name
+	 */
+	private static String camel(final String name) {
+		StringBuilder sb = new StringBuilder();
+		boolean upper = false;
+		for (char ch:name.toLowerCase().toCharArray()) {
+			if (ch == '_') {
+				upper = true;
+			} else if (upper) {
+				sb.append(Character.toUpperCase(ch));
+				upper = false;
+			} else {
+				sb.append(ch);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Formats a ratio for JSON.
+	 * @param a the dividend
+	 * @param b the divisor
+	 * @return the ratio with two decimals, null if b is 0
+	 */
+	private static String ratio(final long a, final long b) {
+		if (b == 0) {
+			return "null";
+		}
+		return String.format(Locale.ROOT, "%.2f", (double) a / b);
+	}
+
+	/**
+	 * Gets the summary in JSON.
+	 * @return the JSON string
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		SimpleDateFormat df = new SimpleDateFormat("yyyyMMdd_HHmmss");
+		sb.append("{\"operation\":\"").append(operation).append("\"");
+		sb.append(",\"start\":\"").append(df.format(startDate)).append("\"");
+		sb.append(",\"elapsedMillis\":").append(getElapsed() / MILLI);
+		sb.append(",\"counters\":{");
+		for (Counter counter:Counter.values()) {
+			if (counter.ordinal() > 0) {
+				sb.append(",");
+			}
+			sb.append("\"").append(camel(counter.name())).append("\":")
+				.append(get(counter));
+		}
+		sb.append("}");
+		long logical = get(Counter.BYTES_SCANNED);
+		if (logical > 0) {
+			// files resumed were stored by the run which died
+			long fresh = logical - get(Counter.BYTES_DEDUPLICATED)
+					- get(Counter.BYTES_RESUMED);
+			long physical = get(Counter.BYTES_WRITTEN);
+			sb.append(",\"space\":{\"logicalBytes\":").append(logical);
+			sb.append(",\"newBytes\":").append(fresh);
+			sb.append(",\"physicalBytes\":").append(physical);
+			sb.append(",\"objectsReused\":")
+				.append(get(Counter.OBJECTS_REUSED));
+			sb.append(",\"objectsCreated\":")
+				.append(get(Counter.OBJECTS_WRITTEN));
+			sb.append(",\"dedupRatio\":").append(ratio(logical, fresh));
+			sb.append(",\"compressionRatio\":")
+				.append(ratio(fresh, physical));
+			sb.append("}");
+		}
+		sb.append(",\"phaseMillis\":{");
+		for (Phase phase:Phase.values()) {
+			if (phase.ordinal() > 0) {
+				sb.append(",");
+			}
+			sb.append("\"").append(camel(phase.name())).append("\":")
+				.append(getTime(phase) / MILLI);
+		}
+		sb.append("},\"deflateLevels\":[");
+		boolean first = true;
+		for (int l = 0; l < LEVELS; l++) {
+			if (levelFiles.get(l) == 0) {
+				continue;
+			}
+			if (!first) {
+				sb.append(",");
+			}
+			first = false;
+			sb.append("{\"level\":").append(l);
+			sb.append(",\"files\":").append(levelFiles.get(l));
+			sb.append(",\"bytes\":").append(levelBytes.get(l));
+			sb.append("}");
+		}
+		sb.append("],\"sizeClasses\":[");
+		first = true;
+		for (int c = 0; c < SIZECLASSES.length; c++) {
+			long count = classCount.get(c);
+			if (count == 0) {
+				continue;
+			}
+			if (!first) {
+				sb.append(",");
+			}
+			first = false;
+			sb.append("{\"maxBytes\":");
+			if (SIZECLASSES[c] == Long.MAX_VALUE) {
+				sb.append("null");
+			} else {
+				sb.append(SIZECLASSES[c]);
+			}
+			sb.append(",\"count\":").append(count);
+			sb.append(",\"bytes\":").append(classBytes.get(c));
+			sb.append(",\"meanMicros\":")
+				.append(classNanos.get(c) / count / MICRO);
+			for (int p:PERCENTILES) {
+				sb.append(",\"p").append(p).append("Micros\":")
+					.append(percentile(c, p));
+			}
+			sb.append(",\"maxMicros\":").append(classMax.get(c) / MICRO);
+			sb.append("}");
+		}
+		sb.append("]}");
+		return sb.toString();
+	}
+}
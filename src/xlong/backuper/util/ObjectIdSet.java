@@ -0,0 +1,122 @@
+package xlong.backuper.util;
+
+/**
+ * A compact set of object checksums, to count the objects of many
+ * backups in little memory.
+ * <p>
+ * Only the first 64 bits of a checksum are kept, in an open addressing
+ * table of longs, 8 to 16 bytes per object instead of about 100 for
+ * a string in a hash set. Two objects of a repository sharing 64 bits
+ * are unlikely, and would only make one of them counted as the other.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class ObjectIdSet {
+
+	/** the hex digits of 32 bits. */
+	private static final int HALF = 8;
+
+	/** the initial capacity. */
+	private static final int INITIAL = 1024;
+
+	/** marks an empty slot, an id equal to it is kept aside. */
+	private static final long EMPTY = 0;
+
+	/** spreads ids over the table. */
+	private static final long MIX = 0x9E3779B97F4A7C15L;
+
+	/** the table. */
+	private long[] table = new long[INITIAL];
+
+	/** the number of ids in the table. */
+	private int count = 0;
+
+	/** the set holds the id equal to EMPTY or not. */
+	private boolean hasEmpty = false;
+
+	/**
+	 * Gets the id of a checksum.
+	 * @param checksum the checksum, at least 16 hex digits
+	 * @return the id
+	 */
+	private static long id(final String checksum) {
+		return Long.parseLong(checksum.substring(0, HALF), 16) << 32
+				| Long.parseLong(checksum.substring(HALF, 2 * HALF), 16);
+	}
+
+	/**
+	 * Finds the slot of an id, or the empty slot to put it in.
+	 * @param t the table
+	 * @param id the id
+	 * @return the slot
+	 */
+	private static int slot(final long[] t, final long id) {
+		int mask = t.length - 1;
+		int i = (int) ((id * MIX) >>> 32) & mask;
+		while (t[i] != EMPTY && t[i] != id) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Adds a checksum.
+	 * @param checksum the checksum
+	 * @return added or already in the set
+	 */
+	public boolean add(final String checksum) {
+		long id = id(checksum);
+		if (id == EMPTY) {
+			boolean added = !hasEmpty;
+			hasEmpty = true;
+			return added;
+		}
+		int i = slot(table, id);
+		if (table[i] == id) {
+			return false;
+		}
+		table[i] = id;
+		count++;
+		// keep the table at most half full
+		if (count * 2 > table.length) {
+			long[] old = table;
+			table = new long[old.length * 2];
+			for (long v:old) {
+				if (v != EMPTY) {
+					table[slot(table, v)] = v;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tests whether a checksum is in the set.
+	 * @param checksum the checksum
+	 * @return in the set or not
+	 */
+	public boolean contains(final String checksum) {
+		long id = id(checksum);
+		if (id == EMPTY) {
+			return hasEmpty;
+		}
+		return table[slot(table, id)] == id;
+	}
+
+	/**
+	 * Gets the number of checksums in the set.
+	 * @return the size
+	 */
+	public int size() {
+		return count + (hasEmpty ? 1 : 0);
+	}
+
+	/**
+	 * Removes all checksums.
+	 */
+	public void clear() {
+		table = new long[INITIAL];
+		count = 0;
+		hasEmpty = false;
+	}
+}
@@ -0,0 +1,38 @@
+package xlong.backuper.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * JUnit test class for ObjectIdSet class.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public class ObjectIdSetTest {
+
+	/**
+	 * Test method for {@link ObjectIdSet#add(String)}.
+	 */
+	@Test
+	public final void testAdd() {
+		ObjectIdSet set = new ObjectIdSet();
+		int n = 10000;
+		for (int i = 0; i < n; i++) {
+			assertTrue(set.add(SHA1Util.sha1Checksum(Integer.toString(i))));
+		}
+		for (int i = 0; i < n; i++) {
+			assertFalse(set.add(SHA1Util.sha1Checksum(Integer.toString(i))));
+			assertTrue(set.contains(
+					SHA1Util.sha1Checksum(Integer.toString(i))));
+		}
+		assertFalse(set.contains(SHA1Util.sha1Checksum("none")));
+		String zero = "0000000000000000ffffffffffffffffffffffff";
+		assertFalse(set.contains(zero));
+		assertTrue(set.add(zero));
+		assertTrue(set.contains(zero));
+		assertEquals(n + 1, set.size());
+	}
+}
@@ -0,0 +1,222 @@
+package xlong.backuper.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Include and exclude rules in the style of gitignore, compiled once.
+ * <p>
+ * A rule is "- pattern" to exclude or "+ pattern" to include again.
+ * The last rule that matches a path decides, a path no rule matches
+ * is included. Paths are relative to the root of a mapping and use "/".
+ * <ul>
+ * <li>A pattern ending with "/" only matches directories.</li>
+ * <li>A pattern with a "/" at the start or in the middle is matched
+ * against the whole path, other patterns against the name only,
+ * at any depth.</li>
+ * <li>"*" matches anything but "/", "?" one character but "/",
+ * "[...]" a character class, "**" any number of directories.</li>
+ * </ul>
+ * An excluded directory is not scanned at all, so nothing below it
+ * can be included again, like in gitignore.
+ * <p>
+ * Rules without wildcards are looked up in hash maps by path or by name,
+ * only the other rules are matched one by one as regular expressions,
+ * from the last rule down and only while they could still win.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class PathRules {
+
+	/**
+	 * A compiled rule with wildcards.
+	 */
+	private static final class Rule {
+		/** the index of the rule, later rules win. */
+		private final int index;
+		/** exclude or include. */
+		private final boolean exclude;
+		/** only matches directories. */
+		private final boolean dirOnly;
+		/** matched against the whole path or the name. */
+		private final boolean anchored;
+		/** the automaton. */
+		private final Pattern pattern;
+
+		/**
+		 * Constructor.
+		 * @param i the index
+		 * @param ex exclude or include
+		 * @param dir only matches directories
+		 * @param anchor matched against the whole path or the name
+		 * @param p the automaton
+		 */
+		Rule(final int i, final boolean ex, final boolean dir,
+				final boolean anchor, final Pattern p) {
+			index = i;
+			exclude = ex;
+			dirOnly = dir;
+			anchored = anchor;
+			pattern = p;
+		}
+	}
+
+	/** the last literal rule by whole path, for files and directories. */
+	private final Map<String, Integer> paths = new HashMap<>();
+
+	/** the last literal rule by whole path, for directories only. */
+	private final Map<String, Integer> dirPaths = new HashMap<>();
+
+	/** the last literal rule by name, for files and directories. */
+	private final Map<String, Integer> names = new HashMap<>();
+
+	/** the last literal rule by name, for directories only. */
+	private final Map<String, Integer> dirNames = new HashMap<>();
+
+	/** the rules with wildcards, last first. */
+	private final List<Rule> globs = new ArrayList<>();
+
+	/** exclude or not, by the index of the rule. */
+	private final boolean[] excludes;
+
+	/**
+	 * Compiles rules.
+	 * @param rules the rules, like "- node_modules/" or "+ keep.tmp"
+	 * @throws IllegalArgumentException if a rule does not start
+	 *         with "-" or "+"
+	 */
+	public PathRules(final List<String> rules) {
+		excludes = new boolean[rules.size()];
+		for (int i = 0; i < rules.size(); i++) {
+			String rule = rules.get(i).trim();
+			if (rule.length() < 2
+					|| rule.charAt(0) != '-' && rule.charAt(0) != '+') {
+				throw new IllegalArgumentException("Bad rule: " + rule);
+			}
+			excludes[i] = rule.charAt(0) == '-';
+			String p = rule.substring(1).trim();
+			boolean dirOnly = p.endsWith("/");
+			if (dirOnly) {
+				p = p.substring(0, p.length() - 1);
+			}
+			boolean anchored = p.indexOf('/') >= 0;
+			if (p.startsWith("/")) {
+				p = p.substring(1);
+			}
+			if (!hasWildcard(p)) {
+				Map<String, Integer> map;
+				if (anchored) {
+					map = dirOnly ? dirPaths : paths;
+				} else {
+					map = dirOnly ? dirNames : names;
+				}
+				map.put(p, i);
+			} else {
+				globs.add(0, new Rule(i, excludes[i], dirOnly, anchored,
+						Pattern.compile(toRegex(p))));
+			}
+		}
+	}
+
+	/**
+	 * Tests whether a pattern has wildcards.
+	 * @param p the pattern
+	 * @return has wildcards or not
+	 */
+	private static boolean hasWildcard(final String p) {
+		return p.indexOf('*') >= 0 || p.indexOf('?') >= 0
+				|| p.indexOf('[') >= 0;
+	}
+
+	/**
+	 * Converts a glob to a regular expression.
+	 * @param glob the glob
+	 * @return the regular expression
+	 */
+	public static String toRegex(final String glob) {
+		StringBuilder r = new StringBuilder();
+		int n = glob.length();
+		for (int i = 0; i < n; i++) {
+			char c = glob.charAt(i);
+			if (c == '*') {
+				if (i + 1 < n && glob.charAt(i + 1) == '*') {
+					i++;
+					if (i + 1 < n && glob.charAt(i + 1) == '/') {
+						i++;
+						r.append("(?:.*/)?");
+					} else {
+						r.append(".*");
+					}
+				} else {
+					r.append("[^/]*");
+				}
+			} else if (c == '?') {
+				r.append("[^/]");
+			} else if (c == '[') {
+				int end = glob.indexOf(']', i + 2);
+				if (end < 0) {
+					r.append("\\[");
+				} else {
+					String cls = glob.substring(i + 1, end);
+					if (cls.startsWith("!")) {
+						cls = "^" + cls.substring(1);
+					}
+					r.append('[').append(cls.replace("\\", "\\\\"))
+						.append(']');
+					i = end;
+				}
+			} else {
+				r.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return r.toString();
+	}
+
+	/**
+	 * Gets the later of a rule found so far and a rule in a map.
+	 * @param best the index found so far, -1 for none
+	 * @param map the map
+	 * @param key the key
+	 * @return the later index
+	 */
+	private static int later(final int best, final Map<String, Integer> map,
+			final String key) {
+		Integer i = map.get(key);
+		if (i != null && i > best) {
+			return i;
+		}
+		return best;
+	}
+
+	/**
+	 * Tests whether a path is excluded.
+	 * @param path the path relative to the root, with "/"
+	 * @param isDirectory the path is a directory or not
+	 * @return excluded or not
+	 */
+	public boolean excludes(final String path, final boolean isDirectory) {
+		String name = path.substring(path.lastIndexOf('/') + 1);
+		int best = later(-1, paths, path);
+		best = later(best, names, name);
+		if (isDirectory) {
+			best = later(best, dirPaths, path);
+			best = later(best, dirNames, name);
+		}
+		for (Rule rule:globs) {
+			if (rule.index <= best) {
+				break;
+			}
+			if (rule.dirOnly && !isDirectory) {
+				continue;
+			}
+			if (rule.pattern.matcher(rule.anchored ? path : name).matches()) {
+				best = rule.index;
+				break;
+			}
+		}
+		return best >= 0 && excludes[best];
+	}
+}
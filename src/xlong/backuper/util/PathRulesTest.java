@@ -0,0 +1,59 @@
+package xlong.backuper.util;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * JUnit test class for PathRules class.
+ * 
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public class PathRulesTest {
+
+	/**
+	 * Test method for {@link PathRules#excludes(String, boolean)}.
+	 */
+	@Test
+	public final void testExcludes() {
+		PathRules rules = new PathRules(Arrays.asList(
+				"- node_modules/",
+				"- *.tmp",
+				"- /build/",
+				"- docs/**/*.pdf",
+				"- cache",
+				"+ keep.tmp",
+				"- a[0-9]?.log"));
+		assertTrue(rules.excludes("node_modules", true));
+		assertTrue(rules.excludes("web/node_modules", true));
+		assertFalse(rules.excludes("web/node_modules", false));
+		assertTrue(rules.excludes("x/y.tmp", false));
+		assertFalse(rules.excludes("x/keep.tmp", false));
+		assertTrue(rules.excludes("build", true));
+		assertFalse(rules.excludes("src/build", true));
+		assertTrue(rules.excludes("docs/a.pdf", false));
+		assertTrue(rules.excludes("docs/a/b/c.pdf", false));
+		assertFalse(rules.excludes("src/docs/a.pdf", false));
+		assertTrue(rules.excludes("src/cache", false));
+		assertTrue(rules.excludes("src/cache", true));
+		assertTrue(rules.excludes("a1x.log", false));
+		assertFalse(rules.excludes("ab.log", false));
+		assertFalse(rules.excludes("src/main.java", false));
+	}
+
+	/**
+	 * Test method for {@link PathRules#toRegex(String)}.
+	 */
+	@Test
+	public final void testToRegex() {
+		assertTrue("a/b/c.txt".matches(PathRules.toRegex("**/c.txt")));
+		assertTrue("c.txt".matches(PathRules.toRegex("**/c.txt")));
+		assertTrue("a/b/c".matches(PathRules.toRegex("a/**")));
+		assertFalse("a/b.txt".matches(PathRules.toRegex("*.txt")));
+		assertTrue("x.c".matches(PathRules.toRegex("[!ab].c")));
+		assertFalse("a.c".matches(PathRules.toRegex("[!ab].c")));
+	}
+}
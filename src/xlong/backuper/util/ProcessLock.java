@@ -0,0 +1,178 @@
+package xlong.backuper.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An exclusive lock shared by threads and processes, held on a lock file.
+ * <p>
+ * Threads of this process are serialized by a reentrant lock per file,
+ * other processes by a file lock on it, so only the first acquisition in
+ * a thread touches the file system. Release it in a finally block:
+ * <pre>
+ * ProcessLock lock = ProcessLock.lock(path);
+ * try {
+ *     ...
+ * } finally {
+ *     lock.close();
+ * }
+ * </pre>
+ * The lock file is created if needed and never deleted.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class ProcessLock implements AutoCloseable {
+
+	/**
+	 * The state of one lock file.
+	 */
+	private static final class Holder {
+		/** the lock file. */
+		private final Path file;
+		/** serializes the threads of this process. */
+		private final ReentrantLock lock = new ReentrantLock();
+		/** the open lock file, while locked. */
+		private FileChannel channel;
+		/** the file lock, while locked. */
+		private FileLock fileLock;
+
+		/**
+		 * Constructor.
+		 * @param lockFile the lock file
+		 */
+		Holder(final Path lockFile) {
+			file = lockFile;
+		}
+	}
+
+	/** the holders by lock file. */
+	private static final ConcurrentMap<Path, Holder> HOLDERS =
+			new ConcurrentHashMap<>();
+
+	/** the holder of this lock. */
+	private final Holder holder;
+
+	/** released or not. */
+	private boolean closed;
+
+	/**
+	 * Constructor.
+	 * @param lockHolder the holder, already locked
+	 */
+	private ProcessLock(final Holder lockHolder) {
+		holder = lockHolder;
+	}
+
+	/**
+	 * Acquires the lock, waiting for other threads and processes.
+	 * @param lockFile the lock file
+	 * @return the lock, close it to release
+	 * @throws IOException if the lock file cannot be opened or locked
+	 */
+	public static ProcessLock lock(final Path lockFile) throws IOException {
+		Holder h = holder(lockFile);
+		h.lock.lock();
+		if (h.lock.getHoldCount() == 1) {
+			try {
+				h.channel = FileChannel.open(h.file, StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE);
+				h.fileLock = h.channel.lock();
+			} catch (IOException e) {
+				if (h.channel != null) {
+					h.channel.close();
+					h.channel = null;
+				}
+				h.lock.unlock();
+				throw e;
+			}
+		}
+		return new ProcessLock(h);
+	}
+
+	/**
+	 * Acquires the lock if no other thread or process holds it.
+	 * A lock this thread already holds counts as held.
+	 * @param lockFile the lock file
+	 * @return the lock, close it to release, or null if held
+	 * @throws IOException if the lock file cannot be opened or locked
+	 */
+	public static ProcessLock tryLock(final Path lockFile)
+			throws IOException {
+		Holder h = holder(lockFile);
+		if (!h.lock.tryLock()) {
+			return null;
+		}
+		if (h.lock.getHoldCount() > 1) {
+			h.lock.unlock();
+			return null;
+		}
+		try {
+			h.channel = FileChannel.open(h.file, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE);
+			h.fileLock = h.channel.tryLock();
+		} catch (IOException e) {
+			if (h.channel != null) {
+				h.channel.close();
+				h.channel = null;
+			}
+			h.lock.unlock();
+			throw e;
+		}
+		if (h.fileLock == null) {
+			h.channel.close();
+			h.channel = null;
+			h.lock.unlock();
+			return null;
+		}
+		return new ProcessLock(h);
+	}
+
+	/**
+	 * Gets the holder of a lock file, creating it the first time.
+	 * @param lockFile the lock file
+	 * @return the holder
+	 */
+	private static Holder holder(final Path lockFile) {
+		Path key = lockFile.toAbsolutePath().normalize();
+		Holder h = HOLDERS.get(key);
+		if (h == null) {
+			Holder created = new Holder(key);
+			h = HOLDERS.putIfAbsent(key, created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Releases the lock.
+	 * @throws IOException if the file lock cannot be released
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if (holder.lock.getHoldCount() == 1) {
+				try {
+					holder.fileLock.release();
+				} finally {
+					holder.channel.close();
+					holder.fileLock = null;
+					holder.channel = null;
+				}
+			}
+		} finally {
+			holder.lock.unlock();
+		}
+	}
+}
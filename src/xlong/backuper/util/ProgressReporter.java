@@ -0,0 +1,353 @@
+package xlong.backuper.util;
+
+import java.io.PrintStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports messages and progress of long running operations.
+ * <p>
+ * Messages have levels. Messages above the level of the reporter are
+ * dropped without being formatted, use {@link #isEnabled(Level)} before
+ * building an expensive message. Per-file events use {@link Level#DEBUG},
+ * so they are only printed if asked for.
+ * <p>
+ * Messages are put into a queue and printed by a background thread,
+ * so callers never wait for the console. If the queue is full, info and
+ * debug messages are dropped and counted, errors and warnings wait.
+ * <p>
+ * Between {@link #begin(String, long, long)} and {@link #end()} a summary
+ * with files per second, bytes per second and the estimated time left
+ * is printed periodically, using the counters of the current
+ * {@link Metrics}.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class ProgressReporter {
+
+	/** Message levels. */
+	public enum Level {
+		/** errors. */
+		ERROR,
+		/** warnings. */
+		WARN,
+		/** summaries. */
+		INFO,
+		/** per-file events. */
+		DEBUG
+	}
+
+	/** the size of the message queue. */
+	private static final int CAPACITY = 65536;
+
+	/** default time between summaries in milliseconds. */
+	private static final long INTERVAL = 5000;
+
+	/** time between checks while flushing in milliseconds. */
+	private static final long FLUSHWAIT = 10;
+
+	/** bytes per megabyte. */
+	private static final double MB = 1024.0 * 1024.0;
+
+	/** nanoseconds per second. */
+	private static final double NANOS = 1e9;
+
+	/** seconds per minute and minutes per hour. */
+	private static final long SIXTY = 60;
+
+	/** the reporter used by the backup and restore code. */
+	private static volatile ProgressReporter reporter =
+			new ProgressReporter(System.out, Level.INFO, INTERVAL);
+
+	/**
+	 * Gets the reporter.
+	 * @return the reporter
+	 */
+	public static ProgressReporter getReporter() {
+		return reporter;
+	}
+
+	/**
+	 * Sets the reporter.
+	 * @param progressReporter the reporter
+	 */
+	public static void setReporter(final ProgressReporter progressReporter) {
+		reporter = progressReporter;
+	}
+
+	/** the level. */
+	private volatile Level level;
+
+	/** time between summaries in milliseconds. */
+	private volatile long interval;
+
+	/** the messages waiting to be printed. */
+	private final BlockingQueue<String> queue =
+			new LinkedBlockingQueue<>(CAPACITY);
+
+	/** the number of messages queued but not printed yet. */
+	private final AtomicLong pending = new AtomicLong();
+
+	/** the number of messages dropped. */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** prints the periodic summary, null if no operation is running. */
+	private ScheduledExecutorService summary;
+
+	/** the name of the running operation. */
+	private String operation;
+
+	/** the expected number of files, 0 if unknown. */
+	private long totalFiles;
+
+	/** the expected number of bytes, 0 if unknown. */
+	private long totalBytes;
+
+	/** the number of files at the last summary. */
+	private long lastFiles;
+
+	/** the number of bytes at the last summary. */
+	private long lastBytes;
+
+	/** the time of the last summary in nanoseconds. */
+	private long lastNanos;
+
+	/**
+	 * Constructor. Starts the background printing thread.
+	 * @param out the stream to print to
+	 * @param initLevel the level
+	 * @param summaryInterval time between summaries in milliseconds
+	 */
+	public ProgressReporter(final PrintStream out, final Level initLevel,
+			final long summaryInterval) {
+		level = initLevel;
+		interval = summaryInterval;
+		Thread sink = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					String s;
+					try {
+						s = queue.take();
+					} catch (InterruptedException e) {
+						return;
+					}
+					out.println(s);
+					if (queue.isEmpty()) {
+						out.flush();
+					}
+					pending.decrementAndGet();
+				}
+			}
+		}, "progress-reporter");
+		sink.setDaemon(true);
+		sink.start();
+	}
+
+	/**
+	 * Sets the level.
+	 * @param newLevel the level
+	 */
+	public void setLevel(final Level newLevel) {
+		level = newLevel;
+	}
+
+	/**
+	 * Gets the level.
+	 * @return the level
+	 */
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * Sets the time between summaries. Takes effect at the next begin.
+	 * @param summaryInterval time in milliseconds
+	 */
+	public void setInterval(final long summaryInterval) {
+		interval = summaryInterval;
+	}
+
+	/**
+	 * Tests whether messages of a level are printed.
+	 * @param messageLevel the level
+	 * @return printed or not
+	 */
+	public boolean isEnabled(final Level messageLevel) {
+		return messageLevel.ordinal() <= level.ordinal();
+	}
+
+	/**
+	 * Reports a message.
+	 * @param messageLevel the level of the message
+	 * @param message the message
+	 */
+	public void report(final Level messageLevel, final String message) {
+		if (!isEnabled(messageLevel)) {
+			return;
+		}
+		pending.incrementAndGet();
+		if (messageLevel.ordinal() <= Level.WARN.ordinal()) {
+			try {
+				queue.put(message);
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else if (queue.offer(message)) {
+			return;
+		}
+		pending.decrementAndGet();
+		dropped.incrementAndGet();
+	}
+
+	/**
+	 * Reports an error.
+	 * @param message the message
+	 */
+	public void error(final String message) {
+		report(Level.ERROR, message);
+	}
+
+	/**
+	 * Reports a warning.
+	 * @param message the message
+	 */
+	public void warn(final String message) {
+		report(Level.WARN, message);
+	}
+
+	/**
+	 * Reports a summary message.
+	 * @param message the message
+	 */
+	public void info(final String message) {
+		report(Level.INFO, message);
+	}
+
+	/**
+	 * Reports a per-file event.
+	 * @param message the message
+	 */
+	public void debug(final String message) {
+		report(Level.DEBUG, message);
+	}
+
+	/**
+	 * Waits until all queued messages are printed.
+	 */
+	public void flush() {
+		while (pending.get() > 0) {
+			try {
+				Thread.sleep(FLUSHWAIT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts printing periodic summaries of an operation.
+	 * @param name the name of the operation
+	 * @param files the expected number of files, 0 if unknown
+	 * @param bytes the expected number of bytes, 0 if unknown
+	 */
+	public synchronized void begin(final String name, final long files,
+			final long bytes) {
+		if (summary != null) {
+			end();
+		}
+		operation = name;
+		totalFiles = files;
+		totalBytes = bytes;
+		lastFiles = 0;
+		lastBytes = 0;
+		lastNanos = System.nanoTime();
+		summary = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						Thread t = new Thread(r, "progress-summary");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		summary.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				summarize(false);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the periodic summaries, prints the final summary
+	 * and waits until all messages are printed.
+	 */
+	public synchronized void end() {
+		if (summary == null) {
+			return;
+		}
+		summary.shutdownNow();
+		summary = null;
+		summarize(true);
+		if (dropped.get() > 0) {
+			info(dropped.getAndSet(0) + " messages dropped");
+		}
+		flush();
+	}
+
+	/**
+	 * Prints a summary of the current metrics.
+	 * @param last the final summary or not
+	 */
+	private synchronized void summarize(final boolean last) {
+		Metrics metrics = Metrics.getCurrent();
+		long files = metrics.get(Metrics.Counter.FILES_SCANNED)
+				+ metrics.get(Metrics.Counter.FILES_RESTORED);
+		long bytes = metrics.get(Metrics.Counter.BYTES_SCANNED)
+				+ metrics.get(Metrics.Counter.BYTES_RESTORED);
+		long now = System.nanoTime();
+		double elapsed = metrics.getElapsed() / NANOS;
+		double seconds = (now - lastNanos) / NANOS;
+		if (last) {
+			seconds = elapsed;
+			lastFiles = 0;
+			lastBytes = 0;
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(operation).append(last ? " done: " : ": ");
+		sb.append(files).append(" files");
+		sb.append(String.format(" (%.1f files/s), ",
+				(files - lastFiles) / Math.max(seconds, 1e-3)));
+		sb.append(String.format("%.1f MB (%.2f MB/s)", bytes / MB,
+				(bytes - lastBytes) / MB / Math.max(seconds, 1e-3)));
+		if (!last) {
+			long eta = -1;
+			if (totalBytes > 0 && bytes > 0) {
+				eta = (long) (elapsed * Math.max(totalBytes - bytes, 0)
+						/ bytes);
+			} else if (totalFiles > 0 && files > 0) {
+				eta = (long) (elapsed * Math.max(totalFiles - files, 0)
+						/ files);
+			}
+			if (eta >= 0) {
+				sb.append(String.format(", ETA %d:%02d:%02d",
+						eta / SIXTY / SIXTY, eta / SIXTY % SIXTY,
+						eta % SIXTY));
+			}
+		} else {
+			sb.append(String.format(" in %.1f s", elapsed));
+		}
+		lastFiles = files;
+		lastBytes = bytes;
+		lastNanos = now;
+		info(sb.toString());
+	}
+}
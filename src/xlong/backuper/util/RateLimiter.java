@@ -0,0 +1,98 @@
+package xlong.backuper.util;
+
+/**
+ * A token bucket limiting the rate of some resource, such as bytes per
+ * second.
+ * <p>
+ * Callers acquire permits before using the resource. If the bucket has not
+ * enough tokens the caller sleeps until the tokens are refilled.
+ * The bucket holds at most one second of tokens, so short idle periods
+ * allow a small burst but long idle periods do not.
+ * A rate not greater than zero means unlimited.
+ * The rate can be changed at any time, also by other threads.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class RateLimiter {
+
+	/** Nanoseconds per second. */
+	private static final long NANOS = 1000000000L;
+
+	/** Permits per second. Not greater than zero means unlimited. */
+	private long rate;
+
+	/** Tokens available now. May be negative if callers are waiting. */
+	private long available;
+
+	/** The time of the last refill in nanoseconds. */
+	private long last;
+
+	/**
+	 * Constructor.
+	 * @param permitsPerSecond permits per second, 0 means unlimited
+	 */
+	public RateLimiter(final long permitsPerSecond) {
+		rate = permitsPerSecond;
+		available = 0;
+		last = System.nanoTime();
+	}
+
+	/**
+	 * Sets the rate.
+	 * @param permitsPerSecond permits per second, 0 means unlimited
+	 */
+	public synchronized void setRate(final long permitsPerSecond) {
+		refill();
+		rate = permitsPerSecond;
+		if (available > rate) {
+			available = Math.max(rate, 0);
+		}
+	}
+
+	/**
+	 * Gets the rate.
+	 * @return permits per second, 0 means unlimited
+	 */
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Adds tokens according to the elapsed time.
+	 */
+	private void refill() {
+		long now = System.nanoTime();
+		if (rate > 0) {
+			long add = (long) ((double) (now - last) * rate / NANOS);
+			available = Math.min(available + add, rate);
+		}
+		last = now;
+	}
+
+	/**
+	 * Acquires permits. Sleeps if not enough tokens are available.
+	 * If the current thread is interrupted the method returns at once
+	 * and keeps the interrupt status.
+	 *
+	 * @param permits the number of permits
+	 */
+	public void acquire(final long permits) {
+		long wait;
+		synchronized (this) {
+			if (rate <= 0) {
+				return;
+			}
+			refill();
+			available -= permits;
+			if (available >= 0) {
+				return;
+			}
+			wait = (long) ((double) -available * NANOS / rate);
+		}
+		try {
+			Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -2,6 +2,7 @@ package xlong.backuper.util;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -28,7 +29,7 @@ public final class SHA1Util {
 	}
 	
 	/** Maximum number of bytes to read in each loop.*/
-	private static final int MAXBYTE = 1024;
+	private static final int MAXBYTE = 65536;
 	/** Constant for changing byte into numbers. */
 	private static final int C1 = 0xff;
 	/** Constant for changing byte into numbers. */
@@ -47,6 +48,26 @@ public final class SHA1Util {
 			final Path filePath) 
 			throws IOException {
 		
+        FileInputStream fis = new FileInputStream(filePath.toString());
+        try {
+        	return sha1Checksum(fis);
+        } finally {
+        	fis.close();
+        }
+	}
+	
+	/**
+	 * Gets the SHA-1 checksum of all the remaining bytes of a stream.
+	 * The stream is not closed.
+	 * 
+	 * @param in the stream to get checksum.
+	 * @return the hexadecimal representation checksum of the stream.
+	 * @throws IOException if the stream cannot be read.
+	 */
+	public static String sha1Checksum(
+			final InputStream in) 
+			throws IOException {
+		
         MessageDigest sha1 = null;
 		try {
 			sha1 = MessageDigest.getInstance("SHA1");
@@ -54,23 +75,25 @@ public final class SHA1Util {
 			e.printStackTrace();
 		}
 		
-        FileInputStream fis = new FileInputStream(filePath.toString());
         byte[] data = new byte[MAXBYTE];
         int read = 0; 
-        while ((read = fis.read(data)) != -1) {
+        long readTime = 0;
+        long hashTime = 0;
+        long t0 = System.nanoTime();
+        while ((read = in.read(data)) != -1) {
+            long t1 = System.nanoTime();
             sha1.update(data, 0, read);
+            long t2 = System.nanoTime();
+            readTime += t1 - t0;
+            hashTime += t2 - t1;
+            t0 = t2;
         }
-        fis.close();
+        Metrics metrics = Metrics.getCurrent();
+        metrics.time(Metrics.Phase.READ, readTime + System.nanoTime() - t0);
+        metrics.time(Metrics.Phase.HASH, hashTime);
         
         byte[] hashBytes = sha1.digest();
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < hashBytes.length; i++) {
-          sb.append(Integer
-        		  .toString((hashBytes[i] & C1) + C2, BASE)
-        		  .substring(1));
-        }
-        
-        return sb.toString();
+        return toHex(hashBytes);
 	}
 	
 	/**
@@ -90,14 +113,7 @@ public final class SHA1Util {
 		}
         
         byte[] hashBytes = sha1.digest(input.getBytes());
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < hashBytes.length; i++) {
-          sb.append(Integer
-        		  .toString((hashBytes[i] & C1) + C2, BASE)
-        		  .substring(1));
-        }
-        
-        return sb.toString();
+        return toHex(hashBytes);
 	}
 
 	/**
@@ -116,7 +132,22 @@ public final class SHA1Util {
 			e.printStackTrace();
 		}
         
+        long t0 = System.nanoTime();
         byte[] hashBytes = sha1.digest(bytesArray);
+        Metrics.getCurrent().time(Metrics.Phase.HASH, 
+        		System.nanoTime() - t0);
+        return toHex(hashBytes);
+	}
+	
+	/**
+	 * Gets the hexadecimal representation of a hash value.
+	 * 
+	 * @param hashBytes the hash value.
+	 * @return the hexadecimal representation, 2 digits per byte.
+	 */
+	public static String toHex(
+			final byte[] hashBytes) {
+		
         StringBuffer sb = new StringBuffer();
         for (int i = 0; i < hashBytes.length; i++) {
           sb.append(Integer
@@ -0,0 +1,101 @@
+package xlong.backuper.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+/**
+ * An output stream to a file which seeks over the aligned blocks of
+ * zeros instead of writing them, so they are left as holes and take
+ * no space on the disk. The file is cut to the bytes written when
+ * closed, so holes at its end are kept too.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class SparseOutputStream extends OutputStream {
+
+	/** the file. */
+	private final RandomAccessFile file;
+
+	/** the block being filled. */
+	private final byte[] block = new byte[SparseUtil.BLOCK];
+
+	/** the bytes in the block. */
+	private int length = 0;
+
+	/** the bytes written or skipped before the block. */
+	private long position = 0;
+
+	/** the bytes skipped. */
+	private long skipped = 0;
+
+	/**
+	 * Constructor. An existing file is emptied first, so no old bytes
+	 * are left in the holes.
+	 * @param path the file
+	 * @throws IOException if the file cannot be opened
+	 */
+	public SparseOutputStream(final Path path) throws IOException {
+		file = new RandomAccessFile(path.toFile(), "rw");
+		file.setLength(0);
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		block[length++] = (byte) b;
+		if (length == block.length) {
+			flushBlock();
+		}
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		int done = 0;
+		while (done < len) {
+			int n = Math.min(len - done, block.length - length);
+			System.arraycopy(b, off + done, block, length, n);
+			length += n;
+			done += n;
+			if (length == block.length) {
+				flushBlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes or skips the block.
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void flushBlock() throws IOException {
+		if (SparseUtil.isZero(block, 0, length)) {
+			skipped += length;
+		} else {
+			file.seek(position);
+			file.write(block, 0, length);
+		}
+		position += length;
+		length = 0;
+	}
+
+	/**
+	 * Gets the bytes left as holes.
+	 * @return the number of bytes
+	 */
+	public long getSkipped() {
+		return skipped;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (length > 0) {
+				flushBlock();
+			}
+			file.setLength(position);
+		} finally {
+			file.close();
+		}
+	}
+}
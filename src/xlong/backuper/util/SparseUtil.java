@@ -0,0 +1,345 @@
+package xlong.backuper.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the blocks of zeros of a file, and stores the file as the
+ * extents of its other blocks, so holes of sparse files and long runs
+ * of zeros cost no space in the repository.
+ * <p>
+ * The content is cut in aligned blocks of {@link #BLOCK} bytes.
+ * A block of zeros, whether a hole or written, is dropped, other blocks
+ * next to each other make an extent. The stored form is the size of
+ * the content, the number of extents, the offset and length of each,
+ * then the bytes of the extents, all in big-endian order. Holes are
+ * read as zeros by the file system at no cost of the disk, so they are
+ * found while the file is hashed, with no call asking for them.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class SparseUtil {
+
+	/** the length of a block. */
+	public static final int BLOCK = 65536;
+
+	/** the length of the stored form before the extents. */
+	private static final int HEADER = 12;
+
+	/** the length of an extent in the stored form. */
+	private static final int EXTENT = 16;
+
+	/** a block of zeros. */
+	private static final byte[] ZEROS = new byte[BLOCK];
+
+	/**
+	 * Private constructor to make sure no instance of this class
+	 * will be created.
+	 */
+	private SparseUtil() {
+		// will not be called
+	}
+
+	/**
+	 * The extents of a stored form, to read the content at any position.
+	 */
+	public static final class Extents {
+		/** the size of the content. */
+		private final long size;
+		/** the offsets of the extents in the content. */
+		private final long[] offsets;
+		/** the lengths of the extents. */
+		private final long[] lengths;
+		/** the positions of the extents in the object. */
+		private final long[] positions;
+
+		/**
+		 * Constructor.
+		 * @param contentSize the size of the content
+		 * @param count the number of extents
+		 */
+		private Extents(final long contentSize, final int count) {
+			size = contentSize;
+			offsets = new long[count];
+			lengths = new long[count];
+			positions = new long[count];
+		}
+
+		/**
+		 * Reads the extents of a stored form.
+		 * @param in the stored form, read up to the bytes of the extents
+		 * @param start the position of the stored form in the object
+		 * @return the extents
+		 * @throws IOException if the stored form is corrupt
+		 */
+		public static Extents read(final InputStream in, final long start)
+				throws IOException {
+			DataInputStream data = new DataInputStream(in);
+			long size = data.readLong();
+			int count = data.readInt();
+			if (size < 0 || count < 0 || count > size / BLOCK + 1) {
+				throw new IOException("Corrupt extents");
+			}
+			Extents extents = new Extents(size, count);
+			long position = start + HEADER + (long) count * EXTENT;
+			long end = 0;
+			for (int i = 0; i < count; i++) {
+				extents.offsets[i] = data.readLong();
+				extents.lengths[i] = data.readLong();
+				extents.positions[i] = position;
+				if (extents.offsets[i] < end || extents.lengths[i] <= 0
+						|| extents.offsets[i] + extents.lengths[i] > size) {
+					throw new IOException("Corrupt extents");
+				}
+				end = extents.offsets[i] + extents.lengths[i];
+				position += extents.lengths[i];
+			}
+			return extents;
+		}
+
+		/**
+		 * Gets the size of the content.
+		 * @return the size
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Gets the number of extents.
+		 * @return the number
+		 */
+		public int getCount() {
+			return offsets.length;
+		}
+
+		/**
+		 * Finds the extent holding a position, or the next one.
+		 * @param offset the position in the content
+		 * @return the index of the extent, the number of extents if none
+		 */
+		public int find(final long offset) {
+			int i = Arrays.binarySearch(offsets, offset);
+			if (i >= 0) {
+				return i;
+			}
+			i = -i - 2;
+			if (i >= 0 && offset < offsets[i] + lengths[i]) {
+				return i;
+			}
+			return i + 1;
+		}
+
+		/**
+		 * Gets the offset of an extent in the content.
+		 * @param i the index
+		 * @return the offset
+		 */
+		public long getOffset(final int i) {
+			return offsets[i];
+		}
+
+		/**
+		 * Gets the length of an extent.
+		 * @param i the index
+		 * @return the length
+		 */
+		public long getLength(final int i) {
+			return lengths[i];
+		}
+
+		/**
+		 * Gets the position of the bytes of an extent in the object.
+		 * @param i the index
+		 * @return the position
+		 */
+		public long getPosition(final int i) {
+			return positions[i];
+		}
+	}
+
+	/**
+	 * Tests whether bytes are all zero.
+	 * @param b the bytes
+	 * @param off the offset
+	 * @param len the number of bytes
+	 * @return all zero or not
+	 */
+	public static boolean isZero(final byte[] b, final int off,
+			final int len) {
+		int or = 0;
+		for (int i = off; i < off + len; i++) {
+			or |= b[i];
+		}
+		return or == 0;
+	}
+
+	/**
+	 * Gets the SHA-1 checksum of all the remaining bytes of a stream,
+	 * and finds the extents of the blocks which are not all zero.
+	 * The stream is not closed.
+	 *
+	 * @param in the stream
+	 * @param extents the list to add the offset and length of each
+	 *        extent to
+	 * @return the hexadecimal representation checksum of the stream
+	 * @throws IOException if the stream cannot be read
+	 */
+	public static String scan(final InputStream in,
+			final List<long[]> extents) throws IOException {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		Metrics metrics = Metrics.getCurrent();
+		byte[] block = new byte[BLOCK];
+		long offset = 0;
+		long[] extent = null;
+		while (true) {
+			long t0 = System.nanoTime();
+			int n = 0;
+			while (n < BLOCK) {
+				int count = in.read(block, n, BLOCK - n);
+				if (count < 0) {
+					break;
+				}
+				n += count;
+			}
+			long t1 = System.nanoTime();
+			metrics.time(Metrics.Phase.READ, t1 - t0);
+			if (n == 0) {
+				break;
+			}
+			sha1.update(block, 0, n);
+			if (isZero(block, 0, n)) {
+				extent = null;
+			} else if (extent == null) {
+				extent = new long[] {offset, n};
+				extents.add(extent);
+			} else {
+				extent[1] += n;
+			}
+			metrics.time(Metrics.Phase.HASH, System.nanoTime() - t1);
+			offset += n;
+			if (n < BLOCK) {
+				break;
+			}
+		}
+		return SHA1Util.toHex(sha1.digest());
+	}
+
+	/**
+	 * Gets the bytes of extents.
+	 * @param extents the offset and length of each extent
+	 * @return the sum of their lengths
+	 */
+	public static long dataBytes(final List<long[]> extents) {
+		long bytes = 0;
+		for (long[] extent:extents) {
+			bytes += extent[1];
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the stored form of a file.
+	 * The stream is not closed.
+	 *
+	 * @param file the file
+	 * @param size the size of the file
+	 * @param extents the offset and length of each extent,
+	 *        from {@link #scan(InputStream, List)}
+	 * @param out the stream
+	 * @throws IOException if the file cannot be read,
+	 *         or is shorter than when scanned
+	 */
+	public static void write(final Path file, final long size,
+			final List<long[]> extents, final OutputStream out)
+					throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeLong(size);
+		data.writeInt(extents.size());
+		for (long[] extent:extents) {
+			data.writeLong(extent[0]);
+			data.writeLong(extent[1]);
+		}
+		data.flush();
+		Metrics metrics = Metrics.getCurrent();
+		byte[] block = new byte[BLOCK];
+		try (FileChannel in = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			for (long[] extent:extents) {
+				long done = 0;
+				while (done < extent[1]) {
+					long t0 = System.nanoTime();
+					int n = (int) Math.min(BLOCK, extent[1] - done);
+					ByteBuffer buffer = ByteBuffer.wrap(block, 0, n);
+					while (buffer.hasRemaining()) {
+						if (in.read(buffer, extent[0] + done
+								+ buffer.position()) < 0) {
+							throw new EOFException(file
+									+ " changed while backed up");
+						}
+					}
+					long t1 = System.nanoTime();
+					out.write(block, 0, n);
+					metrics.time(Metrics.Phase.READ, t1 - t0);
+					metrics.time(Metrics.Phase.WRITE, System.nanoTime() - t1);
+					done += n;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the content of a stored form, with its zeros.
+	 * The streams are not closed.
+	 *
+	 * @param in the stored form
+	 * @param out the stream of the content
+	 * @throws IOException if the stored form is corrupt or
+	 *         an I/O error occurs
+	 */
+	public static void expand(final InputStream in, final OutputStream out)
+			throws IOException {
+		Extents extents = Extents.read(in, 0);
+		byte[] block = new byte[BLOCK];
+		long offset = 0;
+		for (int i = 0; i <= extents.getCount(); i++) {
+			long next = i < extents.getCount() ? extents.getOffset(i)
+					: extents.getSize();
+			while (offset < next) {
+				int n = (int) Math.min(BLOCK, next - offset);
+				out.write(ZEROS, 0, n);
+				offset += n;
+			}
+			if (i == extents.getCount()) {
+				break;
+			}
+			long length = extents.getLength(i);
+			while (length > 0) {
+				int n = in.read(block, 0, (int) Math.min(BLOCK, length));
+				if (n < 0) {
+					throw new EOFException("Truncated extents");
+				}
+				out.write(block, 0, n);
+				length -= n;
+				offset += n;
+			}
+		}
+	}
+}
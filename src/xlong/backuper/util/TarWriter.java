@@ -0,0 +1,231 @@
+package xlong.backuper.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a POSIX tar archive (ustar with pax extended headers).
+ * <p>
+ * Names longer than the 100 bytes of the header, or not ASCII,
+ * and sizes of 8G or more are written in a pax extended header
+ * before the entry, which GNU tar, bsdtar and most libraries read.
+ * All entries get the same modification time.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class TarWriter extends ArchiveWriter {
+
+	/** the size of a block. */
+	private static final int BLOCK = 512;
+
+	/** the length of the name field. */
+	private static final int NAMELEN = 100;
+
+	/** the largest size of the 11 octal digits of the size field. */
+	private static final long MAXSIZE = 077777777777L;
+
+	/** the type of a file. */
+	private static final byte FILE = '0';
+
+	/** the type of a directory. */
+	private static final byte DIRECTORY = '5';
+
+	/** the type of a pax extended header. */
+	private static final byte PAX = 'x';
+
+	/** the mode of a file. */
+	private static final int FILEMODE = 0644;
+
+	/** the mode of a directory. */
+	private static final int DIRMODE = 0755;
+
+	/** the offset of the mode field. */
+	private static final int MODE = 100;
+
+	/** the offset of the uid field. */
+	private static final int UID = 108;
+
+	/** the offset of the gid field. */
+	private static final int GID = 116;
+
+	/** the offset of the size field. */
+	private static final int SIZE = 124;
+
+	/** the offset of the mtime field. */
+	private static final int MTIME = 136;
+
+	/** the offset of the checksum field. */
+	private static final int CHKSUM = 148;
+
+	/** the offset of the type field. */
+	private static final int TYPE = 156;
+
+	/** the offset of the magic field. */
+	private static final int MAGIC = 257;
+
+	/** the magic and version of ustar. */
+	private static final byte[] USTAR = {'u', 's', 't', 'a', 'r', 0, '0', '0'};
+
+	/** the modification time in seconds. */
+	private final long mtime;
+
+	/** zeros to pad blocks. */
+	private final byte[] zeros = new byte[BLOCK];
+
+	/**
+	 * Constructor.
+	 * @param output the output, left open
+	 * @param time the modification time of all entries in milliseconds
+	 */
+	public TarWriter(final OutputStream output, final long time) {
+		super(output);
+		mtime = time / 1000;
+	}
+
+	@Override
+	public boolean takesDeflate() {
+		return false;
+	}
+
+	@Override
+	public void putDirectory(final String name) throws IOException {
+		putHeader(name.endsWith("/") ? name : name + "/", 0, DIRECTORY);
+	}
+
+	@Override
+	public void putFile(final String name, final long size, final long crc,
+			final InputStream content) throws IOException {
+		putHeader(name, size, FILE);
+		copy(content, size);
+		pad(size);
+	}
+
+	@Override
+	public void putDeflated(final String name, final long size,
+			final long crc, final long compressedSize,
+			final InputStream deflated) throws IOException {
+		throw new UnsupportedOperationException("tar does not take deflate");
+	}
+
+	@Override
+	public void finish() throws IOException {
+		write(zeros);
+		write(zeros);
+		flush();
+	}
+
+	/**
+	 * Writes the header of an entry, after a pax extended header
+	 * if the name or the size do not fit.
+	 * @param name the name
+	 * @param size the size of the content
+	 * @param type the type
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void putHeader(final String name, final long size,
+			final byte type) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		boolean ascii = bytes.length == name.length();
+		StringBuilder pax = new StringBuilder();
+		if (bytes.length > NAMELEN || !ascii) {
+			pax.append(record("path", name));
+		}
+		if (size > MAXSIZE) {
+			pax.append(record("size", Long.toString(size)));
+		}
+		if (pax.length() > 0) {
+			byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+			write(header("PaxHeader", records.length, PAX));
+			write(records);
+			pad(records.length);
+		}
+		byte[] shortName = bytes;
+		if (!ascii) {
+			shortName = name.replaceAll("[^\\x20-\\x7e]", "_")
+					.getBytes(StandardCharsets.US_ASCII);
+		}
+		if (shortName.length > NAMELEN) {
+			shortName = Arrays.copyOf(shortName, NAMELEN);
+		}
+		write(header(new String(shortName, StandardCharsets.US_ASCII),
+				size > MAXSIZE ? 0 : size, type));
+	}
+
+	/**
+	 * Makes a pax record, prefixed with its own length.
+	 * @param key the key
+	 * @param value the value
+	 * @return the record
+	 */
+	private static String record(final String key, final String value) {
+		int len = key.length() + value.getBytes(StandardCharsets.UTF_8).length
+				+ 3;
+		int total = len + Integer.toString(len).length();
+		// the length may get one more digit by counting itself
+		if (Integer.toString(total).length() > Integer.toString(len).length()) {
+			total++;
+		}
+		return total + " " + key + "=" + value + "\n";
+	}
+
+	/**
+	 * Makes a ustar header.
+	 * @param name the name, ASCII of at most 100 bytes
+	 * @param size the size of the content
+	 * @param type the type
+	 * @return the header
+	 */
+	private byte[] header(final String name, final long size,
+			final byte type) {
+		byte[] h = new byte[BLOCK];
+		byte[] n = name.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(n, 0, h, 0, n.length);
+		octal(h, MODE, 8, type == DIRECTORY ? DIRMODE : FILEMODE);
+		octal(h, UID, 8, 0);
+		octal(h, GID, 8, 0);
+		octal(h, SIZE, 12, size);
+		octal(h, MTIME, 12, mtime);
+		h[TYPE] = type;
+		System.arraycopy(USTAR, 0, h, MAGIC, USTAR.length);
+		Arrays.fill(h, CHKSUM, CHKSUM + 8, (byte) ' ');
+		long sum = 0;
+		for (byte b:h) {
+			sum += b & 0xff;
+		}
+		octal(h, CHKSUM, 7, sum);
+		return h;
+	}
+
+	/**
+	 * Writes a number as octal digits ended by NUL.
+	 * @param h the header
+	 * @param off the offset of the field
+	 * @param len the length of the field
+	 * @param value the number
+	 */
+	private static void octal(final byte[] h, final int off, final int len,
+			final long value) {
+		String s = Long.toOctalString(value);
+		int digits = len - 1;
+		for (int i = 0; i < digits; i++) {
+			int j = s.length() - digits + i;
+			h[off + i] = j >= 0 ? (byte) s.charAt(j) : (byte) '0';
+		}
+		h[off + digits] = 0;
+	}
+
+	/**
+	 * Pads the content of an entry to a full block.
+	 * @param size the size of the content
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void pad(final long size) throws IOException {
+		int rest = (int) (size % BLOCK);
+		if (rest != 0) {
+			write(zeros, 0, BLOCK - rest);
+		}
+	}
+}
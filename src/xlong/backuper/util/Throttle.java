@@ -0,0 +1,193 @@
+package xlong.backuper.util;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+
+/**
+ * Bounds the cost of ingesting files, so a backup does not starve
+ * the workloads of the host: the bytes read from files per second,
+ * the bytes written to the repository per second, the I/O operations
+ * per second, and the workers running at once.
+ * <p>
+ * The rates are {@link RateLimiter}s. A read or write of up to
+ * {@link #OPBYTES} bytes is one operation. Streams of files are read
+ * through a buffer of that size, so every read of the file is one.
+ * The workers are the threads of the ingest stages, a worker waits
+ * for a slot before it processes a file and frees it before passing
+ * the file on. All limits can be changed at any time, also by other
+ * threads while a backup runs. A limit not greater than zero means
+ * unlimited.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class Throttle {
+
+	/** the bytes of an operation. */
+	public static final int OPBYTES = 65536;
+
+	/** the throttle. */
+	private static final Throttle THROTTLE = new Throttle();
+
+	/** the bytes read per second. */
+	private final RateLimiter readBytes = new RateLimiter(0);
+
+	/** the bytes written per second. */
+	private final RateLimiter writeBytes = new RateLimiter(0);
+
+	/** the operations per second. */
+	private final RateLimiter ops = new RateLimiter(0);
+
+	/** the workers running at once, not greater than zero for no limit. */
+	private int workers = 0;
+
+	/** the workers running. */
+	private int busy = 0;
+
+	/**
+	 * Constructor.
+	 */
+	private Throttle() {
+	}
+
+	/**
+	 * Gets the throttle.
+	 * @return the throttle
+	 */
+	public static Throttle getThrottle() {
+		return THROTTLE;
+	}
+
+	/**
+	 * Sets the bytes read from files per second.
+	 * @param bytesPerSecond the rate, 0 means unlimited
+	 */
+	public void setReadRate(final long bytesPerSecond) {
+		readBytes.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Gets the bytes read from files per second.
+	 * @return the rate, 0 means unlimited
+	 */
+	public long getReadRate() {
+		return readBytes.getRate();
+	}
+
+	/**
+	 * Sets the bytes written to the repository per second.
+	 * @param bytesPerSecond the rate, 0 means unlimited
+	 */
+	public void setWriteRate(final long bytesPerSecond) {
+		writeBytes.setRate(bytesPerSecond);
+	}
+
+	/**
+	 * Gets the bytes written to the repository per second.
+	 * @return the rate, 0 means unlimited
+	 */
+	public long getWriteRate() {
+		return writeBytes.getRate();
+	}
+
+	/**
+	 * Sets the I/O operations per second.
+	 * @param opsPerSecond the rate, 0 means unlimited
+	 */
+	public void setOpRate(final long opsPerSecond) {
+		ops.setRate(opsPerSecond);
+	}
+
+	/**
+	 * Gets the I/O operations per second.
+	 * @return the rate, 0 means unlimited
+	 */
+	public long getOpRate() {
+		return ops.getRate();
+	}
+
+	/**
+	 * Sets the workers running at once. Workers running already finish
+	 * their file, waiting workers start when a slot is free.
+	 * @param count the number of workers, 0 means unlimited
+	 */
+	public synchronized void setWorkers(final int count) {
+		workers = count;
+		notifyAll();
+	}
+
+	/**
+	 * Gets the workers running at once.
+	 * @return the number of workers, 0 means unlimited
+	 */
+	public synchronized int getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Waits for a slot of a worker.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void enter() throws InterruptedException {
+		while (workers > 0 && busy >= workers) {
+			wait();
+		}
+		busy++;
+	}
+
+	/**
+	 * Frees the slot of a worker.
+	 */
+	public synchronized void exit() {
+		busy--;
+		notifyAll();
+	}
+
+	/**
+	 * Gets the operations of a read or write.
+	 * @param bytes the bytes
+	 * @return the number of operations, at least 1
+	 */
+	private static long ops(final long bytes) {
+		return Math.max(1, (bytes + OPBYTES - 1) / OPBYTES);
+	}
+
+	/**
+	 * Waits until some bytes may be read from a file at once.
+	 * @param bytes the bytes
+	 */
+	public void read(final long bytes) {
+		readBytes.acquire(bytes);
+		ops.acquire(ops(bytes));
+	}
+
+	/**
+	 * Waits until some bytes may be written to the repository at once.
+	 * @param bytes the bytes
+	 */
+	public void write(final long bytes) {
+		writeBytes.acquire(bytes);
+		ops.acquire(ops(bytes));
+	}
+
+	/**
+	 * Limits the reads of a stream of a file.
+	 * @param in the stream
+	 * @return the stream limited
+	 */
+	public InputStream read(final InputStream in) {
+		return new BufferedInputStream(
+				new ThrottledInputStream(in, readBytes, ops), OPBYTES);
+	}
+
+	/**
+	 * Limits the reads of a stream of a file whose bytes are written
+	 * to the repository, both as reads and as writes.
+	 * @param in the stream
+	 * @return the stream limited
+	 */
+	public InputStream copy(final InputStream in) {
+		return new BufferedInputStream(new ThrottledInputStream(
+				new ThrottledInputStream(in, readBytes, ops),
+				writeBytes, ops), OPBYTES);
+	}
+}
@@ -0,0 +1,84 @@
+package xlong.backuper.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream whose read rate is limited by a {@link RateLimiter}.
+ * Each read acquires as many permits as bytes it returns, and one
+ * permit of the limiter of operations, if any.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class ThrottledInputStream extends FilterInputStream {
+
+	/** the rate limiter. */
+	private final RateLimiter limiter;
+
+	/** the rate limiter of reads, null for none. */
+	private final RateLimiter opLimiter;
+
+	/**
+	 * Constructor.
+	 * @param in the underlying input stream
+	 * @param rateLimiter the rate limiter, bytes per second
+	 */
+	public ThrottledInputStream(final InputStream in,
+			final RateLimiter rateLimiter) {
+		this(in, rateLimiter, null);
+	}
+
+	/**
+	 * Constructor.
+	 * @param in the underlying input stream
+	 * @param rateLimiter the rate limiter, bytes per second
+	 * @param opRateLimiter the rate limiter, reads per second,
+	 *        null for none
+	 */
+	public ThrottledInputStream(final InputStream in,
+			final RateLimiter rateLimiter, final RateLimiter opRateLimiter) {
+		super(in);
+		limiter = rateLimiter;
+		opLimiter = opRateLimiter;
+	}
+
+	/**
+	 * Acquires the permits of a read.
+	 * @param count the bytes read
+	 */
+	private void acquire(final long count) {
+		limiter.acquire(count);
+		if (opLimiter != null) {
+			opLimiter.acquire(1);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			acquire(1);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+		int count = super.read(b, off, len);
+		if (count > 0) {
+			acquire(count);
+		}
+		return count;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException {
+		long count = super.skip(n);
+		if (count > 0) {
+			acquire(count);
+		}
+		return count;
+	}
+}
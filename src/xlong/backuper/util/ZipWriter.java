@@ -0,0 +1,311 @@
+package xlong.backuper.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+/**
+ * Writes a zip archive, taking raw deflate data as it is.
+ * <p>
+ * Unlike {@link java.util.zip.ZipOutputStream}, an entry can be written
+ * from deflate data compressed before, so the ZLIB objects of the
+ * repository go into the archive without being deflated again.
+ * Sizes and CRC-32 are known before each entry, so no data descriptors
+ * are needed. Zip64 extra fields and end records are written only when
+ * sizes, offsets or the number of entries need them. Names are UTF-8.
+ * The central directory is kept in memory until the end.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public final class ZipWriter extends ArchiveWriter {
+
+	/** the signature of a local file header. */
+	private static final int LOCAL = 0x04034b50;
+
+	/** the signature of a central directory header. */
+	private static final int CENTRAL = 0x02014b50;
+
+	/** the signature of the end of central directory record. */
+	private static final int END = 0x06054b50;
+
+	/** the signature of the zip64 end of central directory record. */
+	private static final int END64 = 0x06064b50;
+
+	/** the signature of the zip64 end of central directory locator. */
+	private static final int LOCATOR64 = 0x07064b50;
+
+	/** the header id of the zip64 extra field. */
+	private static final int EXTRA64 = 0x0001;
+
+	/** the version needed to extract deflate. */
+	private static final int VERSION = 20;
+
+	/** the version needed to extract zip64. */
+	private static final int VERSION64 = 45;
+
+	/** made by unix, so the external attributes hold the mode. */
+	private static final int UNIX = 3 << 8;
+
+	/** the flag of UTF-8 names. */
+	private static final int UTF8 = 0x0800;
+
+	/** the method stored. */
+	private static final int STORED = 0;
+
+	/** the method deflated. */
+	private static final int DEFLATED = 8;
+
+	/** the largest 16-bit value, which marks zip64 counts. */
+	private static final int MAX16 = 0xffff;
+
+	/** the largest 32-bit value, which marks zip64 sizes. */
+	private static final long MAX32 = 0xffffffffL;
+
+	/** the external attributes of a file, mode 0644. */
+	private static final long FILEATTR = 0100644L << 16;
+
+	/** the external attributes of a directory, mode 0755. */
+	private static final long DIRATTR = 040755L << 16 | 0x10;
+
+	/**
+	 * An entry of the central directory.
+	 */
+	private static final class Entry {
+		/** the name. */
+		private byte[] name;
+		/** the method. */
+		private int method;
+		/** the CRC-32. */
+		private long crc;
+		/** the compressed size. */
+		private long compressedSize;
+		/** the size. */
+		private long size;
+		/** the offset of the local header. */
+		private long offset;
+		/** the external attributes. */
+		private long attributes;
+	}
+
+	/** the entries written. */
+	private final List<Entry> entries = new ArrayList<>();
+
+	/** the MS-DOS time of all entries. */
+	private final int dosTime;
+
+	/** the MS-DOS date of all entries. */
+	private final int dosDate;
+
+	/**
+	 * Constructor.
+	 * @param output the output, left open
+	 * @param time the modification time of all entries in milliseconds
+	 */
+	public ZipWriter(final OutputStream output, final long time) {
+		super(output);
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		dosTime = c.get(Calendar.HOUR_OF_DAY) << 11
+				| c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+		dosDate = Math.max(0, c.get(Calendar.YEAR) - 1980) << 9
+				| (c.get(Calendar.MONTH) + 1) << 5
+				| c.get(Calendar.DAY_OF_MONTH);
+	}
+
+	@Override
+	public boolean takesDeflate() {
+		return true;
+	}
+
+	@Override
+	public void putDirectory(final String name) throws IOException {
+		Entry e = entry(name.endsWith("/") ? name : name + "/",
+				STORED, 0, 0, 0);
+		e.attributes = DIRATTR;
+		putHeader(e);
+	}
+
+	@Override
+	public void putFile(final String name, final long size, final long crc,
+			final InputStream content) throws IOException {
+		putHeader(entry(name, STORED, crc, size, size));
+		copy(content, size);
+	}
+
+	@Override
+	public void putDeflated(final String name, final long size,
+			final long crc, final long compressedSize,
+			final InputStream deflated) throws IOException {
+		putHeader(entry(name, DEFLATED, crc, compressedSize, size));
+		copy(deflated, compressedSize);
+	}
+
+	/**
+	 * Makes an entry at the current offset.
+	 * @param name the name
+	 * @param method the method
+	 * @param crc the CRC-32
+	 * @param compressedSize the compressed size
+	 * @param size the size
+	 * @return the entry
+	 */
+	private Entry entry(final String name, final int method, final long crc,
+			final long compressedSize, final long size) {
+		Entry e = new Entry();
+		e.name = name.getBytes(StandardCharsets.UTF_8);
+		e.method = method;
+		e.crc = crc;
+		e.compressedSize = compressedSize;
+		e.size = size;
+		e.offset = getWritten();
+		e.attributes = FILEATTR;
+		return e;
+	}
+
+	/**
+	 * Writes the local header of an entry and remembers the entry.
+	 * @param e the entry
+	 * @throws IOException if an I/O error occurs
+	 */
+	private void putHeader(final Entry e) throws IOException {
+		boolean zip64 = e.size >= MAX32 || e.compressedSize >= MAX32;
+		ByteArrayOutputStream h = new ByteArrayOutputStream();
+		int32(h, LOCAL);
+		int16(h, zip64 ? VERSION64 : VERSION);
+		int16(h, UTF8);
+		int16(h, e.method);
+		int16(h, dosTime);
+		int16(h, dosDate);
+		int32(h, e.crc);
+		int32(h, zip64 ? MAX32 : e.compressedSize);
+		int32(h, zip64 ? MAX32 : e.size);
+		int16(h, e.name.length);
+		int16(h, zip64 ? 20 : 0);
+		h.write(e.name);
+		if (zip64) {
+			int16(h, EXTRA64);
+			int16(h, 16);
+			int64(h, e.size);
+			int64(h, e.compressedSize);
+		}
+		write(h.toByteArray());
+		entries.add(e);
+	}
+
+	@Override
+	public void finish() throws IOException {
+		long start = getWritten();
+		for (Entry e:entries) {
+			write(central(e));
+		}
+		long length = getWritten() - start;
+		long count = entries.size();
+		ByteArrayOutputStream h = new ByteArrayOutputStream();
+		if (count >= MAX16 || start >= MAX32 || length >= MAX32) {
+			long end64 = getWritten();
+			int32(h, END64);
+			int64(h, 44);
+			int16(h, UNIX | VERSION64);
+			int16(h, VERSION64);
+			int32(h, 0);
+			int32(h, 0);
+			int64(h, count);
+			int64(h, count);
+			int64(h, length);
+			int64(h, start);
+			int32(h, LOCATOR64);
+			int32(h, 0);
+			int64(h, end64);
+			int32(h, 1);
+		}
+		int32(h, END);
+		int16(h, 0);
+		int16(h, 0);
+		int16(h, (int) Math.min(count, MAX16));
+		int16(h, (int) Math.min(count, MAX16));
+		int32(h, Math.min(length, MAX32));
+		int32(h, Math.min(start, MAX32));
+		int16(h, 0);
+		write(h.toByteArray());
+		flush();
+	}
+
+	/**
+	 * Makes the central directory header of an entry.
+	 * @param e the entry
+	 * @return the header
+	 */
+	private byte[] central(final Entry e) {
+		ByteArrayOutputStream extra = new ByteArrayOutputStream();
+		if (e.size >= MAX32) {
+			int64(extra, e.size);
+		}
+		if (e.compressedSize >= MAX32) {
+			int64(extra, e.compressedSize);
+		}
+		if (e.offset >= MAX32) {
+			int64(extra, e.offset);
+		}
+		boolean zip64 = extra.size() > 0;
+		ByteArrayOutputStream h = new ByteArrayOutputStream();
+		int32(h, CENTRAL);
+		int16(h, UNIX | VERSION64);
+		int16(h, zip64 ? VERSION64 : VERSION);
+		int16(h, UTF8);
+		int16(h, e.method);
+		int16(h, dosTime);
+		int16(h, dosDate);
+		int32(h, e.crc);
+		int32(h, Math.min(e.compressedSize, MAX32));
+		int32(h, Math.min(e.size, MAX32));
+		int16(h, e.name.length);
+		int16(h, zip64 ? extra.size() + 4 : 0);
+		int16(h, 0);
+		int16(h, 0);
+		int16(h, 0);
+		int32(h, e.attributes);
+		int32(h, Math.min(e.offset, MAX32));
+		h.write(e.name, 0, e.name.length);
+		if (zip64) {
+			int16(h, EXTRA64);
+			int16(h, extra.size());
+			h.write(extra.toByteArray(), 0, extra.size());
+		}
+		return h.toByteArray();
+	}
+
+	/**
+	 * Writes a little-endian 16-bit value.
+	 * @param h the output
+	 * @param v the value
+	 */
+	private static void int16(final ByteArrayOutputStream h, final int v) {
+		h.write(v);
+		h.write(v >>> 8);
+	}
+
+	/**
+	 * Writes a little-endian 32-bit value.
+	 * @param h the output
+	 * @param v the value
+	 */
+	private static void int32(final ByteArrayOutputStream h, final long v) {
+		int16(h, (int) v);
+		int16(h, (int) (v >>> 16));
+	}
+
+	/**
+	 * Writes a little-endian 64-bit value.
+	 * @param h the output
+	 * @param v the value
+	 */
+	private static void int64(final ByteArrayOutputStream h, final long v) {
+		int32(h, v);
+		int32(h, v >>> 32);
+	}
+}
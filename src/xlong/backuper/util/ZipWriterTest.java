@@ -0,0 +1,85 @@
+package xlong.backuper.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Test;
+
+/**
+ * JUnit test class for ZipWriter class.
+ *
+ * @author Xiang Long (longx13@mails.tsinghua.edu.cn)
+ */
+public class ZipWriterTest {
+
+	/**
+	 * Reads an entry to its end.
+	 * @param in the archive
+	 * @return the content
+	 * @throws IOException if an I/O error occurs
+	 */
+	private static byte[] read(final InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int count;
+		while ((count = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Test method for {@link ZipWriter#putDeflated}, the deflate data
+	 * of a ZLIB stream is read back by java.util.zip.
+	 * @throws IOException if an I/O error occurs
+	 */
+	@Test
+	public final void testPutDeflated() throws IOException {
+		byte[] stored = "stored".getBytes("UTF-8");
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			sb.append("line ").append(i).append('\n');
+		}
+		byte[] content = sb.toString().getBytes("UTF-8");
+		byte[] zlib = CompressionUtil.deflate(content);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		CRC32 storedCrc = new CRC32();
+		storedCrc.update(stored);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ZipWriter writer = new ZipWriter(out, System.currentTimeMillis());
+		writer.putDirectory("dir");
+		writer.putFile("dir/a.txt", stored.length, storedCrc.getValue(),
+				new ByteArrayInputStream(stored));
+		writer.putDeflated("dir/\u00fc.txt", content.length, crc.getValue(),
+				zlib.length - 6, new ByteArrayInputStream(zlib, 2,
+						zlib.length - 2));
+		writer.finish();
+
+		try (ZipInputStream in = new ZipInputStream(
+				new ByteArrayInputStream(out.toByteArray()))) {
+			ZipEntry e = in.getNextEntry();
+			assertEquals("dir/", e.getName());
+			assertTrue(e.isDirectory());
+			e = in.getNextEntry();
+			assertEquals("dir/a.txt", e.getName());
+			assertArrayEquals(stored, read(in));
+			e = in.getNextEntry();
+			assertEquals("dir/\u00fc.txt", e.getName());
+			assertEquals(ZipEntry.DEFLATED, e.getMethod());
+			assertArrayEquals(content, read(in));
+			assertNull(in.getNextEntry());
+		}
+	}
+}